@@ -0,0 +1,463 @@
+
+/**
+ * This class reads and writes the binary song database format. The file
+ * starts with a fixed header, then a table of every distinct String in
+ * the catalog, then one fixed width record per song:
+ *
+ *   header   "SDBF", version, string count, record count,
+ *            string table length (32 bytes in all)
+ *   strings  length prefixed UTF-8, numbered from 0 in file order
+ *   records  title, item code, description, artist and album as string
+ *            numbers, then the price in cents as a long (28 bytes each)
+ *
+ * Version 1 files, whose prices were ints and records 24 bytes, are
+ * still read; files are always written as version 2.
+ *
+ * Loading maps the file and reads the records straight out of the
+ * mapping, and every repeated artist, album or description becomes one
+ * shared String. Reader and StreamWriter read and write one song at a
+ * time for files too large to hold in memory. All numbers are big-endian.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class BinarySongFormat
+{
+    // first four bytes of every binary song database file
+    static final byte[] MAGIC = { 'S', 'D', 'B', 'F' };
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_BYTES = 28;
+    // version 1 records, with an int price
+    private static final int OLD_VERSION = 1;
+    private static final int OLD_RECORD_BYTES = 24;
+
+    /**
+     * Writes songs in the binary format
+     * @param out stream to write to, not closed
+     * @param songs songs to write, in the order they should appear
+     * @throws IOException if the stream can't be written
+     */
+    public static void write( OutputStream out,
+        Collection<SongDetails> songs ) throws IOException
+    {
+        // number every distinct String and remember each record's numbers
+        StringDictionary table = new StringDictionary();
+        List<byte[]> encoded = new ArrayList<byte[]>();
+        long tableBytes = 0;
+        int[] ids = new int[ songs.size() * 5 ];
+        int n = 0;
+        for( SongDetails song : songs )
+        {
+            String[] text = { song.getSongTitle(), song.getItemCode(),
+                song.getDescription(), song.getArtist(), song.getAlbum() };
+            for( String field : text )
+            {
+                int id = table.idOf( field == null ? "" : field );
+                if( id == encoded.size() )
+                {
+                    byte[] bytes = table.get( id ).getBytes(
+                        StandardCharsets.UTF_8 );
+                    encoded.add( bytes );
+                    tableBytes += 4 + bytes.length;
+                }
+                ids[ n++ ] = id;
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(
+            new BufferedOutputStream( out, 1 << 16 ));
+        data.write( MAGIC );
+        data.writeInt( VERSION );
+        data.writeInt( encoded.size() );
+        data.writeLong( songs.size() );
+        data.writeLong( tableBytes );
+        data.writeInt( 0 ); // reserved
+        for( byte[] bytes : encoded )
+        {
+            data.writeInt( bytes.length );
+            data.write( bytes );
+        }
+        n = 0;
+        for( SongDetails song : songs )
+        {
+            for( int i = 0; i < 5; i++ )
+            {
+                data.writeInt( ids[ n++ ] );
+            }
+            data.writeLong( song.getPriceCents() );
+        }
+        data.flush();
+    }
+
+    /**
+     * Loads every song in a binary file into the given map. A later
+     * record with the same item code replaces an earlier one.
+     * @param fp song database file location
+     * @param songs map the songs are put into, keyed by item code
+     * @param dict dictionary to encode artist and album with, or null
+     * @return numbers from the load
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read or isn't valid
+     */
+    public static LoadStats load( String fp, Map<String, SongDetails> songs,
+        SongDictionary dict ) throws IOException
+    {
+        long startTime = System.nanoTime();
+        try( Reader reader = new Reader( fp, true ) )
+        {
+            SongDetails song;
+            while( ( song = reader.next() ) != null )
+            {
+                songs.put( song.getItemCode(),
+                    dict == null ? song : dict.encode( song ));
+            }
+            return new LoadStats( reader.recordCount, 0, reader.size,
+                System.nanoTime() - startTime );
+        }
+    }
+
+    /**
+     * Reads the songs of a binary file one at a time, straight out of a
+     * mapping of the file.
+     */
+    public static class Reader implements SongReader
+    {
+        private final FileChannel channel;
+        private final long size;
+        private final long recordCount;
+        private final long recordStart;
+        private final int recordBytes;
+        // most records mapped at once
+        private final int recordsPerWindow;
+        private final MappedByteBuffer table;
+        // where each string starts in table, after its length
+        private final int[] stringStart;
+        // every string, when they are shared instead of read per record
+        private final String[] strings;
+
+        private MappedByteBuffer records;
+        private long windowStart; // number of the first record in records
+        private int windowRecords;
+        private long done;
+        private byte[] scratch = new byte[ 256 ];
+
+        /**
+         * Opens a binary file and checks its header
+         * @param fp song database file location
+         * @param share true to read every string once up front and share
+         * it between songs, false to read each song's strings as it is
+         * read, so only one number per string is kept in memory
+         * @throws FileNotFoundException if the file doesn't exist
+         * @throws IOException if the file can't be read or isn't valid
+         */
+        public Reader( String fp, boolean share ) throws IOException
+        {
+            Path path = Paths.get( fp );
+            if( !Files.exists( path ) )
+            {
+                throw new FileNotFoundException( fp );
+            }
+            channel = FileChannel.open( path, StandardOpenOption.READ );
+            try
+            {
+                size = channel.size();
+                if( size < HEADER_BYTES )
+                {
+                    throw new IOException( fp + " is too short to be a song "
+                        + "database" );
+                }
+                MappedByteBuffer header = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES );
+                for( int i = 0; i < MAGIC.length; i++ )
+                {
+                    if( header.get( i ) != MAGIC[ i ] )
+                    {
+                        throw new IOException( fp + " isn't a binary song "
+                            + "database" );
+                    }
+                }
+                int version = header.getInt( 4 );
+                if( version != VERSION && version != OLD_VERSION )
+                {
+                    throw new IOException( fp + " is version " + version
+                        + ", only versions " + OLD_VERSION + " and "
+                        + VERSION + " can be read" );
+                }
+                recordBytes = version == VERSION ? RECORD_BYTES
+                    : OLD_RECORD_BYTES;
+                recordsPerWindow = Integer.MAX_VALUE / recordBytes;
+                int stringCount = header.getInt( 8 );
+                recordCount = header.getLong( 12 );
+                long tableBytes = header.getLong( 20 );
+                recordStart = HEADER_BYTES + tableBytes;
+                if( tableBytes > Integer.MAX_VALUE || stringCount < 0
+                    || recordCount < 0
+                    || recordStart + recordCount * recordBytes > size )
+                {
+                    throw new IOException( fp + " is damaged" );
+                }
+                table = channel.map( FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES, tableBytes );
+                stringStart = findStrings( stringCount );
+                if( share )
+                {
+                    strings = new String[ stringCount ];
+                    for( int i = 0; i < stringCount; i++ )
+                    {
+                        strings[ i ] = decode( i );
+                    }
+                }
+                else
+                {
+                    strings = null;
+                }
+            }
+            catch( IOException | RuntimeException exception )
+            {
+                channel.close();
+                throw exception;
+            }
+        }
+
+        private int[] findStrings( int count ) throws IOException
+        {
+            int[] starts = new int[ count ];
+            int at = 0;
+            for( int i = 0; i < count; i++ )
+            {
+                if( table.limit() - at < 4 )
+                {
+                    throw new IOException( "String table is damaged" );
+                }
+                int length = table.getInt( at );
+                if( length < 0 || length > table.limit() - at - 4 )
+                {
+                    throw new IOException( "String table is damaged" );
+                }
+                starts[ i ] = at + 4;
+                at += 4 + length;
+            }
+            return starts;
+        }
+
+        private String decode( int id )
+        {
+            int length = table.getInt( stringStart[ id ] - 4 );
+            if( scratch.length < length )
+            {
+                scratch = new byte[ length ];
+            }
+            table.get( stringStart[ id ], scratch, 0, length );
+            return new String( scratch, 0, length, StandardCharsets.UTF_8 );
+        }
+
+        private String string( int id ) throws IOException
+        {
+            if( id < 0 || id >= stringStart.length )
+            {
+                throw new IOException( "Record refers to missing string "
+                    + id );
+            }
+            return strings != null ? strings[ id ] : decode( id );
+        }
+
+        /**
+         * @return the next song, or null after the last record
+         * @throws IOException if a record is damaged
+         */
+        public SongDetails next() throws IOException
+        {
+            if( done == recordCount )
+            {
+                return null;
+            }
+            if( done == windowStart + windowRecords )
+            {
+                windowStart = done;
+                windowRecords = (int) Math.min( recordsPerWindow,
+                    recordCount - done );
+                records = channel.map( FileChannel.MapMode.READ_ONLY,
+                    recordStart + done * recordBytes,
+                    (long) windowRecords * recordBytes );
+            }
+            int at = (int) ( done - windowStart ) * recordBytes;
+            done++;
+            return new SongDetails(
+                string( records.getInt( at )),
+                string( records.getInt( at + 4 )),
+                string( records.getInt( at + 8 )),
+                string( records.getInt( at + 12 )),
+                string( records.getInt( at + 16 )),
+                recordBytes == RECORD_BYTES ? records.getLong( at + 20 )
+                    : records.getInt( at + 20 ));
+        }
+
+        /**
+         * @return number of songs in the file
+         */
+        public long getRecordCount()
+        {
+            return recordCount;
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes songs in the binary format one at a time, so a catalog of
+     * any size can be written without holding it in memory. The string
+     * table and the records go to two temporary files that are joined
+     * behind the header at close(). Strings are only shared while they
+     * are among the most recently used, which catches the artists and
+     * albums that repeat, so a file written this way can be larger than
+     * one written by write( out, songs ) but reads the same.
+     */
+    static class StreamWriter
+    {
+        // most recently used strings remembered for sharing
+        private static final int SHARED_STRINGS = 1 << 16;
+
+        private final Path tablePath;
+        private final Path recordPath;
+        private final DataOutputStream table;
+        private final DataOutputStream records;
+        private final LinkedHashMap<String, Integer> recent =
+            new LinkedHashMap<String, Integer>( 1024, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Integer> eldest )
+            {
+                return size() > SHARED_STRINGS;
+            }
+        };
+        private int stringCount;
+        private long tableBytes;
+        private long recordCount;
+
+        /**
+         * Starts the temporary files
+         * @param folder folder to put them in
+         * @throws IOException if they can't be created
+         */
+        StreamWriter( Path folder ) throws IOException
+        {
+            tablePath = Files.createTempFile( folder, "songs", ".table" );
+            recordPath = Files.createTempFile( folder, "songs", ".records" );
+            table = new DataOutputStream( new BufferedOutputStream(
+                Files.newOutputStream( tablePath ), 1 << 16 ));
+            records = new DataOutputStream( new BufferedOutputStream(
+                Files.newOutputStream( recordPath ), 1 << 16 ));
+        }
+
+        void write( SongDetails song ) throws IOException
+        {
+            records.writeInt( idOf( song.getSongTitle() ));
+            records.writeInt( idOf( song.getItemCode() ));
+            records.writeInt( idOf( song.getDescription() ));
+            records.writeInt( idOf( song.getArtist() ));
+            records.writeInt( idOf( song.getAlbum() ));
+            records.writeLong( song.getPriceCents() );
+            recordCount++;
+        }
+
+        private int idOf( String field ) throws IOException
+        {
+            String text = field == null ? "" : field;
+            Integer id = recent.get( text );
+            if( id == null )
+            {
+                byte[] bytes = text.getBytes( StandardCharsets.UTF_8 );
+                table.writeInt( bytes.length );
+                table.write( bytes );
+                tableBytes += 4 + bytes.length;
+                id = stringCount++;
+                recent.put( text, id );
+            }
+            return id;
+        }
+
+        /**
+         * Writes the header, the string table and the records
+         * @param out stream to write to, not closed
+         * @throws IOException if the stream can't be written or the
+         * string table is too large
+         */
+        void finish( OutputStream out ) throws IOException
+        {
+            table.close();
+            records.close();
+            if( tableBytes > Integer.MAX_VALUE )
+            {
+                throw new IOException( "String table is larger than 2 GB" );
+            }
+            DataOutputStream data = new DataOutputStream( out );
+            data.write( MAGIC );
+            data.writeInt( VERSION );
+            data.writeInt( stringCount );
+            data.writeLong( recordCount );
+            data.writeLong( tableBytes );
+            data.writeInt( 0 ); // reserved
+            Files.copy( tablePath, data );
+            Files.copy( recordPath, data );
+            data.flush();
+        }
+
+        /**
+         * Deletes the temporary files
+         * @throws IOException if they can't be deleted
+         */
+        void discard() throws IOException
+        {
+            table.close();
+            records.close();
+            Files.deleteIfExists( tablePath );
+            Files.deleteIfExists( recordPath );
+        }
+    }
+
+    /**
+     * @param fp file location
+     * @return true if the file starts with the binary format's magic bytes
+     */
+    public static boolean isBinary( String fp )
+    {
+        byte[] start = new byte[ MAGIC.length ];
+        try( InputStream in = Files.newInputStream( Paths.get( fp )) )
+        {
+            int read = in.readNBytes( start, 0, start.length );
+            return read == start.length
+                && Arrays.equals( start, MAGIC );
+        }
+        catch( IOException exception )
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * This class compares bounded mode with loading every song. It prints
+ * the heap a catalog takes fully loaded and as a BoundedSongStore's
+ * index, then times lookups through the store: a hot set of songs
+ * looked up over and over, the way someone goes back and forth between
+ * a few songs in the combo box, and songs picked at random from the
+ * whole catalog, most of which have to be read from the file. The cache
+ * counts are printed after each. If the file doesn't exist a synthetic
+ * catalog is generated first.
+ *
+ * Usage: java BoundedBenchmark file.txt [rows] [hot songs]
+ * The hot set defaults to 1000 songs and the cache budget is
+ * -Dsongdb.cache.mb.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+public class BoundedBenchmark
+{
+    private static final int LOOKUPS = 200000;
+
+    /**
+     * Runs the benchmark
+     * @param args file location, the number of rows to generate and the
+     * size of the hot set
+     * @throws IOException if the file can't be read or written
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        String fp = args[ 0 ];
+        if( !new File( fp ).exists() )
+        {
+            long rows = args.length > 1 ? Long.parseLong( args[ 1 ] )
+                : 1000000;
+            System.out.println( "Generating " + rows + " songs in " + fp );
+            new SongCatalogGenerator( 42, 2000, 8 ).write( fp, rows );
+        }
+        int hot = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 1000;
+
+        long before = usedHeap();
+        TreeMap<String, SongDetails> songs =
+            new TreeMap<String, SongDetails>();
+        LoadStats loaded = SongFileParser.load( new FileInputStream( fp ),
+            songs );
+        long full = usedHeap() - before;
+        System.out.println( loaded );
+        System.out.printf( "Loaded:  %,14d heap bytes, %,.0f a song%n", full,
+            (double) full / songs.size() );
+        songs = null;
+
+        before = usedHeap();
+        try( BoundedSongStore store = new BoundedSongStore( fp ) )
+        {
+            System.out.println( store.open() );
+            long index = usedHeap() - before;
+            System.out.printf( "Indexed: %,14d heap bytes, %,.0f a song%n",
+                index, (double) index / store.size() );
+
+            int count = store.size();
+            Random random = new Random( 7 );
+            String[] hotCodes = new String[ Math.min( hot, count ) ];
+            for( int i = 0; i < hotCodes.length; i++ )
+            {
+                hotCodes[ i ] = store.getIndex().codeAt(
+                    random.nextInt( count ));
+            }
+            // warm up, which also fills the cache with the hot set
+            lookUp( store, hotCodes, random );
+            lookUp( store, null, random );
+            store.getCache().clear();
+            lookUp( store, hotCodes, random );
+
+            time( "hot", store, hotCodes, random );
+            time( "random", store, null, random );
+            System.out.printf( "Heap after lookups: %,d bytes over the "
+                + "index and cache%n", usedHeap() - before - index );
+        }
+    }
+
+    /**
+     * @param codes item codes to pick from, or null for any song
+     * @return mean nanoseconds a lookup took
+     */
+    private static double lookUp( BoundedSongStore store, String[] codes,
+        Random random ) throws IOException
+    {
+        int count = store.size();
+        long start = System.nanoTime();
+        for( int i = 0; i < LOOKUPS; i++ )
+        {
+            String code = codes != null
+                ? codes[ random.nextInt( codes.length ) ]
+                : store.getIndex().codeAt( random.nextInt( count ));
+            if( store.get( code ) == null )
+            {
+                throw new IllegalStateException( "No song " + code );
+            }
+        }
+        return (double) ( System.nanoTime() - start ) / LOOKUPS;
+    }
+
+    /**
+     * Times lookups and prints how many of them the cache answered
+     */
+    private static void time( String name, BoundedSongStore store,
+        String[] codes, Random random ) throws IOException
+    {
+        SongRecordCache cache = store.getCache();
+        long hits = cache.getHits();
+        long evictions = cache.getEvictions();
+        double nanos = lookUp( store, codes, random );
+        System.out.printf( "%-8s %8.2f us a lookup, %5.1f%% from the cache, "
+            + "%,d evictions%n", name, nanos / 1e3,
+            100.0 * ( cache.getHits() - hits ) / LOOKUPS,
+            cache.getEvictions() - evictions );
+        System.out.println( cache );
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * This class is the song catalog for -Dsongdb.bounded=true, which keeps
+ * the heap the same size however large the database file grows. Only a
+ * SongFileIndex of item codes and file offsets is in memory. A song is
+ * read from the file when it is asked for, through a SongRecordCache
+ * that keeps the songs used most recently within -Dsongdb.cache.mb, so
+ * the songs someone keeps going back to are found without touching the
+ * file.
+ *
+ * The store is read only: search, the per-field indexes, deltas and
+ * edits all need every song in memory, so they are turned off while the
+ * GUI runs this way. Any thread can read from it.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+public class BoundedSongStore implements AutoCloseable
+{
+    private static final boolean ENABLED = Boolean.getBoolean(
+        "songdb.bounded" );
+
+    private final String filePath;
+    private final SongRecordCache cache;
+    // null until open()
+    private volatile SongFileIndex index;
+
+    /**
+     * Constructor, with the cache budget from -Dsongdb.cache.mb. Nothing
+     * is read until open().
+     * @param fp song database file location
+     */
+    public BoundedSongStore( String fp )
+    {
+        this( fp, SongRecordCache.BUDGET_BYTES );
+    }
+
+    /**
+     * Constructor. Nothing is read until open().
+     * @param fp song database file location
+     * @param budgetBytes most heap bytes cached songs may take
+     */
+    public BoundedSongStore( String fp, long budgetBytes )
+    {
+        filePath = fp;
+        cache = new SongRecordCache( budgetBytes );
+    }
+
+    /**
+     * @return true if -Dsongdb.bounded=true
+     */
+    public static boolean isEnabled()
+    {
+        return ENABLED;
+    }
+
+    /**
+     * Indexes the file, sorting it and folding its journal in first if
+     * it needs it
+     * @return numbers from indexing the file
+     * @throws IOException if the file can't be read or indexed
+     */
+    public LoadStats open() throws IOException
+    {
+        SongFileIndex opened = SongFileIndex.open( filePath );
+        SongFileIndex old = index;
+        index = opened;
+        cache.clear();
+        if( old != null )
+        {
+            old.close();
+        }
+        SongMetrics.get().recordLoad( opened.getStats() );
+        return opened.getStats();
+    }
+
+    /**
+     * Finds a song in the cache, or reads it from the file and caches it
+     * @param itemCode item code of a song
+     * @return the song, or null if there is none with that item code
+     * @throws IOException if the song's row can't be read
+     */
+    public SongDetails get( String itemCode ) throws IOException
+    {
+        SongDetails song = cache.get( itemCode );
+        if( song != null )
+        {
+            return song;
+        }
+        SongFileIndex songs = index;
+        int at = songs == null ? -1 : songs.find( itemCode );
+        if( at < 0 )
+        {
+            return null;
+        }
+        song = songs.read( at );
+        cache.put( song );
+        return song;
+    }
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return true if there is a song with that item code
+     */
+    public boolean containsKey( String itemCode )
+    {
+        SongFileIndex songs = index;
+        return songs != null && songs.find( itemCode ) >= 0;
+    }
+
+    /**
+     *
+     * @return number of songs
+     */
+    public int size()
+    {
+        SongFileIndex songs = index;
+        return songs == null ? 0 : songs.size();
+    }
+
+    /**
+     * @return item codes of every song, in order, read from the index as
+     * they are asked for
+     */
+    public List<String> codes()
+    {
+        SongFileIndex songs = index;
+        return songs == null ? Collections.<String>emptyList()
+            : songs.codes();
+    }
+
+    /**
+     * A read only view of the songs, keyed by item code, for the song
+     * list. get() goes through the cache. A walk over the view reads
+     * every row from the file without caching them, so it doesn't push
+     * the songs in use out of the cache.
+     * @return the view, whose methods throw UncheckedIOException if the
+     * file can't be read
+     */
+    public Map<String, SongDetails> view()
+    {
+        return new AbstractMap<String, SongDetails>()
+        {
+            public SongDetails get( Object itemCode )
+            {
+                try
+                {
+                    return itemCode instanceof String
+                        ? BoundedSongStore.this.get( (String) itemCode )
+                        : null;
+                }
+                catch( IOException exception )
+                {
+                    throw new UncheckedIOException( exception );
+                }
+            }
+
+            public boolean containsKey( Object itemCode )
+            {
+                return itemCode instanceof String
+                    && BoundedSongStore.this.containsKey( (String) itemCode );
+            }
+
+            public int size()
+            {
+                return BoundedSongStore.this.size();
+            }
+
+            public Set<Map.Entry<String, SongDetails>> entrySet()
+            {
+                return new AbstractSet<Map.Entry<String, SongDetails>>()
+                {
+                    public Iterator<Map.Entry<String, SongDetails>> iterator()
+                    {
+                        return new Walk( index );
+                    }
+
+                    public int size()
+                    {
+                        return BoundedSongStore.this.size();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return the cache of songs read from the file
+     */
+    public SongRecordCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @return the index, or null until open()
+     */
+    public SongFileIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * @return song database file location
+     */
+    public String getFilePath()
+    {
+        return filePath;
+    }
+
+    /**
+     * Closes the file
+     */
+    public void close() throws IOException
+    {
+        SongFileIndex songs = index;
+        if( songs != null )
+        {
+            songs.close();
+        }
+    }
+
+    /**
+     * Reads every row of one index in order
+     */
+    private static class Walk
+        implements Iterator<Map.Entry<String, SongDetails>>
+    {
+        private final SongFileIndex songs;
+        private int next;
+
+        Walk( SongFileIndex walked )
+        {
+            songs = walked;
+        }
+
+        public boolean hasNext()
+        {
+            return songs != null && next < songs.size();
+        }
+
+        public Map.Entry<String, SongDetails> next()
+        {
+            if( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            try
+            {
+                SongDetails song = songs.read( next++ );
+                return new AbstractMap.SimpleImmutableEntry<String,
+                    SongDetails>( song.getItemCode(), song );
+            }
+            catch( IOException exception )
+            {
+                throw new UncheckedIOException( exception );
+            }
+        }
+    }
+}
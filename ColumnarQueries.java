@@ -0,0 +1,72 @@
+/**
+ * This class holds synthetic songs both as a TreeMap of SongDetails, the
+ * way the GUI holds them, and as SongColumns, sequential and parallel,
+ * and runs the same queries over each for bench.ColumnarBenchmark.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.TreeMap;
+import bench.ColumnWorkload;
+
+
+public class ColumnarQueries implements ColumnWorkload
+{
+    // the query: one artist's songs under $1.50
+    private static final String ARTIST = "Artist 7";
+    private static final long BELOW_CENTS = 150;
+
+    private TreeMap<String, SongDetails> songs;
+    private SongColumns sequential;
+    private SongColumns parallel;
+
+    public void setUp( int rows )
+    {
+        SongCatalogGenerator generator = new SongCatalogGenerator( 42, 2000,
+            8 );
+        songs = new TreeMap<String, SongDetails>();
+        for( int i = 0; i < rows; i++ )
+        {
+            SongDetails song = generator.nextSong( i );
+            songs.put( song.getItemCode(), song );
+        }
+        sequential = new SongColumns( songs.values(), false );
+        parallel = new SongColumns( songs.values(), true );
+    }
+
+    public long treeMapCount()
+    {
+        long count = 0;
+        for( SongDetails song : songs.values() )
+        {
+            if( song.getArtist().equals( ARTIST )
+                && song.getPriceCents() < BELOW_CENTS )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long columnsCount( boolean inParallel )
+    {
+        return ( inParallel ? parallel : sequential ).byArtistBelow( ARTIST,
+            BELOW_CENTS ).length;
+    }
+
+    public long treeMapTotal()
+    {
+        long total = 0;
+        for( SongDetails song : songs.values() )
+        {
+            total += song.getPriceCents();
+        }
+        return total;
+    }
+
+    public long columnsTotal( boolean inParallel )
+    {
+        return new PriceAggregates( inParallel ? parallel : sequential )
+            .totalCents();
+    }
+}
@@ -0,0 +1,668 @@
+/**
+ * This class reads and writes song database files as compressed comma
+ * separated text. The text is cut into blocks on record boundaries and
+ * each block is deflated on its own, so a block can be inflated without
+ * the ones before it and a file can be loaded on several cores:
+ *
+ *   header   "SDBZ", version, block size, compression level (16 bytes)
+ *   blocks   text length, compressed length, CRC-32 of the text, then
+ *            the compressed bytes (raw deflate, 12 bytes plus data)
+ *   end      a block header of three zeros
+ *
+ * Every block holds whole records, about -Dsongdb.compress.blockKB of
+ * text (1024 by default), deflated at -Dsongdb.compress.level (0 to 9, 6
+ * by default). A record whose quoted fields have line breaks in them is
+ * never split between blocks. Artist, album and description text repeats
+ * from line to line, so the blocks compress well.
+ *
+ * Plain gzip files, *.gz or anything starting with the gzip magic bytes,
+ * can be read and written too, but only from start to finish.
+ * All numbers are big-endian.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+
+public class CompressedSongFormat
+{
+    // first four bytes of every block compressed song database file
+    static final byte[] MAGIC = { 'S', 'D', 'B', 'Z' };
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int BLOCK_HEADER_BYTES = 12;
+    // first two bytes of every gzip file
+    static final byte[] GZIP_MAGIC = { (byte) 0x1f, (byte) 0x8b };
+
+    static final int LEVEL = Integer.getInteger( "songdb.compress.level",
+        6 );
+    static final int BLOCK_BYTES = Integer.getInteger(
+        "songdb.compress.blockKB", 1024 ) * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // blocks being inflated at once, per thread, while loading
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    /**
+     * Opens a song database file as comma separated text, inflating it
+     * if it is compressed
+     * @param fp file location
+     * @param format the file's format; not BINARY
+     * @return the text
+     * @throws IOException if the file can't be opened or its header read
+     */
+    public static InputStream openText( String fp, FileFormat format )
+        throws IOException
+    {
+        return openText( new FileInputStream( fp ), format );
+    }
+
+    /**
+     * Reads a song database stream as comma separated text, inflating it
+     * if it is compressed
+     * @param file the file's bytes, closed if the header can't be read
+     * @param format the file's format; not BINARY
+     * @return the text
+     * @throws IOException if the header can't be read
+     */
+    public static InputStream openText( InputStream file, FileFormat format )
+        throws IOException
+    {
+        try
+        {
+            if( format == FileFormat.COMPRESSED )
+            {
+                return new BlockInputStream( file );
+            }
+            if( format == FileFormat.GZIP )
+            {
+                return new GZIPInputStream( file, BUFFER_SIZE );
+            }
+            return file;
+        }
+        catch( IOException exception )
+        {
+            file.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Wraps a stream so comma separated text written to it is stored in
+     * the given format. finish() must be called once the text is written.
+     * @param out the file
+     * @param format COMPRESSED, GZIP, or CSV for no compression
+     * @return the stream to write the text to
+     * @throws IOException if the header can't be written
+     */
+    public static OutputStream compress( OutputStream out, FileFormat format )
+        throws IOException
+    {
+        if( format == FileFormat.COMPRESSED )
+        {
+            return new BlockOutputStream( out, LEVEL, BLOCK_BYTES );
+        }
+        if( format == FileFormat.GZIP )
+        {
+            return new GZIPOutputStream( out, BUFFER_SIZE )
+            {
+                {
+                    def.setLevel( LEVEL );
+                }
+            };
+        }
+        return out;
+    }
+
+    /**
+     * Writes whatever compress() is still holding, and the end of the
+     * compressed stream, without closing the file under it
+     * @param out a stream compress() returned
+     * @throws IOException if it can't be written
+     */
+    public static void finish( OutputStream out ) throws IOException
+    {
+        if( out instanceof BlockOutputStream )
+        {
+            ( (BlockOutputStream) out ).finish();
+        }
+        else if( out instanceof DeflaterOutputStream )
+        {
+            ( (DeflaterOutputStream) out ).finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Loads every song in a block compressed file into the given map,
+     * inflating and parsing blocks on several threads while this one
+     * reads the file and puts the songs in, in file order. A later row
+     * with the same item code replaces an earlier one.
+     * @param fp song database file location
+     * @param songs map the songs are put into, keyed by item code
+     * @param dict dictionary to encode artist and album with, or null
+     * @param threads number of threads to inflate and parse with
+     * @return numbers from the load; bytes counts the text inflated
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read or isn't valid
+     */
+    public static LoadStats load( String fp, Map<String, SongDetails> songs,
+        SongDictionary dict, int threads ) throws IOException
+    {
+        Path path = Paths.get( fp );
+        if( !Files.isRegularFile( path ) )
+        {
+            throw new FileNotFoundException( fp );
+        }
+        long startTime = System.nanoTime();
+        int workers = Math.max( 1, threads );
+        ForkJoinPool pool = new ForkJoinPool( workers );
+        ArrayDeque<CompletableFuture<Block>> inFlight =
+            new ArrayDeque<CompletableFuture<Block>>();
+        // rows, malformed rows and text of the blocks merged so far
+        Block merged = new Block();
+        try( FileChannel channel = FileChannel.open( path,
+            StandardOpenOption.READ ) )
+        {
+            long position = checkHeader( channel );
+            ByteBuffer header = ByteBuffer.allocate( BLOCK_HEADER_BYTES );
+            while( true )
+            {
+                readFully( channel, header.clear(), position );
+                int textLength = header.getInt( 0 );
+                int compressedLength = header.getInt( 4 );
+                int crc = header.getInt( 8 );
+                if( textLength == 0 && compressedLength == 0 )
+                {
+                    break;
+                }
+                if( textLength < 0 || compressedLength <= 0 )
+                {
+                    throw new IOException( "Bad block at " + position
+                        + " in " + fp );
+                }
+                byte[] compressed = new byte[ compressedLength ];
+                long at = position;
+                readFully( channel, ByteBuffer.wrap( compressed ),
+                    position + BLOCK_HEADER_BYTES );
+                position += BLOCK_HEADER_BYTES + compressedLength;
+
+                inFlight.add( CompletableFuture.supplyAsync( () ->
+                    parse( inflate( compressed, textLength, crc, at, fp ),
+                        dict ), pool ));
+                if( inFlight.size() >= workers * BLOCKS_PER_THREAD )
+                {
+                    merged.merge( join( inFlight.remove() ), songs );
+                }
+            }
+            while( !inFlight.isEmpty() )
+            {
+                merged.merge( join( inFlight.remove() ), songs );
+            }
+            return new LoadStats( merged.rows, merged.malformed,
+                merged.textBytes, System.nanoTime() - startTime );
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return where the first block starts
+     */
+    private static long checkHeader( FileChannel channel ) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES );
+        readFully( channel, header, 0 );
+        byte[] magic = new byte[ MAGIC.length ];
+        header.get( 0, magic );
+        if( !Arrays.equals( magic, MAGIC ) )
+        {
+            throw new IOException( "Not a compressed song database file" );
+        }
+        if( header.getInt( 4 ) != VERSION )
+        {
+            throw new IOException( "Unknown compressed format version "
+                + header.getInt( 4 ));
+        }
+        return HEADER_BYTES;
+    }
+
+    private static void readFully( FileChannel channel, ByteBuffer into,
+        long position ) throws IOException
+    {
+        while( into.hasRemaining() )
+        {
+            int read = channel.read( into, position );
+            if( read < 0 )
+            {
+                throw new EOFException( "Compressed file ends mid block" );
+            }
+            position += read;
+        }
+    }
+
+    private static Block join( CompletableFuture<Block> future )
+        throws IOException
+    {
+        try
+        {
+            return future.join();
+        }
+        catch( CompletionException exception )
+        {
+            if( exception.getCause() instanceof UncheckedIOException )
+            {
+                throw ( (UncheckedIOException) exception.getCause() )
+                    .getCause();
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Inflates one block and checks it against its CRC
+     * @param at where the block starts in the file, for the error
+     */
+    static byte[] inflate( byte[] compressed, int textLength, int crc,
+        long at, String fp )
+    {
+        byte[] text = new byte[ textLength ];
+        Inflater inflater = new Inflater( true );
+        try
+        {
+            inflater.setInput( compressed );
+            int done = 0;
+            while( done < textLength && !inflater.finished() )
+            {
+                int inflated = inflater.inflate( text, done,
+                    textLength - done );
+                if( inflated == 0 && inflater.needsInput() )
+                {
+                    break;
+                }
+                done += inflated;
+            }
+            CRC32 check = new CRC32();
+            check.update( text, 0, done );
+            if( done != textLength || (int) check.getValue() != crc )
+            {
+                throw new UncheckedIOException( new IOException(
+                    "Corrupt block at " + at + " in " + fp ));
+            }
+            return text;
+        }
+        catch( DataFormatException exception )
+        {
+            throw new UncheckedIOException( new IOException(
+                "Corrupt block at " + at + " in " + fp, exception ));
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static Block parse( byte[] text, SongDictionary dict )
+    {
+        SongFileParser parser = new SongFileParser( ByteBuffer.wrap( text ));
+        parser.setDictionary( dict );
+        Block block = new Block();
+        try
+        {
+            SongDetails nextSong;
+            while( ( nextSong = parser.next() ) != null )
+            {
+                block.songs.add( nextSong );
+            }
+        }
+        catch( IOException exception )
+        {
+            // nothing is read from a stream, so this doesn't happen
+            throw new UncheckedIOException( exception );
+        }
+        block.rows = parser.rows();
+        block.malformed = parser.malformed();
+        block.textBytes = text.length;
+        return block;
+    }
+
+    /**
+     * @param fp file location
+     * @return true if the file starts with the block format's magic bytes
+     */
+    public static boolean isCompressed( String fp )
+    {
+        return startsWith( fp, MAGIC );
+    }
+
+    /**
+     * @param fp file location
+     * @return true if the file starts with the gzip magic bytes
+     */
+    public static boolean isGzip( String fp )
+    {
+        return startsWith( fp, GZIP_MAGIC );
+    }
+
+    private static boolean startsWith( String fp, byte[] magic )
+    {
+        byte[] start = new byte[ magic.length ];
+        try( InputStream in = Files.newInputStream( Paths.get( fp )) )
+        {
+            int read = in.readNBytes( start, 0, start.length );
+            return read == start.length && Arrays.equals( start, magic );
+        }
+        catch( IOException exception )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * The songs parsed from one block, in block order
+     */
+    private static class Block
+    {
+        final List<SongDetails> songs = new ArrayList<SongDetails>();
+        long rows;
+        long malformed;
+        long textBytes;
+
+        /**
+         * Puts a later block's songs into the map and adds up its counts
+         */
+        void merge( Block later, Map<String, SongDetails> map )
+        {
+            for( SongDetails song : later.songs )
+            {
+                map.put( song.getItemCode(), song );
+            }
+            rows += later.rows;
+            malformed += later.malformed;
+            textBytes += later.textBytes;
+        }
+    }
+
+    /**
+     * Cuts the text written to it into blocks of whole records and
+     * deflates each one as it fills
+     */
+    static class BlockOutputStream extends FilterOutputStream
+    {
+        private final Deflater deflater;
+        private final int blockBytes;
+        private final CRC32 crc = new CRC32();
+        private byte[] text;
+        private int length;
+        private byte[] compressed;
+        private boolean finished;
+
+        /**
+         * Writes the header straight away
+         * @param file stream the blocks are written to, not closed
+         * @param level deflate level, 0 to 9
+         * @param blockSize text in each block, a little less to end on a
+         * record boundary, or more if one record is longer than this
+         * @throws IOException if the header can't be written
+         */
+        BlockOutputStream( OutputStream file, int level, int blockSize )
+            throws IOException
+        {
+            super( file );
+            deflater = new Deflater( level, true );
+            blockBytes = blockSize;
+            text = new byte[ blockSize ];
+            compressed = new byte[ blockSize / 2 ];
+            ByteBuffer header = ByteBuffer.allocate( HEADER_BYTES );
+            header.put( MAGIC ).putInt( VERSION ).putInt( blockSize )
+                .putInt( level );
+            out.write( header.array() );
+        }
+
+        public void write( int b ) throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException
+        {
+            while( len > 0 )
+            {
+                if( length == text.length )
+                {
+                    cutBlock();
+                }
+                int copied = Math.min( len, text.length - length );
+                System.arraycopy( b, off, text, length, copied );
+                length += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        /**
+         * Deflates the text up to the last line break that ends a record
+         * and keeps the rest for the next block. A line break inside a
+         * quoted field doesn't end one: the text starts on a record, so a
+         * line break ends one when an even number of quotes comes before
+         * it, an escaped quote being written doubled. A record longer
+         * than a block makes the buffer grow until it ends.
+         */
+        private void cutBlock() throws IOException
+        {
+            int cut = 0;
+            boolean quoted = false;
+            for( int i = 0; i < length; i++ )
+            {
+                if( text[ i ] == '"' )
+                {
+                    quoted = !quoted;
+                }
+                else if( text[ i ] == '\n' && !quoted )
+                {
+                    cut = i + 1;
+                }
+            }
+            if( cut == 0 )
+            {
+                text = Arrays.copyOf( text, text.length * 2 );
+                return;
+            }
+            writeBlock( cut );
+            System.arraycopy( text, cut, text, 0, length - cut );
+            length -= cut;
+            if( text.length > blockBytes && length < blockBytes )
+            {
+                text = Arrays.copyOf( text, blockBytes );
+            }
+        }
+
+        private void writeBlock( int textLength ) throws IOException
+        {
+            deflater.reset();
+            deflater.setInput( text, 0, textLength );
+            deflater.finish();
+            int size = 0;
+            while( !deflater.finished() )
+            {
+                if( size == compressed.length )
+                {
+                    compressed = Arrays.copyOf( compressed,
+                        compressed.length * 2 );
+                }
+                size += deflater.deflate( compressed, size,
+                    compressed.length - size );
+            }
+            crc.reset();
+            crc.update( text, 0, textLength );
+            ByteBuffer header = ByteBuffer.allocate( BLOCK_HEADER_BYTES );
+            header.putInt( textLength ).putInt( size )
+                .putInt( (int) crc.getValue() );
+            out.write( header.array() );
+            out.write( compressed, 0, size );
+        }
+
+        /**
+         * Writes the last block and the end marker, leaving the file open
+         * @throws IOException if they can't be written
+         */
+        void finish() throws IOException
+        {
+            if( finished )
+            {
+                return;
+            }
+            finished = true;
+            if( length > 0 )
+            {
+                writeBlock( length );
+                length = 0;
+            }
+            out.write( new byte[ BLOCK_HEADER_BYTES ] );
+            out.flush();
+            deflater.end();
+        }
+
+        public void close() throws IOException
+        {
+            finish();
+            super.close();
+        }
+    }
+
+    /**
+     * Inflates a block compressed file one block at a time
+     */
+    static class BlockInputStream extends InputStream
+    {
+        private final DataInputStream in;
+        private byte[] text = new byte[ 0 ];
+        private int position;
+        private int length;
+        private long offset = HEADER_BYTES;
+        private boolean ended;
+
+        /**
+         * Reads the header straight away
+         * @param file the compressed file, closed by close()
+         * @throws IOException if the header can't be read or isn't one
+         */
+        BlockInputStream( InputStream file ) throws IOException
+        {
+            in = new DataInputStream( new BufferedInputStream( file,
+                BUFFER_SIZE ));
+            byte[] magic = new byte[ MAGIC.length ];
+            in.readFully( magic );
+            if( !Arrays.equals( magic, MAGIC ) )
+            {
+                throw new IOException(
+                    "Not a compressed song database file" );
+            }
+            int version = in.readInt();
+            if( version != VERSION )
+            {
+                throw new IOException( "Unknown compressed format version "
+                    + version );
+            }
+            in.readInt(); // block size
+            in.readInt(); // level
+        }
+
+        public int read() throws IOException
+        {
+            byte[] one = new byte[ 1 ];
+            return read( one, 0, 1 ) < 0 ? -1 : one[ 0 ] & 0xff;
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if( len == 0 )
+            {
+                return 0;
+            }
+            while( position == length )
+            {
+                if( ended || !nextBlock() )
+                {
+                    return -1;
+                }
+            }
+            int copied = Math.min( len, length - position );
+            System.arraycopy( text, position, b, off, copied );
+            position += copied;
+            return copied;
+        }
+
+        /**
+         * @return false once the end marker is reached
+         */
+        private boolean nextBlock() throws IOException
+        {
+            int textLength = in.readInt();
+            int compressedLength = in.readInt();
+            int crc = in.readInt();
+            if( textLength == 0 && compressedLength == 0 )
+            {
+                ended = true;
+                return false;
+            }
+            if( textLength < 0 || compressedLength <= 0 )
+            {
+                throw new IOException( "Bad block at " + offset );
+            }
+            byte[] compressed = new byte[ compressedLength ];
+            in.readFully( compressed );
+            try
+            {
+                text = inflate( compressed, textLength, crc, offset,
+                    "the file" );
+            }
+            catch( UncheckedIOException exception )
+            {
+                throw exception.getCause();
+            }
+            offset += BLOCK_HEADER_BYTES + compressedLength;
+            position = 0;
+            length = textLength;
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
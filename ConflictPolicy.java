@@ -0,0 +1,48 @@
+/**
+ * This enum lists what SongDelta does when a delta file changes a song
+ * the catalog already has. Songs the catalog doesn't have are always
+ * added. The policy is picked with -Dsongdb.delta.policy or on the
+ * upsert command line, as overwrite or keep-existing.
+ *
+ * There is no newest-wins policy: neither the songs nor the rows of a
+ * delta file carry a time of their own, so there is nothing to compare
+ * one song's change with another's by.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+public enum ConflictPolicy
+{
+    // the delta's song or delete always wins
+    OVERWRITE,
+    // songs already in the catalog are never changed or deleted
+    KEEP_EXISTING;
+
+    /**
+     * @return true if the delta's changes replace and delete songs the
+     * catalog already has
+     */
+    public boolean overwrites()
+    {
+        return this == OVERWRITE;
+    }
+
+    /**
+     * @param name policy name, such as keep-existing
+     * @return the policy with that name
+     */
+    public static ConflictPolicy fromName( String name )
+    {
+        return valueOf( name.trim().replace( '-', '_' ).toUpperCase() );
+    }
+
+    /**
+     * Reads the policy from the songdb.delta.policy system property
+     * @return the chosen policy, OVERWRITE if none was given
+     */
+    public static ConflictPolicy fromProperty()
+    {
+        return fromName( System.getProperty( "songdb.delta.policy",
+            "overwrite" ));
+    }
+}
@@ -0,0 +1,63 @@
+
+/**
+ * This enum lists the formats a song database file can be stored in.
+ * The format of an existing file is found from its first bytes, and a
+ * new or empty file's format from its name.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+
+
+public enum FileFormat
+{
+    // comma separated text, one song per line
+    CSV,
+    // BinarySongFormat, used for new files named *.sdb
+    BINARY,
+    // comma separated text in blocks deflated one by one,
+    // CompressedSongFormat, used for new files named *.sdbz
+    COMPRESSED,
+    // comma separated text gzipped as one stream, for files named *.gz
+    GZIP;
+
+    /**
+     * Works out the format of a song database file
+     * @param fp file location
+     * @return the file's format
+     */
+    public static FileFormat detect( String fp )
+    {
+        if( new File( fp ).length() > 0 )
+        {
+            if( BinarySongFormat.isBinary( fp ) )
+            {
+                return BINARY;
+            }
+            if( CompressedSongFormat.isCompressed( fp ) )
+            {
+                return COMPRESSED;
+            }
+            return CompressedSongFormat.isGzip( fp ) ? GZIP : CSV;
+        }
+        if( fp.endsWith( ".sdb" ) )
+        {
+            return BINARY;
+        }
+        if( fp.endsWith( ".sdbz" ) )
+        {
+            return COMPRESSED;
+        }
+        return fp.endsWith( ".gz" ) ? GZIP : CSV;
+    }
+
+    /**
+     * @return true if the songs are stored as comma separated text, even
+     * if it is compressed
+     */
+    public boolean isText()
+    {
+        return this != BINARY;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * This class compares the song database formats on the same catalog:
+ * comma separated text, binary, gzip, and block compressed at several
+ * deflate levels. It prints the size of each file against the text
+ * file's, how long it took to write, and the best of several load
+ * times. Block compressed files are loaded both one block after another
+ * and on -Dsongdb.threads threads. If the text file doesn't exist a
+ * synthetic catalog is generated first.
+ *
+ * Usage: java FormatBenchmark file.txt [rows] [levels]
+ * The levels default to 1,6,9.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.TreeMap;
+
+
+public class FormatBenchmark
+{
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    /**
+     * Runs the benchmark
+     * @param args text file location, the number of rows to generate and
+     * the deflate levels to try
+     * @throws IOException if a file can't be read or written
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        String csv = args[ 0 ];
+        if( !new File( csv ).exists() )
+        {
+            long rows = args.length > 1 ? Long.parseLong( args[ 1 ] )
+                : 1000000;
+            System.out.println( "Generating " + rows + " songs in " + csv );
+            new SongCatalogGenerator( 42, 2000, 8 ).write( csv, rows );
+        }
+        String levels = args.length > 2 ? args[ 2 ] : "1,6,9";
+        TreeMap<String, SongDetails> songs = new TreeMap<String, SongDetails>();
+        SongFormatConverter.load( csv, songs );
+        long csvBytes = new File( csv ).length();
+        int threads = LoadMode.threadsFromProperty();
+
+        System.out.printf( "%-16s %14s %7s %10s %12s %12s%n", "format",
+            "bytes", "size", "write ms", "load ms", "parallel ms" );
+        print( "csv", csv, csvBytes, 0, best( csv, false ), 0 );
+
+        String binary = csv + ".sdb";
+        long start = System.nanoTime();
+        SongFileWriter.write( binary, songs.values(), FileFormat.BINARY );
+        print( "binary", binary, csvBytes, System.nanoTime() - start,
+            best( binary, false ), 0 );
+
+        String gzip = csv + ".gz";
+        start = System.nanoTime();
+        SongFileWriter.write( gzip, songs.values(), FileFormat.GZIP );
+        print( "gzip", gzip, csvBytes, System.nanoTime() - start,
+            best( gzip, false ), 0 );
+
+        for( String level : levels.split( "," ))
+        {
+            String compressed = csv + ".l" + level.trim() + ".sdbz";
+            start = System.nanoTime();
+            try( OutputStream file = new FileOutputStream( compressed ) )
+            {
+                CompressedSongFormat.BlockOutputStream out =
+                    new CompressedSongFormat.BlockOutputStream( file,
+                        Integer.parseInt( level.trim() ),
+                        CompressedSongFormat.BLOCK_BYTES );
+                SongFileWriter.writeText( out, songs.values() );
+                out.finish();
+            }
+            print( "blocks, level " + level.trim(), compressed, csvBytes,
+                System.nanoTime() - start, best( compressed, false ),
+                best( compressed, true ));
+        }
+        System.out.println( "Parallel loads used " + threads + " threads" );
+    }
+
+    private static void print( String name, String fp, long csvBytes,
+        long writeNanos, double loadMillis, double parallelMillis )
+    {
+        long bytes = new File( fp ).length();
+        System.out.printf( "%-16s %,14d %6.1f%% %10s %12.1f %12s%n", name,
+            bytes, 100.0 * bytes / csvBytes, writeNanos == 0 ? "-"
+                : String.format( "%.1f", writeNanos / 1e6 ), loadMillis,
+            parallelMillis == 0 ? "-"
+                : String.format( "%.1f", parallelMillis ));
+    }
+
+    /**
+     * @param parallel true to load a block compressed file on several
+     * threads, false to read it from start to finish
+     * @return the best load time in milliseconds
+     */
+    private static double best( String fp, boolean parallel )
+        throws IOException
+    {
+        FileFormat format = FileFormat.detect( fp );
+        double best = Double.MAX_VALUE;
+        for( int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++ )
+        {
+            TreeMap<String, SongDetails> songs =
+                new TreeMap<String, SongDetails>();
+            LoadStats stats;
+            if( parallel )
+            {
+                stats = CompressedSongFormat.load( fp, songs, null,
+                    LoadMode.threadsFromProperty() );
+            }
+            else if( format == FileFormat.BINARY )
+            {
+                stats = BinarySongFormat.load( fp, songs, null );
+            }
+            else
+            {
+                stats = SongFileParser.load( CompressedSongFormat.openText(
+                    new FileInputStream( fp ), format ), songs );
+            }
+            if( run >= WARMUP_RUNS )
+            {
+                best = Math.min( best, stats.getNanos() / 1e6 );
+            }
+        }
+        return best;
+    }
+}
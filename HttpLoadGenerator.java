@@ -0,0 +1,327 @@
+
+/**
+ * This class drives SongHttpService with many clients at once over
+ * localhost and reports the throughput and the latencies the clients
+ * saw, along with the service's own /stats. Eight requests in ten get
+ * one song by item code, one gets a page of an artist's songs and one a
+ * page of the whole catalog.
+ *
+ * Given a URL it runs against a service that is already up, such as
+ * the GUI's with -Dsongdb.http.port or SongDatabaseCli serve. Given a
+ * database file it reads the file itself, without its journal, serves it
+ * on a free port and, while the clients run, edits songs the way the GUI
+ * would from one other thread, up to a thousand a second: each edit
+ * gives a song a new version number in both its title and its
+ * description, and moves it to another artist. Every response is
+ * checked, and a song whose title and description disagree, or an
+ * artist page with another artist's song on it, is counted as a torn
+ * read. Nothing is written to the file.
+ *
+ * Usage: java HttpLoadGenerator url|file [seconds] [clients]
+ * The run lasts 10 seconds with 16 clients if they aren't given.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class HttpLoadGenerator
+{
+    private static final Pattern CODE = Pattern.compile(
+        "\"itemCode\":\"((?:[^\"\\\\]|\\\\.)*)\"" );
+    private static final Pattern ARTIST = Pattern.compile(
+        "\"artist\":\"((?:[^\"\\\\]|\\\\.)*)\"" );
+    private static final Pattern EDIT = Pattern.compile(
+        "\"title\":\"Edit (\\d+)\",\"description\":\"([^\"]*)\"" );
+    // songs to learn item codes and artists from, for a running service
+    private static final int SAMPLE_PAGES = 20;
+
+    private final String base;
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final List<String> codes = new ArrayList<String>();
+    private final List<String> artists = new ArrayList<String>();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder torn = new LongAdder();
+    private volatile long edits;
+
+    /**
+     * @param url where the service is, like http://127.0.0.1:8080
+     */
+    private HttpLoadGenerator( String url )
+    {
+        base = url.endsWith( "/" ) ? url.substring( 0, url.length() - 1 )
+            : url;
+    }
+
+    /**
+     * Runs the load
+     * @param args the service's URL or a database file, how many seconds
+     * to run and how many clients to run at once
+     * @throws IOException if the file can't be read or the service
+     * answered the first requests with an error
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main( String[] args )
+        throws IOException, InterruptedException
+    {
+        if( args.length == 0 )
+        {
+            System.out.println( "Usage: java HttpLoadGenerator url|file "
+                + "[seconds] [clients]" );
+            return;
+        }
+        int seconds = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+        int clients = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 16;
+
+        if( args[ 0 ].startsWith( "http:" ))
+        {
+            HttpLoadGenerator generator = new HttpLoadGenerator( args[ 0 ] );
+            generator.sample();
+            generator.run( seconds, clients, null );
+            return;
+        }
+
+        SongCatalog catalog = new SongCatalog( args[ 0 ] );
+        try( SongReader songs = SongReader.open( args[ 0 ] ))
+        {
+            List<SongDetails> batch = new ArrayList<SongDetails>();
+            SongDetails song;
+            while( ( song = songs.next() ) != null )
+            {
+                batch.add( song );
+            }
+            catalog.putAll( batch );
+        }
+        SongHttpService.useNoDelay();
+        SongHttpService service = new SongHttpService( catalog, 0 );
+        service.start();
+        HttpLoadGenerator generator = new HttpLoadGenerator( "http://"
+            + service.getAddress().getHostString() + ":"
+            + service.getAddress().getPort() );
+        Set<String> artists = new TreeSet<String>();
+        for( SongDetails song : catalog.getSongs().values() )
+        {
+            generator.codes.add( song.getItemCode() );
+            artists.add( song.getArtist() );
+        }
+        generator.artists.addAll( artists );
+        generator.run( seconds, clients, catalog );
+        service.stop();
+    }
+
+    /**
+     * Learns some item codes and artists from the service's first pages
+     */
+    private void sample() throws IOException, InterruptedException
+    {
+        String after = null;
+        for( int page = 0; page < SAMPLE_PAGES; page++ )
+        {
+            String body = get( "/songs?limit=1000" + ( after == null ? ""
+                : "&after=" + encode( after )));
+            if( body == null )
+            {
+                throw new IOException( "the service didn't answer " + base );
+            }
+            Matcher code = CODE.matcher( body );
+            while( code.find() )
+            {
+                codes.add( unescape( code.group( 1 )));
+            }
+            Matcher artist = ARTIST.matcher( body );
+            while( artist.find() )
+            {
+                String name = unescape( artist.group( 1 ));
+                if( !artists.contains( name ))
+                {
+                    artists.add( name );
+                }
+            }
+            if( body.endsWith( "\"next\":null}" ) || codes.isEmpty() )
+            {
+                break;
+            }
+            after = codes.get( codes.size() - 1 );
+        }
+        if( codes.isEmpty() )
+        {
+            throw new IOException( "the service has no songs" );
+        }
+    }
+
+    /**
+     * Runs the clients, and the editor if there is a catalog to edit,
+     * then prints what they saw
+     */
+    private void run( int seconds, int clients, SongCatalog catalog )
+        throws IOException, InterruptedException
+    {
+        System.out.printf( "%d clients for %d s against %s, %,d songs%n",
+            clients, seconds, base, codes.size() );
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> threads = new ArrayList<Thread>();
+        for( int i = 0; i < clients; i++ )
+        {
+            threads.add( new Thread( () -> client( deadline ),
+                "load-client-" + i ));
+        }
+        if( catalog != null )
+        {
+            threads.add( new Thread( () -> editor( catalog, deadline ),
+                "load-editor" ));
+        }
+        long start = System.nanoTime();
+        for( Thread thread : threads )
+        {
+            thread.start();
+        }
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+        double elapsed = ( System.nanoTime() - start ) / 1e9;
+
+        System.out.printf( "%,.0f requests/s, %,d errors, %,d edits, "
+            + "%,d torn reads%n", latencies.count() / elapsed, errors.sum(),
+            edits, torn.sum() );
+        System.out.println( "Client: " + latencies );
+        System.out.println( "Server: " + get( "/stats" ));
+    }
+
+    /**
+     * One client: sends requests one after another until the deadline
+     */
+    private void client( long deadline )
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while( System.nanoTime() < deadline )
+        {
+            int kind = random.nextInt( 10 );
+            String code = codes.get( random.nextInt( codes.size() ));
+            String artist = artists.isEmpty() ? null
+                : artists.get( random.nextInt( artists.size() ));
+            String path;
+            if( kind == 0 && artist != null )
+            {
+                path = "/songs?limit=50&artist=" + encode( artist );
+            }
+            else if( kind == 1 )
+            {
+                path = "/songs?limit=100&after=" + encode( code );
+            }
+            else
+            {
+                path = "/songs/" + encode( code );
+            }
+            long start = System.nanoTime();
+            String body;
+            try
+            {
+                body = get( path );
+            }
+            catch( IOException | InterruptedException exception )
+            {
+                body = null;
+            }
+            latencies.record( System.nanoTime() - start );
+            if( body == null )
+            {
+                errors.increment();
+            }
+            else
+            {
+                check( body, kind == 0 ? artist : null );
+            }
+        }
+    }
+
+    /**
+     * Counts a torn read if an edited song's title and description
+     * disagree, or an artist page has another artist's song on it
+     */
+    private void check( String body, String artist )
+    {
+        Matcher edit = EDIT.matcher( body );
+        while( edit.find() )
+        {
+            if( !edit.group( 2 ).equals( "Edit " + edit.group( 1 )))
+            {
+                torn.increment();
+            }
+        }
+        if( artist != null )
+        {
+            Matcher found = ARTIST.matcher( body );
+            while( found.find() )
+            {
+                if( !unescape( found.group( 1 )).equals( artist ))
+                {
+                    torn.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * The editor: replaces random songs with new versions, the way the
+     * accept button does, until the deadline
+     */
+    private void editor( SongCatalog catalog, long deadline )
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long version = 0;
+        while( System.nanoTime() < deadline )
+        {
+            SongDetails old = catalog.getSongs().get(
+                codes.get( random.nextInt( codes.size() )));
+            String artist = artists.get( random.nextInt( artists.size() ));
+            version++;
+            catalog.put( new SongDetails( "Edit " + version,
+                old.getItemCode(), "Edit " + version, artist, old.getAlbum(),
+                old.getPriceCents() ));
+            edits = version;
+            // a thousand edits a second is far more than anyone types
+            LockSupport.parkNanos( 1000000 );
+        }
+    }
+
+    /**
+     * @return the response body, or null if the status wasn't 200
+     */
+    private String get( String path ) throws IOException, InterruptedException
+    {
+        HttpResponse<String> response = client.send( HttpRequest.newBuilder(
+            URI.create( base + path )).GET().build(),
+            HttpResponse.BodyHandlers.ofString() );
+        return response.statusCode() == 200 ? response.body() : null;
+    }
+
+    private static String encode( String text )
+    {
+        return URLEncoder.encode( text, StandardCharsets.UTF_8 )
+            .replace( "+", "%20" );
+    }
+
+    private static String unescape( String json )
+    {
+        return json.replace( "\\\"", "\"" ).replace( "\\\\", "\\" );
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * This class estimates how many distinct strings it has been given in a
+ * fixed amount of memory, however many there are, with the HyperLogLog
+ * sketch. Each string is hashed, the first bits of the hash pick one of
+ * 2^14 registers, and the register keeps the longest run of leading
+ * zeros seen in the rest of the hash. The estimate is off by about 0.8%
+ * on average, and by much less for counts in the low thousands, where
+ * linear counting of the empty registers takes over. The registers take
+ * 16 KB.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+public class HyperLogLog
+{
+    // bits of the hash that pick the register
+    private static final int INDEX_BITS = 14;
+    private static final int REGISTERS = 1 << INDEX_BITS;
+    private static final double ALPHA = 0.7213 / ( 1 + 1.079 / REGISTERS );
+
+    private final byte[] registers = new byte[ REGISTERS ];
+
+    /**
+     * Counts a string, which changes nothing if it was counted before
+     * @param text the string, ignored if null
+     */
+    public void add( String text )
+    {
+        if( text == null )
+        {
+            return;
+        }
+        long hash = hash( text );
+        int index = (int) ( hash >>> ( 64 - INDEX_BITS ));
+        // the rest of the hash, with a 1 below it so the run always ends
+        long rest = ( hash << INDEX_BITS ) | ( 1L << ( INDEX_BITS - 1 ));
+        byte rank = (byte) ( Long.numberOfLeadingZeros( rest ) + 1 );
+        if( rank > registers[ index ] )
+        {
+            registers[ index ] = rank;
+        }
+    }
+
+    /**
+     *
+     * @return estimated number of distinct strings added
+     */
+    public long estimate()
+    {
+        double sum = 0;
+        int empty = 0;
+        for( byte register : registers )
+        {
+            sum += 1.0 / ( 1L << register );
+            if( register == 0 )
+            {
+                empty++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if( estimate <= 2.5 * REGISTERS && empty > 0 )
+        {
+            estimate = REGISTERS * Math.log( (double) REGISTERS / empty );
+        }
+        return Math.round( estimate );
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the characters, mixed so that every bit
+     * depends on every character
+     */
+    private static long hash( String text )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            hash ^= text.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
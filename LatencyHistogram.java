@@ -0,0 +1,136 @@
+
+/**
+ * This class counts latencies in buckets so percentiles like p99 can be
+ * read back without keeping every timing. Each power of two is split
+ * into eight buckets, so a percentile is within an eighth of the true
+ * value, and the whole range of a long fits in 512 counters. Threads
+ * can record into one histogram at the same time.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class LatencyHistogram
+{
+    // buckets per power of two, as a number of bits
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets =
+        new AtomicLongArray( 64 * SUB_BUCKETS );
+    private final LongAdder count = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+    /**
+     * Counts one latency
+     * @param nanos how long it took
+     */
+    public void record( long nanos )
+    {
+        long value = Math.max( nanos, 0 );
+        buckets.incrementAndGet( bucketOf( value ));
+        count.increment();
+        max.accumulate( value );
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    public long count()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return longest latency recorded, in nanoseconds
+     */
+    public long maxNanos()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percent 0 to 100, 99 for p99
+     * @return the latency that percent of those recorded are at or under,
+     * in nanoseconds, or 0 if none have been
+     */
+    public long percentileNanos( double percent )
+    {
+        long total = count.sum();
+        if( total == 0 )
+        {
+            return 0;
+        }
+        long wanted = Math.max( 1, (long) Math.ceil( total * percent / 100 ));
+        long seen = 0;
+        for( int bucket = 0; bucket < buckets.length(); bucket++ )
+        {
+            seen += buckets.get( bucket );
+            if( seen >= wanted )
+            {
+                return Math.min( highestIn( bucket ), max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds another histogram's latencies to this one
+     * @param other histogram to add
+     */
+    public void add( LatencyHistogram other )
+    {
+        for( int bucket = 0; bucket < buckets.length(); bucket++ )
+        {
+            buckets.addAndGet( bucket, other.buckets.get( bucket ));
+        }
+        count.add( other.count() );
+        max.accumulate( other.maxNanos() );
+    }
+
+    /**
+     * Values under SUB_BUCKETS get a bucket each; above that the top
+     * bit picks the power of two and the next SUB_BITS bits the bucket
+     * within it
+     */
+    private static int bucketOf( long value )
+    {
+        if( value < SUB_BUCKETS )
+        {
+            return (int) value;
+        }
+        int top = 63 - Long.numberOfLeadingZeros( value );
+        int sub = (int) ( value >>> ( top - SUB_BITS )) & ( SUB_BUCKETS - 1 );
+        return ( top - SUB_BITS + 1 ) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that falls in a bucket
+     */
+    private static long highestIn( int bucket )
+    {
+        if( bucket < SUB_BUCKETS )
+        {
+            return bucket;
+        }
+        int top = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lowest = ( SUB_BUCKETS + sub ) << ( top - SUB_BITS );
+        return lowest + ( 1L << ( top - SUB_BITS )) - 1;
+    }
+
+    /**
+     * @return count, p50, p99, p99.9 and max, in microseconds
+     */
+    public String toString()
+    {
+        return String.format( "%,d requests, p50 %.0f us, p99 %.0f us, "
+            + "p99.9 %.0f us, max %.0f us", count(),
+            percentileNanos( 50 ) / 1e3, percentileNanos( 99 ) / 1e3,
+            percentileNanos( 99.9 ) / 1e3, maxNanos() / 1e3 );
+    }
+}
@@ -0,0 +1,40 @@
+
+/**
+ * This enum lists the ways readDBFile() can load the song database file.
+ * The mode is picked with -Dsongdb.loader=sequential|parallel|mapped
+ * and the parallel loader's thread count with -Dsongdb.threads=n.
+ * Block compressed files are inflated on that many threads by either of
+ * the parallel modes, and gzipped files are always read sequentially.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+public enum LoadMode
+{
+    // one thread streams the file from start to end
+    SEQUENTIAL,
+    // the file is split on line boundaries and parsed on a fork-join pool
+    PARALLEL,
+    // the file is memory mapped and parsed in place
+    MAPPED;
+
+    /**
+     * Reads the loader mode from the songdb.loader system property
+     * @return the chosen mode, SEQUENTIAL if none was given
+     */
+    public static LoadMode fromProperty()
+    {
+        String mode = System.getProperty( "songdb.loader", "sequential" );
+        return valueOf( mode.trim().toUpperCase() );
+    }
+
+    /**
+     * Reads the parallel loader's thread count from songdb.threads
+     * @return the thread count, the number of cores if none was given
+     */
+    public static int threadsFromProperty()
+    {
+        return Integer.getInteger( "songdb.threads",
+            Runtime.getRuntime().availableProcessors() );
+    }
+}
@@ -0,0 +1,95 @@
+
+/**
+ * This class holds the numbers from one load of a song database file so
+ * load time can be printed and tracked from release to release.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+public class LoadStats
+{
+    private final long rows;
+    private final long malformed;
+    private final long bytes;
+    private final long nanos;
+
+    /**
+     * Constructor for all the numbers of a finished load
+     * @param rowCount songs loaded
+     * @param malformedCount rows skipped because they weren't songs
+     * @param byteCount bytes of the file that were read
+     * @param elapsedNanos how long the load took
+     */
+    public LoadStats( long rowCount, long malformedCount, long byteCount,
+        long elapsedNanos )
+    {
+        rows = rowCount;
+        malformed = malformedCount;
+        bytes = byteCount;
+        nanos = elapsedNanos;
+    }
+
+    /**
+     *
+     * @return songs loaded
+     */
+    public long getRows()
+    {
+        return rows;
+    }
+
+    /**
+     *
+     * @return rows skipped as malformed
+     */
+    public long getMalformed()
+    {
+        return malformed;
+    }
+
+    /**
+     *
+     * @return bytes read
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     *
+     * @return load time in nanoseconds
+     */
+    public long getNanos()
+    {
+        return nanos;
+    }
+
+    /**
+     *
+     * @return songs loaded per second
+     */
+    public double getRowsPerSecond()
+    {
+        return nanos == 0 ? 0 : rows * 1e9 / nanos;
+    }
+
+    /**
+     *
+     * @return bytes read per second
+     */
+    public double getBytesPerSecond()
+    {
+        return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+    }
+
+    /**
+     * Override the default toString()
+     */
+    public String toString()
+    {
+        return String.format( "Loaded %d songs (%d malformed rows) in %.1f ms:"
+            + " %.0f rows/s, %.1f MB/s", rows, malformed, nanos / 1e6,
+            getRowsPerSecond(), getBytesPerSecond() / ( 1024 * 1024 ));
+    }
+}
@@ -0,0 +1,73 @@
+
+/**
+ * This class times the sequential loader against the parallel loader at
+ * 1, 2, 4 and 8 threads on the same file and prints the speedup of each.
+ * If the file doesn't exist a synthetic catalog is generated first.
+ *
+ * Usage: java LoaderBenchmark file [rows]
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.TreeMap;
+
+
+public class LoaderBenchmark
+{
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    /**
+     * Runs the benchmark
+     * @param args file location and the number of rows to generate
+     * @throws IOException if the file can't be read or written
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        String fp = args[ 0 ];
+        if( !new File( fp ).exists() )
+        {
+            long rows = args.length > 1 ? Long.parseLong( args[ 1 ] )
+                : 1000000;
+            System.out.println( "Generating " + rows + " songs in " + fp );
+            new SongCatalogGenerator( 42, 2000, 8 ).write( fp, rows );
+        }
+
+        double sequential = best( fp, 0 );
+        System.out.printf( "%-12s %10.1f ms%n", "sequential", sequential );
+        for( int threads : new int[] { 1, 2, 4, 8 } )
+        {
+            double parallel = best( fp, threads );
+            System.out.printf( "%-12s %10.1f ms  %5.2fx%n",
+                threads + " threads", parallel, sequential / parallel );
+        }
+    }
+
+    /**
+     * Loads the file several times and keeps the fastest measured run
+     * @param fp file location
+     * @param threads parallel thread count, 0 for the sequential loader
+     * @return best load time in milliseconds
+     * @throws IOException if the file can't be read
+     */
+    private static double best( String fp, int threads ) throws IOException
+    {
+        double best = Double.MAX_VALUE;
+        for( int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++ )
+        {
+            TreeMap<String, SongDetails> songs =
+                new TreeMap<String, SongDetails>();
+            LoadStats stats = threads == 0 ? SongFileParser.load(
+                new FileInputStream( fp ), songs )
+                : new ParallelSongLoader( threads ).load( fp, songs );
+            if( run >= WARMUP_RUNS )
+            {
+                best = Math.min( best, stats.getNanos() / 1e6 );
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,156 @@
+
+/**
+ * This class loads a song database file by memory mapping it and parsing
+ * the mapped bytes in place, so the file isn't copied through a stream
+ * buffer before it is tokenized. Files bigger than one mapping allows are
+ * mapped in several regions. The parser stops before the first record
+ * in a region that it can't finish without the bytes after it, and the
+ * next region starts there, so records are split exactly where the
+ * sequential loader splits them, whatever quotes the file has. A region
+ * too small to finish even one record is mapped again twice as large.
+ * If the file can't be mapped it is read through the normal stream path
+ * instead.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+
+public class MappedSongLoader
+{
+    // largest region mapped at once
+    private static final long MAX_REGION = Integer.MAX_VALUE;
+
+    private final long maxRegion;
+    private SongDictionary dictionary;
+
+    /**
+     * Constructor using the largest region a single mapping allows
+     */
+    public MappedSongLoader()
+    {
+        this( MAX_REGION );
+    }
+
+    /**
+     * Constructor
+     * @param regionBytes most bytes to map at once
+     */
+    MappedSongLoader( long regionBytes )
+    {
+        maxRegion = Math.min( regionBytes, MAX_REGION );
+    }
+
+    /**
+     * Makes the loader share artist and album text through a dictionary
+     * @param dict dictionary to encode with, or null for none
+     */
+    public void setDictionary( SongDictionary dict )
+    {
+        dictionary = dict;
+    }
+
+    /**
+     * Loads every song in the file into the given map. A later row with
+     * the same item code replaces an earlier one.
+     * @param fp song database file location
+     * @param songs map the songs are put into, keyed by item code
+     * @return numbers from the load
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read
+     */
+    public LoadStats load( String fp, Map<String, SongDetails> songs )
+        throws IOException
+    {
+        Path path = Paths.get( fp );
+        if( !Files.exists( path ) )
+        {
+            throw new FileNotFoundException( fp );
+        }
+        if( !Files.isRegularFile( path ) )
+        {
+            // pipes and devices can't be mapped
+            return SongFileParser.load( new FileInputStream( fp ), songs,
+                dictionary );
+        }
+
+        long startTime = System.nanoTime();
+        long rows = 0;
+        long malformed = 0;
+        try( FileChannel channel = FileChannel.open( path,
+            StandardOpenOption.READ ) )
+        {
+            long size = channel.size();
+            long start = 0;
+            long regionBytes = maxRegion;
+            while( start < size )
+            {
+                long length = Math.min( regionBytes, size - start );
+                MappedByteBuffer region = map( channel, start, length );
+                if( region == null )
+                {
+                    // nothing has been loaded yet, so read it as a stream
+                    return SongFileParser.load( new FileInputStream( fp ),
+                        songs, dictionary );
+                }
+                SongFileParser parser = new SongFileParser( region,
+                    start + length == size );
+                parser.setDictionary( dictionary );
+                SongDetails nextSong;
+                while( ( nextSong = parser.next() ) != null )
+                {
+                    songs.put( nextSong.getItemCode(), nextSong );
+                }
+                rows += parser.rows();
+                malformed += parser.malformed();
+                if( parser.bytesRead() == 0 )
+                {
+                    if( regionBytes >= MAX_REGION )
+                    {
+                        throw new IOException( "Record longer than "
+                            + MAX_REGION + " bytes at offset " + start );
+                    }
+                    regionBytes = Math.min( regionBytes * 2, MAX_REGION );
+                }
+                start += parser.bytesRead();
+            }
+            return new LoadStats( rows, malformed, size,
+                System.nanoTime() - startTime );
+        }
+    }
+
+    /**
+     * Maps one region of the file
+     * @return the mapped region, or null if the first region of the file
+     * can't be mapped
+     * @throws IOException if a later region can't be mapped
+     */
+    private static MappedByteBuffer map( FileChannel channel, long start,
+        long length ) throws IOException
+    {
+        try
+        {
+            return channel.map( FileChannel.MapMode.READ_ONLY, start,
+                length );
+        }
+        catch( IOException | UnsupportedOperationException exception )
+        {
+            if( start > 0 )
+            {
+                throw new IOException( "Can't map the song database at "
+                    + "offset " + start, exception );
+            }
+            return null;
+        }
+    }
+}
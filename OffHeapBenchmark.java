@@ -0,0 +1,199 @@
+/**
+ * This class compares garbage collection pauses with the catalog on the
+ * heap, in the SongStore the GUI uses, and off it, in an
+ * OffHeapSongStore. It fills one of the stores with synthetic songs and
+ * then keeps editing it at a steady rate, replacing and deleting random
+ * songs the way a catalog being worked on would, while it counts every
+ * collection the JVM reports and times every edit.
+ *
+ * It prints the heap left in use once the catalog is built, and for the
+ * edit workload the collections, their total and longest pause, and the
+ * edit latency percentiles, whose tail is where pauses show up. Run it
+ * once per store, with the same -Xmx and collector, to compare them:
+ *
+ *   java -Xmx2g OffHeapBenchmark heap 2000000 30
+ *   java -Xmx2g OffHeapBenchmark offheap 2000000 30
+ *
+ * Usage: java OffHeapBenchmark heap|offheap [rows] [seconds] [edits/s]
+ * The rows default to 2000000, the seconds to 30 and the rate to 50000
+ * edits a second; 0 edits flat out.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+
+public class OffHeapBenchmark
+{
+    private static final int BATCH = 10000;
+    // how often the edit rate is checked and paced
+    private static final int PACE_EDITS = 100;
+
+    // collections seen while the edits run, and their pauses
+    private static volatile boolean counting;
+    private static final LatencyHistogram PAUSES = new LatencyHistogram();
+    private static final LongAdder PAUSE_MILLIS = new LongAdder();
+
+    /**
+     * Runs the benchmark on one store
+     * @param args heap or offheap, the number of songs, how many seconds
+     * to edit for and how many edits a second
+     */
+    public static void main( String[] args )
+    {
+        boolean offHeap = args[ 0 ].equalsIgnoreCase( "offheap" );
+        int rows = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 2000000;
+        int seconds = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 30;
+        int rate = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 50000;
+        listenForCollections();
+
+        SongCatalogGenerator generator = new SongCatalogGenerator( 42, 2000,
+            8 );
+        SongStore heap = offHeap ? null : new SongStore();
+        OffHeapSongStore arena = offHeap ? new OffHeapSongStore() : null;
+        long before = usedHeap();
+        long start = System.nanoTime();
+        List<SongDetails> batch = new ArrayList<SongDetails>( BATCH );
+        for( int row = 0; row < rows; row++ )
+        {
+            batch.add( generator.nextSong( row ));
+            if( batch.size() == BATCH || row == rows - 1 )
+            {
+                if( offHeap )
+                {
+                    arena.putAll( batch );
+                }
+                else
+                {
+                    heap.putAll( batch );
+                }
+                batch.clear();
+            }
+        }
+        System.out.printf( "%s store: %,d songs built in %.1f s, %,d heap "
+            + "bytes in use%n", offHeap ? "Off heap" : "Heap", rows,
+            ( System.nanoTime() - start ) / 1e9, usedHeap() - before );
+        if( offHeap )
+        {
+            System.out.println( arena );
+        }
+
+        Random random = new Random( 7 );
+        LatencyHistogram edits = new LatencyHistogram();
+        counting = true;
+        start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long done = 0;
+        while( System.nanoTime() < end )
+        {
+            for( int i = 0; i < PACE_EDITS; i++ )
+            {
+                int row = random.nextInt( rows );
+                long began = System.nanoTime();
+                if( random.nextInt( 10 ) == 0 )
+                {
+                    String code = String.format( "%09d", row );
+                    if( offHeap )
+                    {
+                        arena.remove( code );
+                    }
+                    else
+                    {
+                        heap.remove( code );
+                    }
+                }
+                else
+                {
+                    // replaces the song, or adds back a deleted one
+                    SongDetails song = generator.nextSong( row );
+                    if( offHeap )
+                    {
+                        arena.put( song );
+                    }
+                    else
+                    {
+                        heap.put( song );
+                    }
+                }
+                edits.record( System.nanoTime() - began );
+            }
+            done += PACE_EDITS;
+            if( rate > 0 )
+            {
+                long due = start + done * 1000000000L / rate;
+                while( System.nanoTime() < due )
+                {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        counting = false;
+        double elapsed = ( System.nanoTime() - start ) / 1e9;
+
+        System.out.printf( "%,d edits in %.1f s, %,.0f a second%n", done,
+            elapsed, done / elapsed );
+        System.out.println( "Edits: " + edits.toString().replace( "requests",
+            "edits" ));
+        System.out.printf( "Collections: %,d, %,d ms paused in all, "
+            + "longest %.0f ms, p99 %.0f ms%n", PAUSES.count(),
+            PAUSE_MILLIS.sum(), PAUSES.maxNanos() / 1e6,
+            PAUSES.percentileNanos( 99 ) / 1e6 );
+        if( offHeap )
+        {
+            System.out.println( arena );
+        }
+        else
+        {
+            System.out.printf( "Heap store: %,d songs%n", heap.size() );
+        }
+    }
+
+    /**
+     * Records the duration of every collection reported while counting
+     */
+    private static void listenForCollections()
+    {
+        for( GarbageCollectorMXBean collector
+            : ManagementFactory.getGarbageCollectorMXBeans() )
+        {
+            if( !( collector instanceof NotificationEmitter ))
+            {
+                continue;
+            }
+            ((NotificationEmitter) collector).addNotificationListener(
+                ( Notification notification, Object handback ) ->
+            {
+                if( counting && notification.getType().equals(
+                    GarbageCollectionNotificationInfo
+                        .GARBAGE_COLLECTION_NOTIFICATION ))
+                {
+                    long millis = GarbageCollectionNotificationInfo.from(
+                        (CompositeData) notification.getUserData() )
+                        .getGcInfo().getDuration();
+                    PAUSES.record( millis * 1000000 );
+                    PAUSE_MILLIS.add( millis );
+                }
+            }, null, null );
+        }
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
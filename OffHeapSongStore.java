@@ -0,0 +1,575 @@
+/**
+ * This class keeps songs outside the Java heap, so a catalog of tens of
+ * millions of songs is a few dozen objects for the garbage collector to
+ * trace instead of tens of millions. Each song is one record of bytes in
+ * an arena of direct ByteBuffers, slabs of -Dsongdb.offheap.slabMB
+ * (64 MB if it isn't set):
+ *
+ *   int   record length in bytes
+ *   long  price in cents
+ *   then item code, title, description, artist and album, each as an
+ *   unsigned short byte count and that many bytes of UTF-8
+ *
+ * Songs are found by item code through a hash table of record addresses
+ * kept in two primitive arrays, the address of each record and the hash
+ * of its item code, with open addressing and linear probing. A record
+ * address is its slab's number in the high 32 bits and its offset in the
+ * slab in the low 32.
+ *
+ * Reading a song doesn't make a SongDetails: a Cursor is a flyweight
+ * that implements SongRecord over whichever record it was moved to, and
+ * makes a String only for the fields asked for. The price is read
+ * without making anything.
+ *
+ * A put appends a new record and points the table at it, and a remove
+ * takes the address out of the table, so the old record's bytes become
+ * garbage in the arena. Once there is more garbage than live records,
+ * the live records are copied into new slabs and the old ones dropped.
+ * Dropped slabs return their memory when the garbage collector finds
+ * their ByteBuffers unreachable, and -XX:MaxDirectMemorySize caps how
+ * much the arena can take.
+ *
+ * The store is meant for one thread at a time, like SongCatalog's
+ * changes. A Cursor is good until the next change to the store.
+ * Java 17 has no MemorySegment outside the incubator, so the arena is
+ * made of direct ByteBuffers, each limited to 2 GB.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+
+public class OffHeapSongStore
+{
+    /**
+     * Size of each slab of the arena, from -Dsongdb.offheap.slabMB
+     */
+    public static final int SLAB_BYTES = Integer.getInteger(
+        "songdb.offheap.slabMB", 64 ) * 1024 * 1024;
+
+    // length and price
+    private static final int RECORD_HEADER = 12;
+    private static final int MAX_FIELD_BYTES = 0xffff;
+    // marks an empty slot of the table
+    private static final long EMPTY = -1;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final int slabBytes;
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    // bytes used in the last slab, where records are appended
+    private int slabUsed;
+
+    // record address in each slot, or EMPTY, and its item code's hash
+    private long[] slots;
+    private int[] hashes;
+    private int count;
+
+    private long liveBytes;
+    private long garbageBytes;
+    private long compactions;
+
+    /**
+     * Constructor, with slabs of -Dsongdb.offheap.slabMB
+     */
+    public OffHeapSongStore()
+    {
+        this( SLAB_BYTES );
+    }
+
+    /**
+     * Constructor
+     * @param slabSize bytes in each slab of the arena
+     */
+    public OffHeapSongStore( int slabSize )
+    {
+        slabBytes = slabSize;
+        slots = new long[ MIN_CAPACITY ];
+        hashes = new int[ MIN_CAPACITY ];
+        Arrays.fill( slots, EMPTY );
+    }
+
+    /**
+     *
+     * @return number of songs
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return true if there is a song with that item code
+     */
+    public boolean containsKey( String itemCode )
+    {
+        byte[] key = itemCode.getBytes( StandardCharsets.UTF_8 );
+        return slots[ slotOf( key, hash( itemCode )) ] != EMPTY;
+    }
+
+    /**
+     * Makes a SongDetails from a song's record
+     * @param itemCode item code of a song
+     * @return the song, or null if there is none with that item code
+     */
+    public SongDetails get( String itemCode )
+    {
+        Cursor cursor = new Cursor();
+        return cursor.moveTo( itemCode ) ? cursor.toSongDetails() : null;
+    }
+
+    /**
+     * Adds a song, or replaces the song with the same item code
+     * @param song the song as it now is
+     * @return true if it replaced a song
+     * @throws IllegalArgumentException if a field is longer than 65535
+     * bytes of UTF-8
+     */
+    public boolean put( SongRecord song )
+    {
+        byte[][] fields = {
+            song.getItemCode().getBytes( StandardCharsets.UTF_8 ),
+            song.getSongTitle().getBytes( StandardCharsets.UTF_8 ),
+            song.getDescription().getBytes( StandardCharsets.UTF_8 ),
+            song.getArtist().getBytes( StandardCharsets.UTF_8 ),
+            song.getAlbum().getBytes( StandardCharsets.UTF_8 ) };
+        int length = RECORD_HEADER;
+        for( byte[] field : fields )
+        {
+            if( field.length > MAX_FIELD_BYTES )
+            {
+                throw new IllegalArgumentException( "Field of "
+                    + field.length + " bytes in song " + song.getItemCode() );
+            }
+            length += 2 + field.length;
+        }
+        long address = allocate( length );
+        ByteBuffer slab = slabs.get( slabOf( address ));
+        int at = offsetOf( address );
+        slab.putInt( at, length );
+        slab.putLong( at + 4, song.getPriceCents() );
+        at += RECORD_HEADER;
+        for( byte[] field : fields )
+        {
+            slab.putShort( at, (short) field.length );
+            slab.put( at + 2, field );
+            at += 2 + field.length;
+        }
+        liveBytes += length;
+
+        int hash = hash( song.getItemCode() );
+        int slot = slotOf( fields[ 0 ], hash );
+        boolean replaced = slots[ slot ] != EMPTY;
+        if( replaced )
+        {
+            int old = lengthAt( slots[ slot ] );
+            liveBytes -= old;
+            garbageBytes += old;
+        }
+        slots[ slot ] = address;
+        hashes[ slot ] = hash;
+        if( !replaced && ++count > slots.length * 3 / 4 )
+        {
+            resize( slots.length * 2 );
+        }
+        compactIfDue();
+        return replaced;
+    }
+
+    /**
+     * Adds or replaces a batch of songs
+     * @param songs songs in order, a later one replacing an earlier one
+     * with the same item code
+     */
+    public void putAll( Iterable<? extends SongRecord> songs )
+    {
+        for( SongRecord song : songs )
+        {
+            put( song );
+        }
+    }
+
+    /**
+     * Removes a song
+     * @param itemCode item code of the song to remove
+     * @return true if there was a song to remove
+     */
+    public boolean remove( String itemCode )
+    {
+        byte[] key = itemCode.getBytes( StandardCharsets.UTF_8 );
+        int slot = slotOf( key, hash( itemCode ));
+        if( slots[ slot ] == EMPTY )
+        {
+            return false;
+        }
+        int old = lengthAt( slots[ slot ] );
+        liveBytes -= old;
+        garbageBytes += old;
+        deleteSlot( slot );
+        count--;
+        compactIfDue();
+        return true;
+    }
+
+    /**
+     * @return a cursor, not yet on any song
+     */
+    public Cursor cursor()
+    {
+        return new Cursor();
+    }
+
+    /**
+     * Visits every song, in no particular order, through one cursor that
+     * is moved from record to record
+     * @param action what to do with each song; it mustn't change the
+     * store or keep the record
+     */
+    public void forEach( Consumer<SongRecord> action )
+    {
+        Cursor cursor = new Cursor();
+        for( long address : slots )
+        {
+            if( address != EMPTY )
+            {
+                cursor.moveToAddress( address );
+                action.accept( cursor );
+            }
+        }
+    }
+
+    /**
+     * Makes a SongDetails of every song, for writing to a file with
+     * SongFileWriter
+     * @return the songs, in item code order
+     */
+    public List<SongDetails> toList()
+    {
+        List<SongDetails> songs = new ArrayList<SongDetails>( count );
+        forEach( song -> songs.add( ((Cursor) song).toSongDetails() ));
+        songs.sort( Comparator.comparing( SongDetails::getItemCode ));
+        return songs;
+    }
+
+    /**
+     * @return bytes of the records in use
+     */
+    public long getLiveBytes()
+    {
+        return liveBytes;
+    }
+
+    /**
+     * @return bytes of replaced and removed records not yet compacted
+     * away
+     */
+    public long getGarbageBytes()
+    {
+        return garbageBytes;
+    }
+
+    /**
+     * @return bytes of native memory the arena's slabs take
+     */
+    public long getArenaBytes()
+    {
+        long bytes = 0;
+        for( ByteBuffer slab : slabs )
+        {
+            bytes += slab.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return heap bytes the hash table's arrays take
+     */
+    public long getIndexBytes()
+    {
+        return 12L * slots.length;
+    }
+
+    /**
+     * @return number of times the live records have been copied into new
+     * slabs
+     */
+    public long getCompactions()
+    {
+        return compactions;
+    }
+
+    /**
+     * Prints the sizes
+     */
+    public String toString()
+    {
+        return String.format( "Off heap: %,d songs, %.1f MB live, %.1f MB "
+            + "garbage, %.1f MB in %d slabs, %.1f MB heap index, %d "
+            + "compactions", count, liveBytes / 1048576.0,
+            garbageBytes / 1048576.0, getArenaBytes() / 1048576.0,
+            slabs.size(), getIndexBytes() / 1048576.0, compactions );
+    }
+
+    private static int hash( String itemCode )
+    {
+        int hash = itemCode.hashCode();
+        return hash ^ ( hash >>> 16 );
+    }
+
+    private static int slabOf( long address )
+    {
+        return (int) ( address >>> 32 );
+    }
+
+    private static int offsetOf( long address )
+    {
+        return (int) address;
+    }
+
+    private int lengthAt( long address )
+    {
+        return slabs.get( slabOf( address )).getInt( offsetOf( address ));
+    }
+
+    /**
+     * @return the slot holding the song with this item code, or the empty
+     * slot where it would go
+     */
+    private int slotOf( byte[] key, int hash )
+    {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while( slots[ slot ] != EMPTY && ( hashes[ slot ] != hash
+            || !codeEquals( slots[ slot ], key )) )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+        return slot;
+    }
+
+    private boolean codeEquals( long address, byte[] key )
+    {
+        ByteBuffer slab = slabs.get( slabOf( address ));
+        int at = offsetOf( address ) + RECORD_HEADER;
+        if( ( slab.getShort( at ) & 0xffff ) != key.length )
+        {
+            return false;
+        }
+        at += 2;
+        for( int i = 0; i < key.length; i++ )
+        {
+            if( slab.get( at + i ) != key[ i ] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Empties a slot and moves later songs of the same run back into the
+     * gap, so lookups never have to step over deleted slots
+     */
+    private void deleteSlot( int slot )
+    {
+        int mask = slots.length - 1;
+        int gap = slot;
+        int next = ( gap + 1 ) & mask;
+        while( slots[ next ] != EMPTY )
+        {
+            int home = hashes[ next ] & mask;
+            // move it if its home slot isn't between the gap and it
+            if( ( ( next - home ) & mask ) >= ( ( next - gap ) & mask ))
+            {
+                slots[ gap ] = slots[ next ];
+                hashes[ gap ] = hashes[ next ];
+                gap = next;
+            }
+            next = ( next + 1 ) & mask;
+        }
+        slots[ gap ] = EMPTY;
+    }
+
+    private void resize( int capacity )
+    {
+        long[] oldSlots = slots;
+        int[] oldHashes = hashes;
+        slots = new long[ capacity ];
+        hashes = new int[ capacity ];
+        Arrays.fill( slots, EMPTY );
+        int mask = capacity - 1;
+        for( int i = 0; i < oldSlots.length; i++ )
+        {
+            if( oldSlots[ i ] != EMPTY )
+            {
+                int slot = oldHashes[ i ] & mask;
+                while( slots[ slot ] != EMPTY )
+                {
+                    slot = ( slot + 1 ) & mask;
+                }
+                slots[ slot ] = oldSlots[ i ];
+                hashes[ slot ] = oldHashes[ i ];
+            }
+        }
+    }
+
+    /**
+     * Finds room for a record at the end of the last slab, starting a new
+     * slab if it doesn't fit
+     * @return the record's address
+     */
+    private long allocate( int length )
+    {
+        if( slabs.isEmpty() || slabUsed + length
+            > slabs.get( slabs.size() - 1 ).capacity() )
+        {
+            slabs.add( ByteBuffer.allocateDirect( Math.max( slabBytes,
+                length )));
+            slabUsed = 0;
+        }
+        long address = ( (long) ( slabs.size() - 1 ) << 32 ) | slabUsed;
+        slabUsed += length;
+        return address;
+    }
+
+    /**
+     * Copies the live records into new slabs once the garbage outweighs
+     * them and fills more than a slab
+     */
+    private void compactIfDue()
+    {
+        if( garbageBytes <= liveBytes || garbageBytes <= slabBytes )
+        {
+            return;
+        }
+        List<ByteBuffer> old = new ArrayList<ByteBuffer>( slabs );
+        slabs.clear();
+        for( int i = 0; i < slots.length; i++ )
+        {
+            if( slots[ i ] != EMPTY )
+            {
+                ByteBuffer from = old.get( slabOf( slots[ i ] ));
+                int at = offsetOf( slots[ i ] );
+                int length = from.getInt( at );
+                long address = allocate( length );
+                slabs.get( slabOf( address )).put( offsetOf( address ), from,
+                    at, length );
+                slots[ i ] = address;
+            }
+        }
+        garbageBytes = 0;
+        compactions++;
+    }
+
+    /**
+     * A flyweight over one record of the store. It reads each field from
+     * the arena when it is asked for, and can be moved from song to song
+     * without making anything on the heap.
+     */
+    public class Cursor implements SongRecord
+    {
+        private ByteBuffer slab;
+        private int at;
+
+        private Cursor()
+        {
+            // from cursor() or the store's own methods
+        }
+
+        /**
+         * Moves to the song with an item code
+         * @param itemCode item code of a song
+         * @return true if there is a song with that item code; if not,
+         * the cursor stays where it was
+         */
+        public boolean moveTo( String itemCode )
+        {
+            byte[] key = itemCode.getBytes( StandardCharsets.UTF_8 );
+            long address = slots[ slotOf( key, hash( itemCode )) ];
+            if( address == EMPTY )
+            {
+                return false;
+            }
+            moveToAddress( address );
+            return true;
+        }
+
+        private void moveToAddress( long address )
+        {
+            slab = slabs.get( slabOf( address ));
+            at = offsetOf( address );
+        }
+
+        /**
+         * @return a SongDetails with the fields of this song
+         */
+        public SongDetails toSongDetails()
+        {
+            return new SongDetails( getSongTitle(), getItemCode(),
+                getDescription(), getArtist(), getAlbum(), getPriceCents() );
+        }
+
+        public String getItemCode()
+        {
+            return field( 0 );
+        }
+
+        public String getSongTitle()
+        {
+            return field( 1 );
+        }
+
+        public String getDescription()
+        {
+            return field( 2 );
+        }
+
+        public String getArtist()
+        {
+            return field( 3 );
+        }
+
+        public String getAlbum()
+        {
+            return field( 4 );
+        }
+
+        public String getPriceString()
+        {
+            return SongDetails.formatCents( getPriceCents() );
+        }
+
+        public long getPriceCents()
+        {
+            if( slab == null )
+            {
+                throw new IllegalStateException( "cursor not on a song" );
+            }
+            return slab.getLong( at + 4 );
+        }
+
+        private String field( int index )
+        {
+            if( slab == null )
+            {
+                throw new IllegalStateException( "cursor not on a song" );
+            }
+            int start = at + RECORD_HEADER;
+            for( int i = 0; i < index; i++ )
+            {
+                start += 2 + ( slab.getShort( start ) & 0xffff );
+            }
+            byte[] text = new byte[ slab.getShort( start ) & 0xffff ];
+            slab.get( start + 2, text );
+            return new String( text, StandardCharsets.UTF_8 );
+        }
+    }
+}
@@ -0,0 +1,554 @@
+
+/**
+ * This class loads a song database file on several cores. The file is
+ * split into chunks that start and end on record boundaries, each chunk
+ * is parsed on a fork-join pool into its own partial map, and the partial
+ * maps are merged in file order. Because later chunks are merged over
+ * earlier ones, a duplicate item code keeps the last row in the file,
+ * just like the sequential loader.
+ *
+ * A quoted field may hold line breaks, so not every line break ends a
+ * record, and whether a quote opens a field depends on where the field
+ * starts, so only parsing from the start of the file can tell for sure
+ * where records start. The chunk boundaries are a guess: the quotes in
+ * each chunk are counted in parallel first, and a boundary is moved to
+ * the first line break after it with an even number of quotes before it
+ * in the file, which is right for any file SongFileWriter wrote. Each
+ * chunk is parsed from its guessed start, through to the end of the last
+ * record that starts in it, and remembers where its records start near
+ * the beginning. The chunks are then checked in file order: a chunk must
+ * start where the one before it ended. One that doesn't, because a stray
+ * quote threw the guess off, is parsed again from where the one before
+ * it ended until it reaches a record start the first parse also found,
+ * and from there the first parse is kept. The songs are the same as the
+ * sequential loader's whatever quotes the file has.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+
+public class ParallelSongLoader
+{
+    // chunks per thread, so a slow chunk doesn't hold up the whole load
+    private static final int CHUNKS_PER_THREAD = 4;
+    // files smaller than this aren't worth splitting
+    private static final long MIN_CHUNK_BYTES = 1024 * 1024;
+    // how far into a chunk its record starts are remembered, for a parse
+    // from the right start to meet; more than a record can run over
+    private static final long REJOIN_BYTES =
+        4L * SongFileParser.MAX_QUOTED_BYTES;
+
+    private final int threads;
+    private final long minChunkBytes;
+    private SongDictionary dictionary;
+
+    /**
+     * Constructor
+     * @param threadCount number of threads to parse with
+     */
+    public ParallelSongLoader( int threadCount )
+    {
+        this( threadCount, MIN_CHUNK_BYTES );
+    }
+
+    /**
+     * Constructor
+     * @param threadCount number of threads to parse with
+     * @param chunkBytes smallest chunk worth parsing on its own
+     */
+    ParallelSongLoader( int threadCount, long chunkBytes )
+    {
+        threads = Math.max( 1, threadCount );
+        minChunkBytes = Math.max( 1, chunkBytes );
+    }
+
+    /**
+     * Makes the loader share artist and album text through a dictionary
+     * @param dict dictionary to encode with, or null for none
+     */
+    public void setDictionary( SongDictionary dict )
+    {
+        dictionary = dict;
+    }
+
+    /**
+     * Loads every song in the file into the given map.
+     * @param fp song database file location
+     * @param songs map the songs are put into, keyed by item code
+     * @return numbers from the load
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read
+     */
+    public LoadStats load( String fp, Map<String, SongDetails> songs )
+        throws IOException
+    {
+        Path path = Paths.get( fp );
+        if( !Files.isRegularFile( path ) )
+        {
+            throw new FileNotFoundException( fp );
+        }
+        long startTime = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool( threads );
+        try( FileChannel channel = FileChannel.open( path,
+            StandardOpenOption.READ ) )
+        {
+            long size = channel.size();
+            long chunks = Math.max( 1, Math.min( threads * CHUNKS_PER_THREAD,
+                size / minChunkBytes ));
+            long[] bounds = splitOnRecords( channel, size, (int) chunks,
+                pool );
+
+            List<ForkJoinTask<Chunk>> parsed =
+                new ArrayList<ForkJoinTask<Chunk>>();
+            for( int i = 0; i < chunks; i++ )
+            {
+                long from = bounds[ i ];
+                long stop = bounds[ i + 1 ];
+                parsed.add( pool.submit( () -> Chunk.parse( channel, from,
+                    stop, size, dictionary, null )));
+            }
+            Chunk[] checked = new Chunk[ (int) chunks ];
+            long at = 0;
+            long rows = 0;
+            long malformed = 0;
+            for( int i = 0; i < chunks; i++ )
+            {
+                Chunk chunk = parsed.get( i ).join();
+                if( chunk.start != at )
+                {
+                    // the guess was off, parse from the real record start
+                    chunk = Chunk.parse( channel, at, bounds[ i + 1 ], size,
+                        dictionary, chunk );
+                }
+                checked[ i ] = chunk;
+                at = chunk.end;
+                rows += chunk.rows;
+                malformed += chunk.malformed;
+            }
+
+            TreeMap<String, SongDetails> loaded = pool.invoke(
+                new MergeTask( checked, 0, checked.length ));
+            songs.putAll( loaded );
+            return new LoadStats( rows, malformed, size,
+                System.nanoTime() - startTime );
+        }
+        catch( UncheckedChunkException exception )
+        {
+            throw exception.getCause();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Guesses chunk boundaries so that each chunk starts at the beginning
+     * of a record.
+     * @param channel the open song database file
+     * @param size length of the file
+     * @param chunks number of chunks wanted
+     * @param pool pool to count quotes on
+     * @return chunks + 1 offsets, from 0 up to size, never decreasing
+     * @throws IOException if the file can't be read
+     */
+    static long[] splitOnRecords( FileChannel channel, long size, int chunks,
+        ForkJoinPool pool ) throws IOException
+    {
+        long[] bounds = new long[ chunks + 1 ];
+        bounds[ chunks ] = size;
+        if( chunks == 1 )
+        {
+            return bounds;
+        }
+        List<ForkJoinTask<Long>> counts = new ArrayList<ForkJoinTask<Long>>();
+        for( int i = 0; i < chunks - 1; i++ )
+        {
+            long start = size * i / chunks;
+            long stop = size * ( i + 1 ) / chunks;
+            counts.add( pool.submit( () -> countQuotes( channel, start,
+                stop )));
+        }
+        ByteBuffer probe = ByteBuffer.allocate( 64 * 1024 );
+        long quotes = 0;
+        for( int i = 1; i < chunks; i++ )
+        {
+            try
+            {
+                quotes += counts.get( i - 1 ).join();
+            }
+            catch( UncheckedChunkException exception )
+            {
+                throw exception.getCause();
+            }
+            long at = size * i / chunks;
+            long next = nextRecordStart( channel, at, size, quotes % 2 != 0,
+                probe );
+            bounds[ i ] = Math.max( bounds[ i - 1 ], next );
+        }
+        return bounds;
+    }
+
+    /**
+     * @return number of quote characters from start up to stop
+     */
+    private static long countQuotes( FileChannel channel, long start,
+        long stop )
+    {
+        ByteBuffer probe = ByteBuffer.allocate( 64 * 1024 );
+        long quotes = 0;
+        long position = start;
+        try
+        {
+            while( position < stop )
+            {
+                probe.clear();
+                probe.limit( (int) Math.min( probe.capacity(),
+                    stop - position ));
+                int read = channel.read( probe, position );
+                if( read <= 0 )
+                {
+                    break;
+                }
+                for( int i = 0; i < read; i++ )
+                {
+                    if( probe.get( i ) == '"' )
+                    {
+                        quotes++;
+                    }
+                }
+                position += read;
+            }
+        }
+        catch( IOException exception )
+        {
+            throw new UncheckedChunkException( exception );
+        }
+        return quotes;
+    }
+
+    /**
+     * @param at where to start looking
+     * @param quoted true if at is inside a quoted field
+     * @return offset just past the first line break at or after at that
+     * isn't inside a quoted field, or size if there is none
+     */
+    private static long nextRecordStart( FileChannel channel, long at,
+        long size, boolean quoted, ByteBuffer probe ) throws IOException
+    {
+        // a chunk starting right after a line break is already aligned
+        if( !quoted && at > 0 && byteAt( channel, at - 1, probe ) == '\n' )
+        {
+            return at;
+        }
+        long position = at;
+        while( position < size )
+        {
+            probe.clear();
+            int read = channel.read( probe, position );
+            if( read <= 0 )
+            {
+                break;
+            }
+            for( int i = 0; i < read; i++ )
+            {
+                byte b = probe.get( i );
+                if( b == '"' )
+                {
+                    quoted = !quoted;
+                }
+                else if( b == '\n' && !quoted )
+                {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static byte byteAt( FileChannel channel, long position,
+        ByteBuffer probe ) throws IOException
+    {
+        probe.clear();
+        probe.limit( 1 );
+        return channel.read( probe, position ) == 1 ? probe.get( 0 ) : 0;
+    }
+
+    /**
+     * The songs of one chunk: those whose records start near the
+     * beginning, in file order with where each starts, and a map of the
+     * rest.
+     */
+    private static class Chunk
+    {
+        final long start; // where parsing started
+        long end; // just past the last record that starts in the chunk
+        long rows;
+        long malformed;
+        // record starts below this are kept in order
+        private final long headEnd;
+        private long[] headStarts = new long[ 64 ];
+        // null for a malformed record
+        private SongDetails[] headSongs = new SongDetails[ 64 ];
+        private int headCount;
+        private TreeMap<String, SongDetails> tail =
+            new TreeMap<String, SongDetails>();
+
+        private Chunk( long from )
+        {
+            start = from;
+            headEnd = from + REJOIN_BYTES;
+        }
+
+        /**
+         * Parses every record that starts from one offset up to another,
+         * reading on past the second to finish the last one
+         * @param from offset of a record start
+         * @param stop records from here on are left to the next chunk
+         * @param size length of the file
+         * @param guess a parse of the chunk from the wrong start, whose
+         * songs are taken from the first record start it shares with
+         * this one, or null
+         */
+        static Chunk parse( FileChannel channel, long from, long stop,
+            long size, SongDictionary dict, Chunk guess )
+        {
+            Chunk chunk = new Chunk( from );
+            try( SongFileParser parser = new SongFileParser(
+                new ChunkInputStream( channel, from, size )) )
+            {
+                parser.setDictionary( dict );
+                while( true )
+                {
+                    long at = from + parser.bytesRead();
+                    if( at >= stop || !parser.nextRecord() )
+                    {
+                        chunk.end = at;
+                        return chunk;
+                    }
+                    if( guess != null && chunk.rejoin( guess, at ))
+                    {
+                        return chunk;
+                    }
+                    if( parser.fieldCount() > 0 )
+                    {
+                        chunk.add( at, parser.song() );
+                    }
+                }
+            }
+            catch( IOException exception )
+            {
+                throw new UncheckedChunkException( exception );
+            }
+        }
+
+        private void add( long at, SongDetails song )
+        {
+            if( song == null )
+            {
+                malformed++;
+            }
+            else
+            {
+                rows++;
+            }
+            place( at, song );
+        }
+
+        private void place( long at, SongDetails song )
+        {
+            if( at >= headEnd )
+            {
+                if( song != null )
+                {
+                    tail.put( song.getItemCode(), song );
+                }
+                return;
+            }
+            if( headCount == headStarts.length )
+            {
+                headStarts = Arrays.copyOf( headStarts, headCount * 2 );
+                headSongs = Arrays.copyOf( headSongs, headCount * 2 );
+            }
+            headStarts[ headCount ] = at;
+            headSongs[ headCount ] = song;
+            headCount++;
+        }
+
+        /**
+         * Takes the rest of the chunk from a parse of it that found a
+         * record starting at the same offset, since parsing on from there
+         * gives the same records
+         * @return false if the guess has no record starting there
+         */
+        private boolean rejoin( Chunk guess, long at )
+        {
+            if( at < guess.start || at >= guess.headEnd )
+            {
+                return false;
+            }
+            int first = Arrays.binarySearch( guess.headStarts, 0,
+                guess.headCount, at );
+            if( first < 0 )
+            {
+                return false;
+            }
+            rows += guess.rows;
+            malformed += guess.malformed;
+            for( int i = 0; i < guess.headCount; i++ )
+            {
+                if( i >= first )
+                {
+                    place( guess.headStarts[ i ], guess.headSongs[ i ] );
+                }
+                else if( guess.headSongs[ i ] == null )
+                {
+                    malformed--;
+                }
+                else
+                {
+                    rows--;
+                }
+            }
+            tail.putAll( guess.tail );
+            end = guess.end;
+            return true;
+        }
+
+        /**
+         * @return the chunk's songs by item code, a later row replacing
+         * an earlier one; the chunk is used up
+         */
+        TreeMap<String, SongDetails> songs()
+        {
+            TreeMap<String, SongDetails> songs = tail;
+            tail = null;
+            // the head comes first, so its songs only fill gaps, and the
+            // last of them with an item code wins
+            for( int i = headCount - 1; i >= 0; i-- )
+            {
+                if( headSongs[ i ] != null )
+                {
+                    songs.putIfAbsent( headSongs[ i ].getItemCode(),
+                        headSongs[ i ] );
+                }
+            }
+            return songs;
+        }
+    }
+
+    /**
+     * Merges the songs of a range of chunks, splitting it in half until
+     * only one chunk is left, with the later half winning.
+     */
+    private static class MergeTask
+        extends RecursiveTask<TreeMap<String, SongDetails>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Chunk[] chunks;
+        private final int first; // first chunk in this task
+        private final int last; // one past the last chunk
+
+        MergeTask( Chunk[] parsed, int from, int to )
+        {
+            chunks = parsed;
+            first = from;
+            last = to;
+        }
+
+        protected TreeMap<String, SongDetails> compute()
+        {
+            if( last - first == 1 )
+            {
+                return chunks[ first ].songs();
+            }
+            int middle = ( first + last ) >>> 1;
+            MergeTask left = new MergeTask( chunks, first, middle );
+            MergeTask right = new MergeTask( chunks, middle, last );
+            left.fork();
+            TreeMap<String, SongDetails> later = right.compute();
+            TreeMap<String, SongDetails> earlier = left.join();
+            // later rows replace earlier rows with the same item code
+            earlier.putAll( later );
+            return earlier;
+        }
+    }
+
+    /**
+     * Reads one byte range of the file with positional reads, so every
+     * chunk can share the same FileChannel.
+     */
+    private static class ChunkInputStream extends InputStream
+    {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChunkInputStream( FileChannel fc, long start, long stop )
+        {
+            channel = fc;
+            position = start;
+            end = stop;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] one = new byte[ 1 ];
+            return read( one, 0, 1 ) < 0 ? -1 : one[ 0 ] & 0xff;
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if( position >= end )
+            {
+                return -1;
+            }
+            int wanted = (int) Math.min( len, end - position );
+            int read = channel.read( ByteBuffer.wrap( b, off, wanted ),
+                position );
+            if( read > 0 )
+            {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Carries an IOException out of a fork-join task
+     */
+    private static class UncheckedChunkException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        UncheckedChunkException( IOException cause )
+        {
+            super( cause );
+        }
+
+        public IOException getCause()
+        {
+            return (IOException) super.getCause();
+        }
+    }
+}
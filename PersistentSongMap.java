@@ -0,0 +1,555 @@
+/**
+ * This class is one version of the catalog: songs by item code, in
+ * order, in a balanced tree that is never changed once it is made.
+ * put() and remove() return a new version that copies only the path
+ * from the root to the song, O(log n) nodes, and shares every other node
+ * with the version it was made from. Any number of versions can be held
+ * and read from any thread at once, and a version that nothing refers to
+ * any more is reclaimed by the garbage collector, along with the nodes
+ * no other version shares.
+ *
+ * Batches go through an Edit, which copies each node at most once and
+ * changes the copies it has made in place, so loading a file costs about
+ * what filling a TreeMap would. Nothing an Edit changes can be seen
+ * until commit() hands back the new version.
+ *
+ * The tree is an AVL tree whose nodes also count the songs under them,
+ * so size() is O(1) and the song at a position can be found in
+ * O(log n).
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+
+public final class PersistentSongMap implements Iterable<SongDetails>
+{
+    /**
+     * The map with no songs in it, version 0
+     */
+    public static final PersistentSongMap EMPTY =
+        new PersistentSongMap( null, 0 );
+
+    // an AVL tree is never deeper than 1.44 log2 n, under 64 for any int n
+    private static final int MAX_DEPTH = 64;
+
+    private final Node root;
+    private final long version;
+
+    private PersistentSongMap( Node top, long number )
+    {
+        root = top;
+        version = number;
+    }
+
+    /**
+     *
+     * @return how many changes or batches made this version from EMPTY
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     *
+     * @return number of songs
+     */
+    public int size()
+    {
+        return sizeOf( root );
+    }
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return the song, or null if there is none with that item code
+     */
+    public SongDetails get( String itemCode )
+    {
+        Node node = root;
+        while( node != null )
+        {
+            int compared = itemCode.compareTo( node.song.getItemCode() );
+            if( compared == 0 )
+            {
+                return node.song;
+            }
+            node = compared < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return true if there is a song with that item code
+     */
+    public boolean containsKey( String itemCode )
+    {
+        return get( itemCode ) != null;
+    }
+
+    /**
+     *
+     * @param index position in item code order, from 0
+     * @return the song at that position
+     */
+    public SongDetails songAt( int index )
+    {
+        if( index < 0 || index >= size() )
+        {
+            throw new IndexOutOfBoundsException( "Index: " + index
+                + ", Size: " + size() );
+        }
+        Node node = root;
+        while( true )
+        {
+            int left = sizeOf( node.left );
+            if( index == left )
+            {
+                return node.song;
+            }
+            if( index < left )
+            {
+                node = node.left;
+            }
+            else
+            {
+                index -= left + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return position of the song in item code order, or if there is
+     * none, -1 less the position it would have, as
+     * Collections.binarySearch() has it
+     */
+    public int indexOf( String itemCode )
+    {
+        Node node = root;
+        int before = 0;
+        while( node != null )
+        {
+            int compared = itemCode.compareTo( node.song.getItemCode() );
+            if( compared == 0 )
+            {
+                return before + sizeOf( node.left );
+            }
+            if( compared < 0 )
+            {
+                node = node.left;
+            }
+            else
+            {
+                before += sizeOf( node.left ) + 1;
+                node = node.right;
+            }
+        }
+        return -before - 1;
+    }
+
+    /**
+     * @param song the song as it now is
+     * @return a new version with the song added, or replacing the song
+     * with the same item code
+     */
+    public PersistentSongMap put( SongDetails song )
+    {
+        Edit edit = edit();
+        edit.put( song );
+        return edit.commit();
+    }
+
+    /**
+     * @param itemCode item code of the song to remove
+     * @return a new version without the song, or this one if it has no
+     * song with that item code
+     */
+    public PersistentSongMap remove( String itemCode )
+    {
+        if( !containsKey( itemCode ))
+        {
+            return this;
+        }
+        Edit edit = edit();
+        edit.remove( itemCode );
+        return edit.commit();
+    }
+
+    /**
+     * Starts a batch of changes to make from this version
+     * @return the batch
+     */
+    public Edit edit()
+    {
+        return new Edit( this );
+    }
+
+    /**
+     * Every song, in item code order, as a list that is never copied
+     * @return the songs; get() on it is O(log n)
+     */
+    public List<SongDetails> values()
+    {
+        return new AbstractList<SongDetails>()
+        {
+            public SongDetails get( int index )
+            {
+                return songAt( index );
+            }
+
+            public int size()
+            {
+                return PersistentSongMap.this.size();
+            }
+
+            public Iterator<SongDetails> iterator()
+            {
+                return PersistentSongMap.this.iterator();
+            }
+        };
+    }
+
+    /**
+     * @return every song, in item code order
+     */
+    public Iterator<SongDetails> iterator()
+    {
+        return new Walk( root, null );
+    }
+
+    /**
+     * @param itemCode where to start; it needn't be in the map
+     * @return the songs after that item code, in item code order
+     */
+    public Iterator<SongDetails> iteratorAfter( String itemCode )
+    {
+        return new Walk( root, itemCode );
+    }
+
+    private static int sizeOf( Node node )
+    {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int heightOf( Node node )
+    {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * One song in the tree. Only the Edit that made a node changes it,
+     * and only until that Edit commits. The node holds the Edit's token
+     * rather than the Edit, so a version doesn't keep the Edit, and
+     * through it the tree the Edit started from, reachable.
+     */
+    private static final class Node
+    {
+        SongDetails song;
+        Node left;
+        Node right;
+        int size;
+        int height;
+        Object owner;
+
+        Node( SongDetails value, Object token )
+        {
+            song = value;
+            size = 1;
+            height = 1;
+            owner = token;
+        }
+
+        Node( Node from, Object token )
+        {
+            song = from.song;
+            left = from.left;
+            right = from.right;
+            size = from.size;
+            height = from.height;
+            owner = token;
+        }
+    }
+
+    /**
+     * A batch of changes to one version, made by one thread. The changes
+     * are seen only by the Edit itself until commit().
+     */
+    public static final class Edit
+    {
+        // marks the nodes this batch made, dropped on commit()
+        private Object token = new Object();
+        private Node root;
+        private final long version;
+        private boolean committed;
+        // the song the last put or remove replaced or removed
+        private SongDetails old;
+
+        private Edit( PersistentSongMap from )
+        {
+            root = from.root;
+            version = from.version;
+        }
+
+        /**
+         * Adds a song, or replaces the song with the same item code
+         * @param song the song as it now is
+         * @return the song it replaced, or null if it is new
+         */
+        public SongDetails put( SongDetails song )
+        {
+            checkOpen();
+            old = null;
+            root = insert( root, song );
+            return old;
+        }
+
+        /**
+         * Removes a song
+         * @param itemCode item code of the song to remove
+         * @return the removed song, or null if there was none
+         */
+        public SongDetails remove( String itemCode )
+        {
+            checkOpen();
+            old = null;
+            if( get( itemCode ) != null )
+            {
+                root = delete( root, itemCode );
+            }
+            return old;
+        }
+
+        /**
+         * @param itemCode item code of a song
+         * @return the song as this batch has it so far, or null
+         */
+        public SongDetails get( String itemCode )
+        {
+            checkOpen();
+            return new PersistentSongMap( root, version ).get( itemCode );
+        }
+
+        /**
+         * Ends the batch. Nodes it made are never changed again, and the
+         * Edit lets go of the tree so holding on to it keeps nothing alive.
+         * @return the new version
+         */
+        public PersistentSongMap commit()
+        {
+            checkOpen();
+            committed = true;
+            PersistentSongMap committedMap = new PersistentSongMap( root,
+                version + 1 );
+            token = null;
+            root = null;
+            old = null;
+            return committedMap;
+        }
+
+        private void checkOpen()
+        {
+            if( committed )
+            {
+                throw new IllegalStateException( "edit already committed" );
+            }
+        }
+
+        /**
+         * @return the node itself if this batch made it, else a copy of
+         * it this batch can change
+         */
+        private Node own( Node node )
+        {
+            return node.owner == token ? node : new Node( node, token );
+        }
+
+        private Node insert( Node node, SongDetails song )
+        {
+            if( node == null )
+            {
+                return new Node( song, token );
+            }
+            int compared = song.getItemCode().compareTo(
+                node.song.getItemCode() );
+            Node owned = own( node );
+            if( compared == 0 )
+            {
+                old = owned.song;
+                owned.song = song;
+                return owned;
+            }
+            if( compared < 0 )
+            {
+                owned.left = insert( owned.left, song );
+            }
+            else
+            {
+                owned.right = insert( owned.right, song );
+            }
+            return balance( owned );
+        }
+
+        /**
+         * Removes a song that is known to be under node
+         */
+        private Node delete( Node node, String itemCode )
+        {
+            int compared = itemCode.compareTo( node.song.getItemCode() );
+            Node owned = own( node );
+            if( compared < 0 )
+            {
+                owned.left = delete( owned.left, itemCode );
+            }
+            else if( compared > 0 )
+            {
+                owned.right = delete( owned.right, itemCode );
+            }
+            else
+            {
+                old = owned.song;
+                if( owned.left == null )
+                {
+                    return owned.right;
+                }
+                if( owned.right == null )
+                {
+                    return owned.left;
+                }
+                // take the next song up from the right subtree's smallest
+                Node next = owned.right;
+                while( next.left != null )
+                {
+                    next = next.left;
+                }
+                owned.song = next.song;
+                owned.right = deleteFirst( owned.right );
+            }
+            return balance( owned );
+        }
+
+        private Node deleteFirst( Node node )
+        {
+            if( node.left == null )
+            {
+                return node.right;
+            }
+            Node owned = own( node );
+            owned.left = deleteFirst( owned.left );
+            return balance( owned );
+        }
+
+        /**
+         * Updates an owned node's counts and rotates it back into balance
+         * @return the node now at its place in the tree
+         */
+        private Node balance( Node node )
+        {
+            update( node );
+            int lean = heightOf( node.left ) - heightOf( node.right );
+            if( lean > 1 )
+            {
+                if( heightOf( node.left.left ) < heightOf( node.left.right ))
+                {
+                    node.left = rotateLeft( own( node.left ));
+                }
+                return rotateRight( node );
+            }
+            if( lean < -1 )
+            {
+                if( heightOf( node.right.right )
+                    < heightOf( node.right.left ))
+                {
+                    node.right = rotateRight( own( node.right ));
+                }
+                return rotateLeft( node );
+            }
+            return node;
+        }
+
+        private Node rotateRight( Node node )
+        {
+            Node top = own( node.left );
+            node.left = top.right;
+            top.right = node;
+            update( node );
+            update( top );
+            return top;
+        }
+
+        private Node rotateLeft( Node node )
+        {
+            Node top = own( node.right );
+            node.right = top.left;
+            top.left = node;
+            update( node );
+            update( top );
+            return top;
+        }
+
+        private static void update( Node node )
+        {
+            node.size = sizeOf( node.left ) + sizeOf( node.right ) + 1;
+            node.height = Math.max( heightOf( node.left ),
+                heightOf( node.right )) + 1;
+        }
+    }
+
+    /**
+     * Walks the tree in order with a stack of the nodes still to visit
+     */
+    private static final class Walk implements Iterator<SongDetails>
+    {
+        private final Node[] stack = new Node[ MAX_DEPTH ];
+        private int depth;
+
+        /**
+         * @param after item code to start after, or null for the first
+         */
+        Walk( Node root, String after )
+        {
+            Node node = root;
+            while( node != null )
+            {
+                if( after == null
+                    || after.compareTo( node.song.getItemCode() ) < 0 )
+                {
+                    stack[ depth++ ] = node;
+                    node = node.left;
+                }
+                else
+                {
+                    node = node.right;
+                }
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return depth > 0;
+        }
+
+        public SongDetails next()
+        {
+            if( depth == 0 )
+            {
+                throw new NoSuchElementException();
+            }
+            Node node = stack[ --depth ];
+            for( Node next = node.right; next != null; next = next.left )
+            {
+                stack[ depth++ ] = next;
+            }
+            return node.song;
+        }
+    }
+}
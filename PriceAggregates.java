@@ -0,0 +1,154 @@
+
+/**
+ * This class answers price questions about a snapshot of the catalog:
+ * its total value, the average price of each artist's songs, and which
+ * songs fall in a price range. The queries scan the price and artist
+ * columns of a SongColumns snapshot, long cents and int ids, instead of
+ * following SongDetails objects, and run in parallel when the snapshot
+ * is large enough for its filters to.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+
+public class PriceAggregates
+{
+    private final SongColumns columns;
+
+    /**
+     * Constructor
+     * @param songs the songs, in the order range queries return them
+     */
+    public PriceAggregates( Collection<SongDetails> songs )
+    {
+        this( new SongColumns( songs ));
+    }
+
+    /**
+     * Constructor
+     * @param snapshot columns of the songs to query
+     */
+    public PriceAggregates( SongColumns snapshot )
+    {
+        columns = snapshot;
+    }
+
+    /**
+     * @return number of songs
+     */
+    public int size()
+    {
+        return columns.size();
+    }
+
+    /**
+     * @return sum of every song's price, in cents
+     */
+    public long totalCents()
+    {
+        if( columns.isParallel() )
+        {
+            return columns.rows().mapToLong( columns::priceCents ).sum();
+        }
+        long total = 0;
+        for( int row = 0; row < columns.size(); row++ )
+        {
+            total += columns.priceCents( row );
+        }
+        return total;
+    }
+
+    /**
+     * Averages the prices of each artist's songs
+     * @return average price in cents, rounded, by artist name in order
+     */
+    public Map<String, Long> averageCentsByArtist()
+    {
+        int artists = columns.artistCount();
+        // sums in the first half, song counts in the second
+        long[] totals;
+        if( columns.isParallel() )
+        {
+            totals = columns.rows().collect(
+                () -> new long[ artists * 2 ],
+                ( sums, row ) -> add( sums, row ),
+                ( sums, more ) -> Arrays.setAll( sums,
+                    i -> sums[ i ] + more[ i ] ));
+        }
+        else
+        {
+            totals = new long[ artists * 2 ];
+            for( int row = 0; row < columns.size(); row++ )
+            {
+                add( totals, row );
+            }
+        }
+        Map<String, Long> averages = new TreeMap<String, Long>();
+        for( int id = 0; id < artists; id++ )
+        {
+            averages.put( columns.artistName( id ), Math.round(
+                (double) totals[ id ] / totals[ artists + id ] ));
+        }
+        return averages;
+    }
+
+    private void add( long[] totals, int row )
+    {
+        int artist = columns.artistId( row );
+        totals[ artist ] += columns.priceCents( row );
+        totals[ columns.artistCount() + artist ]++;
+    }
+
+    /**
+     * @param minCents lowest price wanted, in cents
+     * @param maxCents highest price wanted, in cents
+     * @return number of songs priced from minCents to maxCents
+     */
+    public long countInRange( long minCents, long maxCents )
+    {
+        if( columns.isParallel() )
+        {
+            return range( minCents, maxCents ).count();
+        }
+        long count = 0;
+        for( int row = 0; row < columns.size(); row++ )
+        {
+            long price = columns.priceCents( row );
+            if( price >= minCents && price <= maxCents )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param minCents lowest price wanted, in cents
+     * @param maxCents highest price wanted, in cents
+     * @return item codes of the songs priced from minCents to maxCents,
+     * in snapshot order
+     */
+    public List<String> codesInRange( long minCents, long maxCents )
+    {
+        return range( minCents, maxCents ).mapToObj( columns::itemCode )
+            .collect( Collectors.toList() );
+    }
+
+    /**
+     * @return row numbers of the songs priced from minCents to maxCents
+     */
+    private IntStream range( long minCents, long maxCents )
+    {
+        return columns.rows().filter(
+            row -> columns.priceCents( row ) >= minCents
+                && columns.priceCents( row ) <= maxCents );
+    }
+}
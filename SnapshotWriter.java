@@ -0,0 +1,163 @@
+
+/**
+ * This class writes snapshots of the song database to its file on a
+ * background thread, so the GUI never waits on the disk. Snapshots are
+ * written one at a time in the order they are submitted, through
+ * SongFileWriter so the file is always replaced in one step.
+ *
+ * It can also run an autosave on a fixed interval, and it keeps how
+ * long the last snapshot took to write.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class SnapshotWriter
+{
+    private final String dbPath;
+    private final FileFormat format;
+    private final ScheduledExecutorService disk;
+
+    private final AtomicLong snapshots = new AtomicLong();
+    private volatile long lastNanos;
+    private volatile long lastBytes;
+    private volatile long lastRows;
+
+    /**
+     * Constructor
+     * @param fp song database file location
+     * @param fileFormat format to write the file in
+     */
+    public SnapshotWriter( String fp, FileFormat fileFormat )
+    {
+        dbPath = fp;
+        format = fileFormat;
+        disk = Executors.newSingleThreadScheduledExecutor( runnable ->
+        {
+            Thread thread = new Thread( runnable, "song-snapshot" );
+            thread.setDaemon( true );
+            return thread;
+        });
+    }
+
+    /**
+     * @return autosave interval in seconds from -Dsongdb.autosave.seconds,
+     * 0 if autosave is off
+     */
+    public static long autosaveSecondsFromProperty()
+    {
+        return Long.getLong( "songdb.autosave.seconds", 0 );
+    }
+
+    /**
+     * Queues a snapshot to be written in the background.
+     * @param snapshot songs to write, in item code order. It must not be
+     * changed after it is submitted.
+     * @return completes once the file has been replaced, or with the
+     * IOException that stopped it
+     */
+    public CompletableFuture<Void> submit( Collection<SongDetails> snapshot )
+    {
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        disk.execute( () ->
+        {
+            try
+            {
+                long startTime = System.nanoTime();
+                long bytes = SongFileWriter.write( dbPath, snapshot,
+                    format );
+                lastNanos = System.nanoTime() - startTime;
+                lastBytes = bytes;
+                lastRows = snapshot.size();
+                snapshots.incrementAndGet();
+                System.out.printf( "Saved %d songs (%d bytes) in %.1f ms%n",
+                    lastRows, lastBytes, lastNanos / 1e6 );
+                SongMetrics.get().recordSave( lastNanos, bytes );
+                done.complete( null );
+            }
+            catch( IOException | RuntimeException exception )
+            {
+                SongMetrics.get().saveFailed();
+                done.completeExceptionally( exception );
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Writes a snapshot and waits for it to finish
+     * @param snapshot songs to write, in item code order
+     * @throws IOException if the file can't be written
+     */
+    public void write( Collection<SongDetails> snapshot ) throws IOException
+    {
+        try
+        {
+            submit( snapshot ).get();
+        }
+        catch( ExecutionException exception )
+        {
+            if( exception.getCause() instanceof IOException )
+            {
+                throw (IOException) exception.getCause();
+            }
+            throw new IOException( exception.getCause() );
+        }
+        catch( InterruptedException exception )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while saving", exception );
+        }
+    }
+
+    /**
+     * Calls tick every interval. tick should take a snapshot on the
+     * thread that owns the songs and submit() it.
+     * @param seconds autosave interval, autosave is off if it is 0
+     * @param tick starts one autosave
+     */
+    public void scheduleAutosave( long seconds, Runnable tick )
+    {
+        if( seconds > 0 )
+        {
+            disk.scheduleWithFixedDelay( tick, seconds, seconds,
+                TimeUnit.SECONDS );
+        }
+    }
+
+    /**
+     *
+     * @return number of snapshots written
+     */
+    public long getSnapshotCount()
+    {
+        return snapshots.get();
+    }
+
+    /**
+     *
+     * @return how long the last snapshot took to write, in milliseconds
+     */
+    public double getLastSnapshotMillis()
+    {
+        return lastNanos / 1e6;
+    }
+
+    /**
+     *
+     * @return size of the last snapshot in bytes
+     */
+    public long getLastSnapshotBytes()
+    {
+        return lastBytes;
+    }
+}
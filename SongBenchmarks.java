@@ -0,0 +1,183 @@
+/**
+ * This class benchmarks the paths a change to the song database is most
+ * likely to speed up or slow down, on synthetic catalogs of several
+ * sizes, under JMH:
+ *
+ *   parse          load the file with SongFileParser, as readDBFile does
+ *   persist        write every song with SongFileWriter, as writeOut does
+ *   lookupByCode   SongStore.get for a random item code
+ *   lookupByTitle  SongIndex.codesForTitle for a random title
+ *   listRefresh    an add or a delete through SongStore and
+ *                  SongListModel, as the accept and delete buttons do
+ *
+ * and runs bench.ColumnarBenchmark, the TreeMap walk against SongColumns,
+ * at the same sizes.
+ *
+ * The benchmark methods are in bench.CatalogBenchmark, since JMH won't
+ * run benchmarks in the default package; this class does the work they
+ * time, through bench.SongWorkload, and its main runs JMH. Catalogs are
+ * made by SongCatalogGenerator as songs-ROWS.txt in the folder given,
+ * the first time they are needed, and kept for later runs. JMH prints
+ * the results and writes them as JSON. The forked JVM gets this JVM's
+ * options, so give the larger catalogs a -Xmx here.
+ *
+ * mvn package builds target/benchmarks.jar, which runs either way:
+ *
+ *   java -cp target/benchmarks.jar SongBenchmarks folder 10000
+ *   java -jar target/benchmarks.jar -p folder=folder -p rows=10000
+ *
+ * Usage: java SongBenchmarks folder [rows,rows,...] [results.json]
+ * The rows default to 10000,1000000,10000000 and the results to
+ * folder/results.json. SongListModel needs javafx-base on the class
+ * path, but no display.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import javafx.collections.ListChangeListener;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import bench.CatalogBenchmark;
+import bench.ColumnarBenchmark;
+import bench.SongWorkload;
+
+
+public class SongBenchmarks implements SongWorkload
+{
+    // random item codes and titles the lookups cycle through
+    private static final int LOOKUPS = 100000;
+
+    private String fp;
+    private String out;
+    private SongStore store;
+    private SongIndex index;
+    private SongListModel songList;
+    private List<SongDetails> songs;
+    private String[] codes;
+    private String[] titles;
+    private final Random random = new Random( 7 );
+    // the song the last even listRefresh added
+    private String added;
+
+    /**
+     * Runs every benchmark at every size
+     * @param args folder for the catalogs, the row counts, and where to
+     * write the JSON
+     * @throws RunnerException if JMH can't run a benchmark
+     */
+    public static void main( String[] args ) throws RunnerException
+    {
+        File folder = new File( args[ 0 ] );
+        String sizes = args.length > 1 ? args[ 1 ]
+            : "10000,1000000,10000000";
+        File json = args.length > 2 ? new File( args[ 2 ] )
+            : new File( folder, "results.json" );
+        folder.mkdirs();
+
+        new Runner( new OptionsBuilder()
+            .include( CatalogBenchmark.class.getName() )
+            .include( ColumnarBenchmark.class.getName() )
+            .param( "folder", folder.getPath() )
+            .param( "rows", sizes.split( "," ))
+            .resultFormat( ResultFormatType.JSON )
+            .result( json.getPath() )
+            .build() ).run();
+        System.out.println( "Results written to " + json );
+    }
+
+    public void setUp( String folder, int rows ) throws IOException
+    {
+        new File( folder ).mkdirs();
+        fp = new File( folder, "songs-" + rows + ".txt" ).getPath();
+        out = new File( folder, "saved-" + rows + ".txt" ).getPath();
+        if( !new File( fp ).exists() )
+        {
+            System.out.println( "Generating " + rows + " songs in " + fp );
+            new SongCatalogGenerator( 42, 2000, 8 ).write( fp, rows );
+        }
+
+        TreeMap<String, SongDetails> loaded = parse();
+        store = new SongStore();
+        store.putAll( new ArrayList<SongDetails>( loaded.values() ));
+        loaded = null;
+        index = new SongIndex();
+        index.addAll( store.values() );
+        songs = store.snapshot();
+        codes = new String[ LOOKUPS ];
+        titles = new String[ LOOKUPS ];
+        for( int i = 0; i < LOOKUPS; i++ )
+        {
+            SongDetails song = songs.get( random.nextInt( songs.size() ));
+            codes[ i ] = song.getItemCode();
+            titles[ i ] = song.getSongTitle();
+        }
+
+        songList = new SongListModel( store );
+        // reads every change event, like the combo box does
+        songList.addListener( (ListChangeListener<String>) change ->
+        {
+            while( change.next() )
+            {
+                change.getAddedSize();
+            }
+        });
+    }
+
+    public TreeMap<String, SongDetails> parse() throws IOException
+    {
+        TreeMap<String, SongDetails> loaded =
+            new TreeMap<String, SongDetails>();
+        SongFileParser.load( new FileInputStream( fp ), loaded, null );
+        return loaded;
+    }
+
+    public long persist() throws IOException
+    {
+        return SongFileWriter.write( out, songs );
+    }
+
+    public Object lookupByCode( int n )
+    {
+        return store.get( codes[ n % LOOKUPS ] );
+    }
+
+    public Object lookupByTitle( int n )
+    {
+        return index.codesForTitle( titles[ n % LOOKUPS ] );
+    }
+
+    public int listRefresh( int n )
+    {
+        if( n % 2 == 0 )
+        {
+            // a song between two existing ones
+            SongDetails at = songs.get( random.nextInt( songs.size() ));
+            added = at.getItemCode() + "-" + n;
+            SongDetails song = new SongDetails( "Added", added,
+                at.getDescription(), at.getArtist(), at.getAlbum(),
+                at.getPriceCents() );
+            store.put( song );
+            songList.put( song );
+        }
+        else
+        {
+            store.remove( added );
+            songList.remove( added );
+        }
+        return songList.size();
+    }
+
+    public void tearDown()
+    {
+        new File( out ).delete();
+    }
+}
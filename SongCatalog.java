@@ -0,0 +1,437 @@
+
+/**
+ * This class is the song database without a user interface: the songs,
+ * their indexes, the journal that keeps changes safe, and the writer
+ * that saves them to the database file. The GUI in SongDatabase drives
+ * one of these, and anything else that needs the catalog in memory can
+ * use it the same way.
+ *
+ * Changes are meant to come from one thread at a time. The songs can be
+ * read from any thread through getSongs().
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+
+public class SongCatalog
+{
+    private final String filePath;
+    private final FileFormat format;
+    // shares artist and album text between songs, null unless turned on
+    private final SongDictionary dictionary;
+
+    private final SongStore songs = new SongStore();
+    // finds songs by title, artist or album without a full scan
+    private final SongIndex index = new SongIndex();
+    // finds songs by the words in their title and description
+    private final SongSearchIndex searchIndex = new SongSearchIndex();
+
+    // writes the songs to filePath in the background
+    private final SnapshotWriter snapshots;
+    // keeps changes safe until the next save(), null until it is opened
+    private SongJournal journal;
+
+    /**
+     * Constructor. Nothing is read until load() or putAll().
+     * @param fp song database file location
+     */
+    public SongCatalog( String fp )
+    {
+        filePath = fp;
+        format = FileFormat.detect( fp );
+        dictionary = SongDictionary.fromProperty();
+        snapshots = new SnapshotWriter( fp, format );
+    }
+
+    /**
+     * Reads the database file and its journal, the way -Dsongdb.loader
+     * says, and opens the journal for the changes made from now on
+     * @return numbers from loading the file
+     * @throws IOException if the file or the journal can't be read
+     */
+    public LoadStats load() throws IOException
+    {
+        TreeMap<String, SongDetails> loaded =
+            new TreeMap<String, SongDetails>();
+        LoadStats stats = loadFile( filePath, format, LoadMode.fromProperty(),
+            dictionary, loaded );
+        int replayed = SongJournal.replay( filePath, loaded, dictionary );
+        putAll( new ArrayList<SongDetails>( loaded.values() ));
+        openJournal( replayed );
+        SongMetrics.get().recordLoad( stats );
+        return stats;
+    }
+
+    /**
+     * Reads a database file, without its journal, with the loader that
+     * suits its format and the load mode. Binary files have one loader.
+     * Block compressed files are read a block per thread unless the mode
+     * is sequential. Other text is streamed when the mode is sequential
+     * or the file isn't plain comma separated text, and otherwise read in
+     * parallel chunks or memory mapped.
+     * @param fp song database file location
+     * @param fileFormat the file's format
+     * @param mode how to load it
+     * @param dict dictionary to encode with, or null for none
+     * @param songs map the songs are put into, keyed by item code
+     * @return numbers from the load
+     * @throws IOException if the file can't be read
+     */
+    public static LoadStats loadFile( String fp, FileFormat fileFormat,
+        LoadMode mode, SongDictionary dict, Map<String, SongDetails> songs )
+        throws IOException
+    {
+        if( fileFormat == FileFormat.BINARY )
+        {
+            return BinarySongFormat.load( fp, songs, dict );
+        }
+        if( fileFormat == FileFormat.COMPRESSED
+            && mode != LoadMode.SEQUENTIAL )
+        {
+            return CompressedSongFormat.load( fp, songs, dict,
+                LoadMode.threadsFromProperty() );
+        }
+        if( fileFormat != FileFormat.CSV || mode == LoadMode.SEQUENTIAL )
+        {
+            return SongFileParser.load( CompressedSongFormat.openText( fp,
+                fileFormat ), songs, dict );
+        }
+        if( mode == LoadMode.PARALLEL )
+        {
+            ParallelSongLoader loader = new ParallelSongLoader(
+                LoadMode.threadsFromProperty() );
+            loader.setDictionary( dict );
+            return loader.load( fp, songs );
+        }
+        MappedSongLoader loader = new MappedSongLoader();
+        loader.setDictionary( dict );
+        return loader.load( fp, songs );
+    }
+
+    /**
+     * Adds songs read from the database file, without journaling them
+     * @param batch songs in file order, a later one replacing an earlier
+     * one with the same item code
+     * @return for each song in the batch, the song it replaced, or null
+     */
+    public List<SongDetails> putAll( List<SongDetails> batch )
+    {
+        List<SongDetails> replaced = songs.putAll( batch );
+        for( int i = 0; i < batch.size(); i++ )
+        {
+            index.put( replaced.get( i ), batch.get( i ));
+            searchIndex.put( replaced.get( i ), batch.get( i ));
+        }
+        return replaced;
+    }
+
+    /**
+     * Removes songs the journal deleted while loading, without journaling
+     * @param codes item codes of the deleted songs
+     * @return the removed songs, null for item codes that weren't there
+     */
+    public List<SongDetails> removeAll( List<String> codes )
+    {
+        List<SongDetails> removed = new ArrayList<SongDetails>(
+            codes.size() );
+        for( String itemCode : codes )
+        {
+            SongDetails old = songs.remove( itemCode );
+            index.remove( old );
+            searchIndex.remove( old );
+            removed.add( old );
+        }
+        return removed;
+    }
+
+    /**
+     * Adds a song, or replaces the song with the same item code, and
+     * keeps the indexes and the journal up to date
+     * @param song the song as it now is
+     * @return the song it replaced, or null if it is new
+     */
+    public SongDetails put( SongDetails song )
+    {
+        if( dictionary != null )
+        {
+            dictionary.encode( song );
+        }
+        SongDetails old = songs.put( song );
+        index.put( old, song );
+        searchIndex.put( old, song );
+        if( journal != null )
+        {
+            journal.recordPut( song );
+        }
+        return old;
+    }
+
+    /**
+     * Removes a song from the songs, the indexes and the journal
+     * @param itemCode item code of the song to remove
+     * @return the removed song, or null if there was none
+     */
+    public SongDetails remove( String itemCode )
+    {
+        SongDetails old = songs.remove( itemCode );
+        index.remove( old );
+        searchIndex.remove( old );
+        if( journal != null )
+        {
+            journal.recordDelete( itemCode );
+        }
+        return old;
+    }
+
+    /**
+     * Applies a batch of changes, such as a delta file's, with one change
+     * to the songs and one journal append, and keeps the indexes up to
+     * date
+     * @param puts songs to add or replace, each item code once
+     * @param deletes item codes of the songs to remove, none of them among
+     * the puts
+     * @return for each put, the song it replaced or null if it is new,
+     * then for each delete, the removed song or null if there was none
+     */
+    public List<SongDetails> applyAll( List<SongDetails> puts,
+        List<String> deletes )
+    {
+        if( dictionary != null )
+        {
+            for( SongDetails song : puts )
+            {
+                dictionary.encode( song );
+            }
+        }
+        List<SongDetails> old = songs.applyAll( puts, deletes );
+        for( int i = 0; i < puts.size(); i++ )
+        {
+            index.put( old.get( i ), puts.get( i ));
+            searchIndex.put( old.get( i ), puts.get( i ));
+        }
+        for( int i = puts.size(); i < old.size(); i++ )
+        {
+            index.remove( old.get( i ));
+            searchIndex.remove( old.get( i ));
+        }
+        if( journal != null )
+        {
+            journal.recordAll( puts, deletes );
+        }
+        return old;
+    }
+
+    /**
+     * Folds the journal into the database file once it has grown long
+     * @throws IOException if the journal can't be set aside, or a
+     * journal write or compaction failed since the last call
+     */
+    public void compactIfDue() throws IOException
+    {
+        if( journal == null )
+        {
+            return;
+        }
+        if( journal.compactionDue() )
+        {
+            journal.compact( snapshot(), snapshots );
+        }
+        journal.checkFailures();
+    }
+
+    /**
+     * Keeps journaling the changes made from now on. If the journal had
+     * changes in it, they are folded into the file straight away.
+     * @param replayed number of journal entries applied while loading
+     * @throws IOException if the journal can't be opened
+     */
+    public void openJournal( int replayed ) throws IOException
+    {
+        journal = new SongJournal( filePath );
+        if( replayed > 0 )
+        {
+            System.out.println( "Replayed " + replayed
+                + " journal entries" );
+            journal.compact( snapshot(), snapshots );
+        }
+    }
+
+    /**
+     * The songs as they are now, which later edits won't change, for
+     * writing in the background. Nothing is copied, so this is O(1).
+     * @return every song, in item code order
+     */
+    public List<SongDetails> snapshot()
+    {
+        return songs.snapshot();
+    }
+
+    /**
+     * Copies a snapshot into columns, for scans over every song
+     * @return the columns, which later edits won't change
+     */
+    public SongColumns columns()
+    {
+        return new SongColumns( snapshot() );
+    }
+
+    /**
+     * Copies a snapshot into columns for total, per artist and price
+     * range queries
+     * @return the queries, which later edits won't change
+     */
+    public PriceAggregates priceAggregates()
+    {
+        return new PriceAggregates( columns() );
+    }
+
+    /**
+     * Saves a snapshot in the background. Writing the snapshot also folds
+     * the journal into the file.
+     * @throws IOException if the journal can't be set aside, or a
+     * journal write or compaction failed since the last check
+     */
+    public void autosave() throws IOException
+    {
+        if( journal != null )
+        {
+            journal.compact( snapshot(), snapshots );
+            journal.checkFailures();
+        }
+        else
+        {
+            snapshots.submit( snapshot() );
+        }
+    }
+
+    /**
+     * Writes the songs to the file and waits for the write to finish.
+     * Once the file is written the journal is no longer needed and is
+     * deleted.
+     * @throws IOException if the file can't be written
+     */
+    public void save() throws IOException
+    {
+        snapshots.write( snapshot() );
+        SongJournal.discard( filePath );
+    }
+
+    /**
+     * Finishes the journal and saves the songs in the background, for
+     * shutting down. If the save fails the journal is opened again, so
+     * changes are still kept safe.
+     * @return completes once the file is written and the journal deleted,
+     * or with what stopped it
+     */
+    public CompletableFuture<Void> saveAndClose()
+    {
+        try
+        {
+            // finish journal writes so the snapshot is the last thing
+            // written
+            if( journal != null )
+            {
+                journal.close();
+            }
+        }
+        catch( IOException exception )
+        {
+            System.out.println( "Journal Error: " + exception );
+        }
+        return snapshots.submit( snapshot() ).whenComplete(
+            ( done, failure ) ->
+        {
+            try
+            {
+                if( failure == null )
+                {
+                    // everything in the journal is in the file now
+                    SongJournal.discard( filePath );
+                }
+                else
+                {
+                    journal = new SongJournal( filePath );
+                }
+            }
+            catch( IOException exception )
+            {
+                System.out.println( "Journal Error: " + exception );
+            }
+        });
+    }
+
+    /**
+     * @return the songs, which any thread can read
+     */
+    public SongStore getSongs()
+    {
+        return songs;
+    }
+
+    /**
+     * @return index of songs by title, artist and album
+     */
+    public SongIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * @return index of songs by the words in their title and description
+     */
+    public SongSearchIndex getSearchIndex()
+    {
+        return searchIndex;
+    }
+
+    /**
+     * Finds the songs whose title or description has a word starting
+     * with each word of the query
+     * @param query words to look for
+     * @param limit most item codes to return
+     * @return item codes of matching songs
+     */
+    public List<String> search( String query, int limit )
+    {
+        return searchIndex.search( query, limit );
+    }
+
+    /**
+     * @return song database file location
+     */
+    public String getFilePath()
+    {
+        return filePath;
+    }
+
+    /**
+     * @return format the file is read and saved in
+     */
+    public FileFormat getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * @return dictionary songs are encoded with, or null for none
+     */
+    public SongDictionary getDictionary()
+    {
+        return dictionary;
+    }
+
+    /**
+     * @return writer that saves the songs in the background
+     */
+    public SnapshotWriter getSnapshots()
+    {
+        return snapshots;
+    }
+}
@@ -0,0 +1,96 @@
+
+/**
+ * This class writes synthetic song database files in the same format as
+ * songs.txt, for trying out the loaders on catalogs much bigger than the
+ * real one. The same row count and seed always give the same file.
+ *
+ * Usage: java SongCatalogGenerator file rows
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+
+public class SongCatalogGenerator
+{
+    private static final String[] WORDS = { "Breezeblocks", "Dance", "Stolen",
+        "Emerald", "Pools", "King", "Cross", "Silence", "Wave", "Relaxer",
+        "Blue", "Night", "River", "Glass", "Summer", "Echo", "Paper", "Gold",
+        "Fire", "Heart", "Ocean", "Light", "Shadow", "Island", "Morning" };
+    private static final String[] PHRASES = { "cool song",
+        "Really relaxing song", "Nice song with a good bass",
+        "Good song from a German Band", "Great song from Icelandic musician",
+        "nice", "Another one for the road trip" };
+    private static final String[] PRICES = { "0.99", "1.29", "1.50", "1.99" };
+
+    private final Random random;
+    private final int artistCount;
+    private final int albumsPerArtist;
+
+    /**
+     * Constructor
+     * @param seed seed for the random rows
+     * @param artists number of different artists in the catalog
+     * @param albums number of different albums per artist
+     */
+    public SongCatalogGenerator( long seed, int artists, int albums )
+    {
+        random = new Random( seed );
+        artistCount = artists;
+        albumsPerArtist = albums;
+    }
+
+    /**
+     * Writes a catalog of the given size. Item codes are unique and
+     * written in increasing order.
+     * @param fp file to create or overwrite
+     * @param rows number of songs to write
+     * @throws IOException if the file can't be written
+     */
+    public void write( String fp, long rows ) throws IOException
+    {
+        try( Writer out = new BufferedWriter( new OutputStreamWriter(
+            new FileOutputStream( fp ), StandardCharsets.UTF_8 ), 1 << 16 ) )
+        {
+            for( long i = 0; i < rows; i++ )
+            {
+                out.write( nextSong( i ).toString() );
+            }
+        }
+    }
+
+    /**
+     * Makes one random song
+     * @param row row number, used for the item code
+     * @return the song
+     */
+    public SongDetails nextSong( long row )
+    {
+        int artist = random.nextInt( artistCount );
+        int album = random.nextInt( albumsPerArtist );
+        String title = WORDS[ random.nextInt( WORDS.length ) ] + " "
+            + WORDS[ random.nextInt( WORDS.length ) ];
+        return new SongDetails( title, String.format( "%09d", row ),
+            PHRASES[ random.nextInt( PHRASES.length ) ],
+            "Artist " + artist, "Album " + artist + "-" + album,
+            PRICES[ random.nextInt( PRICES.length ) ] );
+    }
+
+    /**
+     * Writes a catalog from the command line
+     * @param args file location and row count
+     * @throws IOException if the file can't be written
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        new SongCatalogGenerator( 42, 2000, 8 ).write( args[ 0 ],
+            Long.parseLong( args[ 1 ] ));
+    }
+}
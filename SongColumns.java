@@ -0,0 +1,329 @@
+
+/**
+ * This class is a column by column copy of a snapshot of the catalog,
+ * for scans that look at a few fields of every song. Each song is a row
+ * number. Prices are kept in a long array of cents, and artists and
+ * albums in int arrays of ids into a table of the distinct names. The
+ * titles, item codes and descriptions are packed back to back in one
+ * char array, the text arena, with an int array of where each one
+ * starts. A scan then walks a few flat arrays instead of a tree of
+ * SongDetails objects, and Strings are only made for the rows it keeps.
+ *
+ * Filters over -Dsongdb.aggregate.parallelMin rows or more (100000 if
+ * not given) run as parallel streams on the common fork-join pool.
+ * Later changes to the catalog don't show up in a snapshot already
+ * taken.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+
+public class SongColumns
+{
+    static final int PARALLEL_MIN =
+        Integer.getInteger( "songdb.aggregate.parallelMin", 100000 );
+
+    // text fields in the arena, in order, for each row
+    private static final int TITLE = 0;
+    private static final int CODE = 1;
+    private static final int DESCRIPTION = 2;
+    private static final int TEXT_FIELDS = 3;
+
+    private final int size;
+    private final long[] cents;
+    private final int[] artistIds;
+    private final int[] albumIds;
+    private final String[] artists; // name of each artist id
+    private final String[] albums; // name of each album id
+    private final Map<String, Integer> artistIdsByName =
+        new HashMap<String, Integer>();
+
+    private final char[] arena;
+    // where each text field starts in the arena, with the end at the back
+    private final int[] textStart;
+
+    private final boolean parallel;
+
+    /**
+     * Constructor
+     * @param songs the songs, which become rows in this order
+     */
+    public SongColumns( Collection<SongDetails> songs )
+    {
+        this( songs, songs.size() >= PARALLEL_MIN );
+    }
+
+    /**
+     * Constructor that picks the parallel or the sequential scans
+     * @param songs the songs, which become rows in this order
+     * @param inParallel true to scan on the common fork-join pool
+     */
+    SongColumns( Collection<SongDetails> songs, boolean inParallel )
+    {
+        parallel = inParallel;
+        size = songs.size();
+        cents = new long[ size ];
+        artistIds = new int[ size ];
+        albumIds = new int[ size ];
+        textStart = new int[ size * TEXT_FIELDS + 1 ];
+
+        long textLength = 0;
+        for( SongDetails song : songs )
+        {
+            textLength += length( song.getSongTitle() )
+                + length( song.getItemCode() )
+                + length( song.getDescription() );
+        }
+        if( textLength > Integer.MAX_VALUE - 8 )
+        {
+            throw new IllegalArgumentException(
+                "Too much text for one arena: " + textLength + " chars" );
+        }
+        arena = new char[ (int) textLength ];
+
+        Map<String, Integer> albumIdsByName = new HashMap<String, Integer>();
+        int row = 0;
+        int at = 0;
+        for( SongDetails song : songs )
+        {
+            cents[ row ] = song.getPriceCents();
+            artistIds[ row ] = idOf( artistIdsByName, song.getArtist() );
+            albumIds[ row ] = idOf( albumIdsByName, song.getAlbum() );
+            int field = row * TEXT_FIELDS;
+            textStart[ field + TITLE ] = at;
+            at = copy( song.getSongTitle(), at );
+            textStart[ field + CODE ] = at;
+            at = copy( song.getItemCode(), at );
+            textStart[ field + DESCRIPTION ] = at;
+            at = copy( song.getDescription(), at );
+            row++;
+        }
+        textStart[ size * TEXT_FIELDS ] = at;
+        artists = names( artistIdsByName );
+        albums = names( albumIdsByName );
+    }
+
+    private static int length( String text )
+    {
+        return text == null ? 0 : text.length();
+    }
+
+    private static int idOf( Map<String, Integer> ids, String name )
+    {
+        Integer id = ids.get( name );
+        if( id == null )
+        {
+            id = ids.size();
+            ids.put( name, id );
+        }
+        return id;
+    }
+
+    private static String[] names( Map<String, Integer> ids )
+    {
+        String[] names = new String[ ids.size() ];
+        for( Map.Entry<String, Integer> entry : ids.entrySet() )
+        {
+            names[ entry.getValue() ] = entry.getKey();
+        }
+        return names;
+    }
+
+    private int copy( String text, int at )
+    {
+        if( text == null )
+        {
+            return at;
+        }
+        text.getChars( 0, text.length(), arena, at );
+        return at + text.length();
+    }
+
+    private String text( int row, int field )
+    {
+        int start = textStart[ row * TEXT_FIELDS + field ];
+        return new String( arena, start,
+            textStart[ row * TEXT_FIELDS + field + 1 ] - start );
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param row row number
+     * @return that song's price in cents
+     */
+    public long priceCents( int row )
+    {
+        return cents[ row ];
+    }
+
+    /**
+     * @param row row number
+     * @return that song's artist id
+     */
+    public int artistId( int row )
+    {
+        return artistIds[ row ];
+    }
+
+    /**
+     * @param row row number
+     * @return that song's album id
+     */
+    public int albumId( int row )
+    {
+        return albumIds[ row ];
+    }
+
+    /**
+     * @param name artist name
+     * @return the artist's id, or -1 if no song has that artist
+     */
+    public int artistIdOf( String name )
+    {
+        Integer id = artistIdsByName.get( name );
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return number of different artists
+     */
+    public int artistCount()
+    {
+        return artists.length;
+    }
+
+    /**
+     * @param id artist id
+     * @return the artist's name
+     */
+    public String artistName( int id )
+    {
+        return artists[ id ];
+    }
+
+    /**
+     * @param id album id
+     * @return the album's name
+     */
+    public String albumName( int id )
+    {
+        return albums[ id ];
+    }
+
+    /**
+     * @param row row number
+     * @return that song's item code
+     */
+    public String itemCode( int row )
+    {
+        return text( row, CODE );
+    }
+
+    /**
+     * @param row row number
+     * @return that song's title
+     */
+    public String title( int row )
+    {
+        return text( row, TITLE );
+    }
+
+    /**
+     * @param row row number
+     * @return that song's description
+     */
+    public String description( int row )
+    {
+        return text( row, DESCRIPTION );
+    }
+
+    /**
+     * Puts a row back together as a song
+     * @param row row number
+     * @return a new SongDetails with the row's fields
+     */
+    public SongDetails song( int row )
+    {
+        return new SongDetails( title( row ), itemCode( row ),
+            description( row ), artists[ artistIds[ row ]],
+            albums[ albumIds[ row ]], cents[ row ] );
+    }
+
+    /**
+     * Finds an artist's songs priced below a limit, such as everything
+     * by one artist under $1.50
+     * @param artist artist name
+     * @param belowCents prices must be less than this, in cents
+     * @return row numbers of the matching songs, in order
+     */
+    public int[] byArtistBelow( String artist, long belowCents )
+    {
+        int id = artistIdOf( artist );
+        if( id < 0 )
+        {
+            return new int[ 0 ];
+        }
+        if( parallel )
+        {
+            return filter( row -> artistIds[ row ] == id
+                && cents[ row ] < belowCents );
+        }
+        int[] rows = new int[ 16 ];
+        int found = 0;
+        for( int row = 0; row < size; row++ )
+        {
+            if( artistIds[ row ] == id && cents[ row ] < belowCents )
+            {
+                if( found == rows.length )
+                {
+                    rows = Arrays.copyOf( rows, found * 2 );
+                }
+                rows[ found++ ] = row;
+            }
+        }
+        return Arrays.copyOf( rows, found );
+    }
+
+    /**
+     * Finds the rows a test accepts, in parallel for large snapshots. The
+     * test can read the columns through priceCents(), artistId() and
+     * albumId() without making any objects.
+     * @param test called with each row number
+     * @return row numbers the test accepted, in order
+     */
+    public int[] filter( IntPredicate test )
+    {
+        return rows().filter( test ).toArray();
+    }
+
+    /**
+     * @return a stream of every row number, parallel for large snapshots
+     */
+    public IntStream rows()
+    {
+        IntStream rows = IntStream.range( 0, size );
+        return parallel ? rows.parallel() : rows;
+    }
+
+    /**
+     * @return true if filters run in parallel
+     */
+    public boolean isParallel()
+    {
+        return parallel;
+    }
+}
@@ -6,13 +6,8 @@
  * @author Candace Holcombe-Volke
  */
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.*;
 import javafx.application.*;
 import javafx.beans.value.*;
@@ -31,16 +26,16 @@ import javafx.event.*;
  * holds the main() method of the program, and initiates the GUI 
  *  by overriding the start().
  *  
- *  The main data is stored in TreeMap called songs, 
- *  ObservableList called songList, and
- *  ListView called loadedSongs.
+ *  The main data is stored in SongCatalog called catalog, indexed by
+ *  title, artist and album, ObservableList called songList, and
+ *  ListView called loadedSongs. With -Dsongdb.bounded=true the songs
+ *  stay in the file instead and are read through a BoundedSongStore
+ *  called bounded, and the database can only be viewed.
  * @author Candace Holcombe-Volke
  *
  */
 public class SongDatabase extends Application 
 {        
-    SongDetails songDet = new SongDetails();
-    
     private Label songNameLab = new Label( "Selected Song" );
     private Label itemCodeLab = new Label( "Item Code");
     private Label descriptionLab = new Label( "Description" );
@@ -61,38 +56,88 @@ public class SongDatabase extends Application
     private Button acceptButton;
     private Button cancelButton; 
     private Button exitButton; 
+    private Button deltaButton;
     
     // Message labels
     private Label statusLabel = new Label(); // shows current mode
     private Label errorLabel = new Label(); // shows errors, if any
     
-    // songs TreeMap has primary responsibility for storing the database
-    private static TreeMap<String, SongDetails> songs = 
-        new TreeMap<String, SongDetails>();
+    // filters the songs in the combo box by title and description words,
+    // or with "artist:" or "album:" in front, to one artist's or album's
+    private TextField searchField;
+    // item codes of the songs the search is showing, null when not searching
+    private List<String> searchCodes;
+    // most search matches shown in the combo box
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    // what a search starts with to show one artist's or album's songs
+    private static final String ARTIST_FILTER = "artist:";
+    private static final String ALBUM_FILTER = "album:";
+    
+    // show how far the song database file has loaded
+    private ProgressBar loadProgress = new ProgressBar();
+    private Label loadLabel = new Label();
+    // true until the whole file is loaded, or a delta file applied,
+    // editing is off until then
+    private boolean loading;
+    // true once a load fails partway. Only part of the file is in the
+    // catalog, so it is shown read only, never saved over the file, and
+    // the journal is left for the next load to replay
+    private boolean loadFailed;
+    
+    // catalog has primary responsibility for storing the database: the
+    // songs, their indexes, the journal and saving to filePath
+    private static SongCatalog catalog;
+    // with -Dsongdb.bounded=true, reads songs from the file as they are
+    // shown, in place of the catalog; null otherwise
+    private static BoundedSongStore bounded;
     
     // songList and loadedSongs are
     //responsible for managing the display of songs loaded in the combobox
-    private static ObservableList<String> songList =
-        FXCollections.observableArrayList();
+    // songList looks titles up in the catalog only for the rows on screen
+    private static SongListModel songList;
     private static ListView<String> loadedSongs = new ListView<String>(); 
 
     static String filePath; // collected as command line arg
+    static LoadStats lastLoad; // numbers from the last readDBFile()
    
     /**
-     * The main() collects the command line args calls readDBFile()
-     * to read in the data from a file if it already exists, and creates
-     * one if it does not.
-     * After running the main(), songs, songList, and loadedSongs will be
-     * populated, and filePath will be initialized.
-     * @param args is the song database file location
+     * The main() collects the command line args and calls checkDBFile()
+     * to create the database file if it does not exist yet, then opens
+     * the GUI, which reads the file in the background.
+     * After running the main(), filePath and catalog will be initialized.
+     * If the first arg is a SongDatabaseCli command, that runs instead
+     * and no GUI is opened.
+     * @param args is the song database file location, or a command and
+     * its args
      * @throws IOException  
      * @author Candace Holcombe-Volke
      */
     public static void main( String [] args ) throws IOException 
     {
+            if( SongDatabaseCli.isCommand( args[0] ) )
+            {
+                SongDatabaseCli.main( args );
+                return;
+            }
             SongDatabase db = new SongDatabase();
             filePath = args[0];
-            db.readDBFile( args[0] );
+            catalog = new SongCatalog( filePath );
+            if( BoundedSongStore.isEnabled() )
+            {
+                bounded = new BoundedSongStore( filePath );
+                SongMetrics.get().watch( bounded.getCache() );
+            }
+            songList = new SongListModel( catalog.getSongs() );
+            // JMX and the log line, if -Dsongdb.metrics=true
+            SongMetrics.get().start( catalog );
+            // read only lookups over HTTP, if -Dsongdb.http.port is set.
+            // They need every song loaded, so not in bounded mode
+            if( bounded == null )
+            {
+                SongHttpService.useNoDelay();
+                SongHttpService.startFromProperty( catalog );
+            }
+            db.checkDBFile( args[0] );
             launch( args[0] );
     }
         
@@ -104,7 +149,8 @@ public class SongDatabase extends Application
      * First, all text fields are initialized, then comboBox is initialized w/ 
      * handler, then all buttons are initialized with their own anonymous inner
      * handler classes. 
-     * This method ends by exitButton listener, which ends the program.
+     * This method ends by exitButton listener, which ends the program,
+     * and then starts reading the song database file with readDBFile().
      * 
      * @param mainStage is the main Stage of the program which holds all panes
      * @author Candace Holcombe-Volke
@@ -131,7 +177,14 @@ public class SongDatabase extends Application
         FlowPane statusNode = new FlowPane( Orientation.VERTICAL );
         statusNode.setPadding( new Insets( 10, 10, 10, 10 ));
         statusLabel.setText( "Current Mode: View");
-        statusNode.getChildren().addAll( statusLabel, errorLabel );
+        searchField = new TextField();
+        searchField.setPromptText( bounded == null
+            ? "Search titles and descriptions, or artist:name or album:name"
+            : "Search is off in bounded memory mode" );
+        searchField.setPrefColumnCount( 30 );
+        loadProgress.setPrefWidth( 350 );
+        statusNode.getChildren().addAll( statusLabel, errorLabel, 
+            searchField, loadProgress, loadLabel );
        
         
         FlowPane textNode = new FlowPane( Orientation.HORIZONTAL ); 
@@ -147,24 +200,39 @@ public class SongDatabase extends Application
         
         
         
-        // Initialize songList observableList with TreeMap song names
-        for( Map.Entry<String, SongDetails> me : songs.entrySet() )
-        {
-            songList.add( me.getValue().getSongTitle()); 
-        }
-        
-        
         // Initialize songList combo box
         songListComboBox = new ComboBox<String>( songList );
         songListComboBox.setEditable( false );
         songListComboBox.setVisibleRowCount( 4 );
         songListComboBox.setPrefWidth( 350 );
-        //Initialize ListView with the songs in the TreeMap
-        Set<Map.Entry<String, SongDetails>> set = songs.entrySet(); 
-        for( Map.Entry<String, SongDetails> me : set )
+        //Initialize ListView with the songs in the catalog
+        loadedSongs.setItems( songList );
+        
+        // Create searchField listener, which shows only the songs
+        // matching every word typed so far, or by the artist or on the
+        // album named, in the combo box
+        searchField.textProperty().addListener( new ChangeListener<String>()
         {
-            loadedSongs.getItems().setAll( me.getValue().getSongTitle());
-        }
+            public void changed( ObservableValue<? extends String> change,
+                String oldVal, String newVal )
+            {
+                if( newVal.trim().isEmpty() )
+                {
+                    searchCodes = null;
+                    songListComboBox.setItems( songList );
+                    return;
+                }
+                searchCodes = find( newVal.trim() );
+                ObservableList<String> matches =
+                    FXCollections.observableArrayList();
+                for( String code : searchCodes )
+                {
+                    matches.add( catalog.getSongs().get( code )
+                        .getSongTitle() );
+                }
+                songListComboBox.setItems( matches );
+            }
+        });
         
         // Create songListComboBox listener, anonymous inner class
         SingleSelectionModel<String> selectionMod = 
@@ -176,23 +244,25 @@ public class SongDatabase extends Application
             public void changed( ObservableValue<? extends String> change, 
                 String oldVal, String newVal ) 
             {
-                // get TreeMap entry set to find data linked to song selected
-                Set<Map.Entry<String, SongDetails>> set = songs.entrySet(); 
-                for( Map.Entry<String, SongDetails> me : set)
+                // look up the item code of the song at the selected row
+                String code = shownCode( 
+                    songListComboBox.getSelectionModel().getSelectedIndex() );
+                if( code != null )
                 {
-                    // find matching key
-                    if ( me.getValue().getSongTitle() == newVal ) 
+                    long started = SongMetrics.get().selectionTimer().start();
+                    SongDetails selected = lookUp( code );
+                    if( selected != null )
                     {
                         // Get details for the selected song and display 
                         //in text field
-                        itemCodeField.setText( me.getKey() );
+                        itemCodeField.setText( selected.getItemCode() );
                         descriptionField.setText ( 
-                            me.getValue().getDescription()); 
-                        artistField.setText ( me.getValue().getArtist() ); 
-                        albumField.setText ( me.getValue().getAlbum() ); 
-                        // need to reformat this and get as double
-                        priceField.setText(  me.getValue().getPriceString());
+                            selected.getDescription() ); 
+                        artistField.setText ( selected.getArtist() ); 
+                        albumField.setText ( selected.getAlbum() ); 
+                        priceField.setText( selected.getPriceString() );
                     }
+                    SongMetrics.get().selectionTimer().stop( started );
                 }
             }
         });
@@ -212,7 +282,8 @@ public class SongDatabase extends Application
                     "Current Status: Add Mode"))
                 {
                     // prevent accidentally adding a song that already exists
-                    if ( songs.containsKey(itemCodeField.getText() )
+                    if ( catalog.getSongs().containsKey(
+                        itemCodeField.getText() )
                         && statusLabel.getText().equalsIgnoreCase(
                             "Current Status: Add Mode" ))
                     {
@@ -303,11 +374,13 @@ public class SongDatabase extends Application
                 priceField.setDisable(false);
                 
                 addButton.setDisable(true);
+                searchField.setDisable(true);
                 editButton.setDisable(true); 
                 deleteButton.setDisable(true); 
                 acceptButton.setDisable(false); 
                 cancelButton.setDisable(false);
                 exitButton.setDisable(true);
+                deltaButton.setDisable(true);
             }
         });
 
@@ -321,6 +394,7 @@ public class SongDatabase extends Application
             public void handle( ActionEvent event ) 
             {
                 statusLabel.setText( "Current Status: Edit Mode" );
+                searchField.setDisable( true );
                 
                 songListComboBox.setEditable( false );
                 itemCodeField.setDisable( true );
@@ -335,6 +409,7 @@ public class SongDatabase extends Application
                 acceptButton.setDisable( false ); 
                 cancelButton.setDisable( false );
                 exitButton.setDisable( true );
+                deltaButton.setDisable( true );
             }
         });
         
@@ -347,6 +422,7 @@ public class SongDatabase extends Application
             public void handle( ActionEvent event ) 
             {
                 statusLabel.setText( "Current Status: Delete Mode");
+                searchField.setDisable( true );
                 errorLabel.setText( "Are you sure you want to delete"
                     + " the selected song?");
                 
@@ -363,6 +439,7 @@ public class SongDatabase extends Application
                 acceptButton.setDisable( false ); 
                 cancelButton.setDisable( false );
                 exitButton.setDisable( true );
+                deltaButton.setDisable( true );
             }
         });
         
@@ -378,6 +455,7 @@ public class SongDatabase extends Application
             public void handle( ActionEvent event ) throws 
             NullPointerException, NumberFormatException
             {
+                long started = SongMetrics.get().acceptTimer().start();
                 try 
                 {
                     // acceptButton handler from Add Mode
@@ -404,19 +482,9 @@ public class SongDatabase extends Application
                                 artistField.getText(), 
                                 albumField.getText(), priceField.getText());
                             
-                            // Add new song of type SongDetails to TreeMap
-                            songs.put( newSong.getItemCode(), newSong);
+                            // Add new song of type SongDetails to songs
+                            putSong( newSong );
     
-                            // Update the songList ListView and observable list
-                            songList.clear();
-                            Set<Map.Entry<String, SongDetails>> set =
-                                songs.entrySet(); 
-                            for( Map.Entry<String, SongDetails> me : set)
-                            {
-                                loadedSongs.getItems().setAll(
-                                    me.getValue().getSongTitle()); 
-                                songList.add( me.getValue().getSongTitle()); 
-                            }
                             returnToViewMode();
                         }
                         else // Update errorLabel if any fields are blank
@@ -475,19 +543,9 @@ public class SongDatabase extends Application
                             artistField.getText(), 
                             albumField.getText(), priceField.getText());
                         
-                        // Add newSong of type SongDetails to TreeMap
-                        songs.put( newSong.getItemCode(), newSong );
+                        // Add newSong of type SongDetails to songs
+                        putSong( newSong );
 
-                        // Update the songList ListView and observable list
-                        songList.clear();
-                        Set<Map.Entry<String, SongDetails>> set =
-                            songs.entrySet(); 
-                        for( Map.Entry<String, SongDetails> me : set)
-                        {
-                            loadedSongs.getItems().setAll(
-                                me.getValue().getSongTitle()); 
-                            songList.add( me.getValue().getSongTitle()); 
-                        }
                         returnToViewMode();
                     }
                     
@@ -497,10 +555,7 @@ public class SongDatabase extends Application
                     {
                         // Remove song from songs, and songList (which will
                         // update loadedSongs
-                        songs.remove( itemCodeField.getText() ); 
-                        int index = 
-                            songListComboBox.getSelectionModel().getSelectedIndex();
-                        songList.remove( index ); 
+                        removeSong( itemCodeField.getText() ); 
                         
                         returnToViewMode();
                     } // End accept hander for Delete Mode
@@ -517,6 +572,10 @@ public class SongDatabase extends Application
                 {
                     errorLabel.setText( "The price must be a number.");
                 }
+                finally
+                {
+                    SongMetrics.get().acceptTimer().stop( started );
+                }
             } // end all acceptButton listening
         }); 
         
@@ -542,58 +601,80 @@ public class SongDatabase extends Application
         {
             public void handle( ActionEvent event )
             {
-                try 
-                {
-                    writeOut();
-                    System.exit(0);  
-                } 
-                  
-                catch (IOException event2) 
+                if( viewOnly() )
                 {
-                    System.out.println("Error: Something went wrong and "
-                        + "Your input is not accepted. Please try again.");
+                    // nothing can have changed
+                    if( bounded != null )
+                    {
+                        System.out.println( bounded.getCache() );
+                    }
+                    System.exit(0);
                 }
+                statusLabel.setText( "Current Status: Saving" );
+                exitButton.setDisable( true );
+                // save in the background and exit once the file is written
+                catalog.saveAndClose().whenComplete( 
+                    ( done, failure ) -> Platform.runLater( () ->
+                {
+                    if( failure == null )
+                    {
+                        System.exit(0);
+                    }
+                    System.out.println( "I/O Error: " + failure );
+                    errorLabel.setText( 
+                        "Something went wrong. Changes not saved." );
+                    statusLabel.setText( "Current Status: View Mode" );
+                    exitButton.setDisable( false );
+                }));
             }
         }); 
 
         
+        // Initialize deltaButton, which upserts the songs in a delta file
+        deltaButton = new Button( "Apply Delta" );
+        deltaButton.setPrefWidth( 100 );
+        deltaButton.setOnAction( new EventHandler<ActionEvent>()
+        {
+            public void handle( ActionEvent event )
+            {
+                FileChooser chooser = new FileChooser();
+                chooser.setTitle( "Choose a delta file" );
+                File delta = chooser.showOpenDialog( mainStage );
+                if( delta != null )
+                {
+                    applyDelta( delta.getPath() );
+                }
+            }
+        });
+
         // Add all buttons to the buttonNode
         buttonNode.getChildren().addAll( addButton, editButton, deleteButton,
-            acceptButton, cancelButton, exitButton );
+            acceptButton, cancelButton, deltaButton, exitButton );
 
         
-        
-        // Initial state of controls 
-        if( songList.isEmpty() )
-        {
-            songListComboBox.setEditable( false );
-            songListComboBox.setPromptText( "Database Empty. Add some songs!");
-            songListComboBox.getSelectionModel().select( 0 );
-            loadedSongs.setDisable( true ); 
-    
-            songListComboBox.setDisable( false );
-            itemCodeField.setEditable( false );
-            descriptionField.setEditable( false );
-            artistField.setEditable( false );
-            albumField.setEditable( false );
-            priceField.setEditable( false );
-            
-            addButton.setDisable( false );
-            editButton.setDisable( false ); 
-            deleteButton.setDisable( false ); 
-            acceptButton.setDisable( true ); 
-            cancelButton.setDisable( true );
-            exitButton.setDisable( false );
-        }
-        // Initial state of controls if database is empty
-        else if( !songList.isEmpty() )
+        // Save a snapshot every -Dsongdb.autosave.seconds, if it is set.
+        // The snapshot is taken on the FX thread, which changes the catalog
+        if( bounded == null )
         {
-            returnToViewMode();
+            catalog.getSnapshots().scheduleAutosave( 
+                SnapshotWriter.autosaveSecondsFromProperty(),
+                () -> Platform.runLater( () -> autosave() ));
         }
+        
+        // Initial state of controls. Songs can be browsed as they load,
+        // but nothing can be changed until they are all in
+        loading = true;
+        songListComboBox.setPromptText( "Loading songs..." );
+        returnToViewMode();
+        readDBFile( filePath );
     } 
     
     public void returnToViewMode()
     {
+        // Show the whole song list again
+        searchField.clear();
+        searchField.setDisable( bounded != null );
+        
      // Enable/Disable appropriate controls for view mode
         songListComboBox.setEditable( false );
         songListComboBox.getSelectionModel().select( 0 );
@@ -611,12 +692,13 @@ public class SongDatabase extends Application
         priceField.setEditable( false );
         priceField.setDisable( false );
         
-        addButton.setDisable( false );
-        editButton.setDisable( false ); 
-        deleteButton.setDisable( false ); 
+        addButton.setDisable( loading || viewOnly() );
+        editButton.setDisable( loading || viewOnly() ); 
+        deleteButton.setDisable( loading || viewOnly() ); 
         acceptButton.setDisable( true ); 
         cancelButton.setDisable( true );
-        exitButton.setDisable( false );
+        deltaButton.setDisable( loading || viewOnly() );
+        exitButton.setDisable( loading );
         
         // Update status and error labels
         statusLabel.setText( "Current Status: View Mode" );
@@ -624,88 +706,431 @@ public class SongDatabase extends Application
     }
     
     /**
-     * readDBFile uses command line args to find file if it exists
-     * and read in the data using a BufferedReader. It initializes 
-     * the songs TreeMap and catches 
-     * FileNotFoundException if the file doesn't exist and prompts user
-     * to ask if it should create one. 
+     * checkDBFile makes sure the song database file exists before the GUI
+     * opens. If it doesn't, it prompts user to ask if it should create
+     * one.
      * 
      * @param fp is the command line arg which is the file location
      * @throws IOException if erro on input or output of file
-     * @throws FileNotFoundException if database doesn't exist
      */
-    public void readDBFile( String fp ) throws IOException
+    public void checkDBFile( String fp ) throws IOException
     {
-        String line;
-        // Read in the data
-        try( BufferedReader songDB = new BufferedReader(
-            new InputStreamReader(new FileInputStream(fp))) )
-        {
-           while ( (line = songDB.readLine()) != null && !line.equals(""))
-           {    
-               // Separate by delimiter
-               String songElem [] = (line.split( "\\," ));
-
-               //Assign elements to array
-               SongDetails nextSong = new SongDetails( songElem[0].trim(), 
-                   songElem[1].trim(), songElem[2].trim(),
-                   songElem[3].trim(), songElem[4].trim(), 
-                   songElem[5].trim() );
-               songs.put( songElem[1].trim(), nextSong ); 
-           }
+        if( new File( fp ).exists() )
+        {
+            return;
+        }
+        Scanner response = new Scanner ( System.in );
+        System.out.println( 
+            "That database doesn't exist yet. Do you want to"
+            + "create it? (Y/N)" );
+        String createDB = response.nextLine().toUpperCase();
+        switch ( createDB )
+        {
+            case "Y":
+                
+            {
+                writeOut(); // writes empty database
+                break;
+            }
+            case "N":
+            {
+                System.out.println( "Goodbye." );
+                System.exit(0);
+            }
+        }
+        response.close(); 
+    }
+    
+    /**
+     * readDBFile starts reading the song database file on a background
+     * SongLoadTask, using a SongFileParser, or a 
+     * ParallelSongLoader or MappedSongLoader when -Dsongdb.loader is 
+     * parallel or mapped. Binary files are read with BinarySongFormat 
+     * instead. Songs are added to the catalog and 
+     * the song list a batch at a time as they are read, and loadLabel 
+     * and loadProgress show how far it has got. Changes saved in the 
+     * journal since the file was last written are applied on top.
+     * Once it finishes it prints how fast the file loaded, opens the 
+     * journal for this session and turns editing on. If it fails 
+     * partway, the songs that did load can be viewed but not changed or 
+     * saved, and the journal is left as it was.
+     * In bounded mode the file is indexed with openBounded() instead.
+     * 
+     * @param fp is the command line arg which is the file location
+     */
+    public void readDBFile( String fp )
+    {
+        if( bounded != null )
+        {
+            openBounded( fp );
+            return;
         }
+        SongLoadTask task = new SongLoadTask( fp, catalog.getFormat(), 
+            LoadMode.fromProperty(), catalog.getDictionary(), 
+            batch -> addLoaded( batch ), codes -> removeLoaded( codes ));
+        loadLabel.textProperty().bind( task.messageProperty() );
+        loadProgress.progressProperty().bind( task.progressProperty() );
         
-        // catches if song database doesn't exist
-        catch ( FileNotFoundException exception )
+        task.setOnSucceeded( event ->
+        {
+            lastLoad = task.getValue();
+            System.out.println( lastLoad );
+            SongMetrics.get().recordLoad( lastLoad );
+            loadFinished( lastLoad.toString() );
+            openJournal( task.getReplayed() );
+        });
+        // catches IO exceptions, showing the songs that did load. They
+        // are only part of the file and the journal hasn't been replayed,
+        // so nothing is journaled or saved until the file is reloaded
+        task.setOnFailed( event ->
         {
-            Scanner response = new Scanner ( System.in );
-            System.out.println( 
-                "That database doesn't exist yet. Do you want to"
-                + "create it? (Y/N)" );
-            String createDB = response.nextLine().toUpperCase();
-            switch ( createDB )
+            System.out.println( "I/O Error: " + task.getException() );
+            loadFailed = true;
+            loadFinished( "" );
+            errorLabel.setText( "Something went wrong loading the songs. "
+                + "They can only be viewed; restart to load them again." );
+        });
+        
+        Thread loader = new Thread( task, "song-loader" );
+        loader.setDaemon( true );
+        loader.start();
+    }
+    
+    /**
+     * openBounded indexes the song database file on a background thread,
+     * in place of loading it, when -Dsongdb.bounded=true. The file is
+     * sorted and has its journal folded in first if it needs it. Once
+     * the index is built the song list shows every song, and a song is
+     * read from the file, or the cache, when it is selected.
+     * 
+     * @param fp song database file location
+     */
+    private void openBounded( String fp )
+    {
+        loadLabel.setText( "Indexing " + new File( fp ).getName() );
+        loadProgress.setProgress( ProgressBar.INDETERMINATE_PROGRESS );
+        Thread indexer = new Thread( () ->
+        {
+            try
             {
-                case "Y":
-                    
+                LoadStats stats = bounded.open();
+                Platform.runLater( () -> indexed( stats ));
+            }
+            catch( IOException | RuntimeException exception )
+            {
+                System.out.println( "I/O Error: " + exception );
+                Platform.runLater( () ->
                 {
-                    writeOut(); // writes empty database
-                    break;
-                }
-                case "N":
+                    loadFinished( "" );
+                    errorLabel.setText( 
+                        "Something went wrong indexing the songs." );
+                });
+            }
+        }, "song-indexer" );
+        indexer.setDaemon( true );
+        indexer.start();
+    }
+    
+    /**
+     * Shows the songs of a freshly built index
+     * @param stats numbers from indexing the file
+     */
+    private void indexed( LoadStats stats )
+    {
+        lastLoad = stats;
+        System.out.println( stats );
+        System.out.printf( "Index of %,d songs takes %,d bytes; "
+            + "songs are cached in up to %,d bytes%n", bounded.size(),
+            bounded.getIndex().getBytes(), bounded.getCache().getBudget() );
+        songList.show( bounded.codes(), bounded.view() );
+        loadFinished( stats.toString() );
+        songListComboBox.getSelectionModel().select( 0 );
+    }
+    
+    /**
+     * Adds a batch of songs from the file to the catalog and the song
+     * list
+     * @param batch songs in file order, a later one replacing an earlier
+     * one with the same item code
+     */
+    private void addLoaded( List<SongDetails> batch )
+    {
+        catalog.putAll( batch );
+        songList.putAll( batch );
+        
+        // show the first song's details as soon as there is one
+        if( searchCodes == null && songListComboBox.getSelectionModel()
+            .getSelectedIndex() < 0 )
+        {
+            songListComboBox.getSelectionModel().select( 0 );
+        }
+    }
+    
+    /**
+     * Removes the songs the journal deleted
+     * @param codes item codes of the deleted songs
+     */
+    private void removeLoaded( List<String> codes )
+    {
+        catalog.removeAll( codes );
+        songList.removeAll( codes );
+    }
+    
+    /**
+     * applyDelta upserts the songs in a delta file on a background 
+     * thread with a SongDelta, under the -Dsongdb.delta.policy conflict
+     * policy. Each batch is applied to the catalog and the song list on 
+     * the FX thread, and editing is off until the whole file is in. 
+     * The counts are printed and shown in loadLabel at the end.
+     * 
+     * @param fp delta file location
+     */
+    private void applyDelta( String fp )
+    {
+        loading = true;
+        returnToViewMode();
+        loadLabel.setText( "Applying " + new File( fp ).getName() );
+        SongDelta delta = new SongDelta( fp, ConflictPolicy.fromProperty() );
+        Thread applier = new Thread( () ->
+        {
+            try
+            {
+                delta.apply( catalog, Platform::runLater, 
+                    batch -> deltaApplied( batch ));
+                System.out.println( delta );
+                Platform.runLater( () -> loadFinished( delta.toString() ));
+            }
+            catch( IOException | RuntimeException exception )
+            {
+                System.out.println( "I/O Error: " + exception );
+                Platform.runLater( () ->
                 {
-                    System.out.println( "Goodbye." );
-                    System.exit(0);
-                }
+                    loadFinished( "" );
+                    errorLabel.setText( 
+                        "Something went wrong applying the delta file." );
+                });
             }
-            response.close(); 
+        }, "song-delta" );
+        applier.setDaemon( true );
+        applier.start();
+    }
+    
+    /**
+     * Shows a batch of a delta file's changes in the song list
+     * @param batch the batch, once it is applied to the catalog
+     */
+    private void deltaApplied( SongDelta.Batch batch )
+    {
+        songList.update( batch.getItemCodes() );
+        compactIfDue();
+    }
+    
+    /**
+     * Turns editing on once the whole file is loaded
+     * @param summary shown in place of the load progress
+     */
+    private void loadFinished( String summary )
+    {
+        loading = false;
+        loadLabel.textProperty().unbind();
+        loadLabel.setText( summary );
+        loadProgress.progressProperty().unbind();
+        loadProgress.setVisible( false );
+        if( songList.isEmpty() )
+        {
+            songListComboBox.setPromptText( 
+                "Database Empty. Add some songs!" );
+        }
+        
+        addButton.setDisable( viewOnly() );
+        editButton.setDisable( viewOnly() ); 
+        deleteButton.setDisable( viewOnly() ); 
+        deltaButton.setDisable( viewOnly() );
+        exitButton.setDisable( false );
+    }
+    
+    /**
+     * Bounded mode only views songs, and so does a catalog whose file
+     * failed to load all the way
+     * @return true if nothing can be changed or saved
+     */
+    private boolean viewOnly()
+    {
+        return bounded != null || loadFailed;
+    }
+    
+    /**
+     * Keeps journaling the changes made from now on. If the journal had 
+     * changes in it, they are folded into the file straight away.
+     * @param replayed number of journal entries applied while loading
+     */
+    private void openJournal( int replayed )
+    {
+        try
+        {
+            catalog.openJournal( replayed );
         }
-        // catches general IO exceptions
         catch (IOException exception )
+        {
+            System.out.println( "Journal Error: " + exception );
+        }
+    }
+    
+    /**
+     * Finds the songs to show for what is typed in the search field. An
+     * "artist:" or "album:" in front looks the rest up in the catalog's
+     * SongIndex, so the songs by one artist or on one album come straight
+     * from the index instead of a walk through every song; anything else
+     * is a word search.
+     * @param query what is typed, trimmed
+     * @return item codes of at most MAX_SEARCH_RESULTS songs, in order
+     */
+    private List<String> find( String query )
+    {
+        SortedSet<String> codes;
+        if( query.regionMatches( true, 0, ARTIST_FILTER, 0,
+            ARTIST_FILTER.length() ))
+        {
+            codes = catalog.getIndex().codesForArtist( query.substring(
+                ARTIST_FILTER.length() ).trim() );
+        }
+        else if( query.regionMatches( true, 0, ALBUM_FILTER, 0,
+            ALBUM_FILTER.length() ))
+        {
+            codes = catalog.getIndex().codesForAlbum( query.substring(
+                ALBUM_FILTER.length() ).trim() );
+        }
+        else
+        {
+            return catalog.search( query, MAX_SEARCH_RESULTS );
+        }
+        List<String> found = new ArrayList<String>();
+        for( String code : codes )
+        {
+            if( found.size() == MAX_SEARCH_RESULTS )
+            {
+                break;
+            }
+            found.add( code );
+        }
+        return found;
+    }
+    
+    /**
+     * Finds the song at a row of the combo box, whether it is showing the
+     * whole song list or search matches
+     * @param row selected row, -1 if none
+     * @return item code of the song at that row, or null
+     */
+    private String shownCode( int row )
+    {
+        if( searchCodes == null )
+        {
+            return songList.codeAt( row );
+        }
+        return row >= 0 && row < searchCodes.size() ? searchCodes.get( row )
+            : null;
+    }
+    
+    /**
+     * Finds the song with an item code, in the catalog, or in bounded
+     * mode in the cache or the file
+     * @param code item code of the song
+     * @return the song, or null if it can't be read
+     */
+    private SongDetails lookUp( String code )
+    {
+        if( bounded == null )
+        {
+            return catalog.getSongs().get( code );
+        }
+        try
+        {
+            return bounded.get( code );
+        }
+        catch( IOException exception )
         {
             System.out.println( "I/O Error: " + exception );
+            errorLabel.setText( "Something went wrong reading the song." );
+            return null;
+        }
+    }
+    
+    /**
+     * Adds a song to the catalog, or replaces the song with the
+     * same item code, and keeps the song list up to date.
+     * The journal is folded into the database file once it has grown long
+     * @param song the song as it now is
+     */
+    private void putSong( SongDetails song )
+    {
+        catalog.put( song );
+        songList.put( song );
+        compactIfDue();
+    }
+    
+    /**
+     * Removes a song from the catalog and the song list
+     * @param itemCode item code of the song to remove
+     */
+    private void removeSong( String itemCode )
+    {
+        catalog.remove( itemCode );
+        songList.remove( itemCode );
+        compactIfDue();
+    }
+    
+    private void compactIfDue()
+    {
+        try
+        {
+            catalog.compactIfDue();
+        }
+        catch (IOException exception )
+        {
+            errorLabel.setText( "Something went wrong saving the journal." );
+        }
+    }
+    
+    /**
+     * Runs on the FX thread every autosave interval. Writing the
+     * snapshot also folds the journal into the file.
+     */
+    private void autosave()
+    {
+        if( loading || loadFailed )
+        {
+            return; // only part of the file is in
+        }
+        try
+        {
+            catalog.autosave();
+        }
+        catch (IOException exception )
+        {
+            errorLabel.setText( "Something went wrong saving the journal." );
         }
     }
     
     /**
      * writeOut takes the data and writes it to a file based on the 
-     * command line args. Called by readDBFile() and exitButton listener
+     * command line args, in the format it was read in, and waits for the
+     * write to finish. The file is
+     * replaced in one step so a failed write never leaves it half
+     * written. Called by checkDBFile().
+     * Once the file is written the journal is no longer needed and is
+     * deleted.
      * @throws IOException caught if there are write issues
      */
     public void writeOut() throws IOException
     {
         try
         {
-            BufferedWriter buffOut = new BufferedWriter(new FileWriter( filePath )); 
-            // Loop through map entries and get value. 
-            // Then write out with buffered writer
-            for( Map.Entry<String, SongDetails> me : songs.entrySet() )
-            {
-                buffOut.write( me.getValue().toString() );
-            }
-            buffOut.close(); 
+            catalog.save();
         }
         catch (IOException exception )
         {
+            System.out.println( "I/O Error: " + exception );
             errorLabel.setText("Something went wrong. Changes not saved.");
         }
     }
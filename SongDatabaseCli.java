@@ -0,0 +1,371 @@
+
+/**
+ * This class runs bulk jobs on song database files without the GUI, so
+ * they can run on a server. Every command streams its input to its
+ * output through SongReader, SongSorter, SongMerge and SongWriter, so it
+ * holds a bounded number of songs in memory however large the files are.
+ * Catalogs are read with their journal applied, and a catalog that is
+ * rewritten in place has its journal folded in and deleted, so the GUI
+ * should not have the same catalog open while a command runs.
+ *
+ * Usage:
+ *   java SongDatabaseCli import feed catalog
+ *   java SongDatabaseCli export catalog output [format]
+ *   java SongDatabaseCli merge catalog feed [output]
+ *   java SongDatabaseCli stats catalog
+ *   java SongDatabaseCli upsert catalog delta [policy]
+ *   java SongDatabaseCli serve catalog [port]
+ *
+ * import replaces the catalog with the songs in the feed. export writes
+ * the catalog to another file, in the format given (csv, binary,
+ * compressed or gzip) or the one output's name implies. merge adds the
+ * feed's songs to the catalog, a feed song replacing the catalog song
+ * with the same item code, and writes the result to output, or back to
+ * the catalog. stats prints counts, with the artist and album counts
+ * estimated to within about 1%, and prices. Feeds can be in any order
+ * and can repeat item codes, the last row for an item code winning.
+ *
+ * upsert applies a delta file to the catalog with SongDelta: its rows add
+ * or replace songs and its tombstone rows delete them, with songs already
+ * in the catalog handled by the conflict policy: overwrite (the default)
+ * or keep-existing.
+ * serve answers read only lookups on the catalog over HTTP with
+ * SongHttpService, on localhost and port 8080 unless another is given,
+ * until it is stopped.
+ * Unlike the others these two load the catalog into a SongCatalog, the
+ * way the GUI does, so they need as much memory as the GUI would.
+ *
+ * SongDatabase runs these too when its first arg is a command.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class SongDatabaseCli
+{
+    private static final List<String> COMMANDS =
+        Arrays.asList( "import", "export", "merge", "stats", "upsert",
+            "serve" );
+
+    /**
+     * Runs one command
+     * @param args the command and its args
+     * @throws IOException if a file can't be read or written
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        if( args.length == 0 || !isCommand( args[ 0 ] ))
+        {
+            usage();
+            return;
+        }
+        long startTime = System.nanoTime();
+        switch( args[ 0 ] )
+        {
+            case "import":
+                if( args.length != 3 )
+                {
+                    usage();
+                    return;
+                }
+                importFeed( args[ 1 ], args[ 2 ], startTime );
+                break;
+            case "export":
+                if( args.length < 3 || args.length > 4 )
+                {
+                    usage();
+                    return;
+                }
+                FileFormat to = args.length == 4
+                    ? FileFormat.valueOf( args[ 3 ].toUpperCase() )
+                    : FileFormat.detect( args[ 2 ] );
+                export( args[ 1 ], args[ 2 ], to, startTime );
+                break;
+            case "merge":
+                if( args.length < 3 || args.length > 4 )
+                {
+                    usage();
+                    return;
+                }
+                merge( args[ 1 ], args[ 2 ],
+                    args.length == 4 ? args[ 3 ] : args[ 1 ], startTime );
+                break;
+            case "upsert":
+                if( args.length < 3 || args.length > 4 )
+                {
+                    usage();
+                    return;
+                }
+                upsert( args[ 1 ], args[ 2 ], args.length == 4
+                    ? ConflictPolicy.fromName( args[ 3 ] )
+                    : ConflictPolicy.OVERWRITE );
+                break;
+            case "serve":
+                if( args.length < 2 || args.length > 3 )
+                {
+                    usage();
+                    return;
+                }
+                serve( args[ 1 ], args.length == 3
+                    ? Integer.parseInt( args[ 2 ] ) : 8080 );
+                break;
+            default:
+                if( args.length != 2 )
+                {
+                    usage();
+                    return;
+                }
+                stats( args[ 1 ], startTime );
+        }
+    }
+
+    /**
+     * @param arg first command line arg
+     * @return true if it names a command this class runs
+     */
+    public static boolean isCommand( String arg )
+    {
+        return COMMANDS.contains( arg );
+    }
+
+    private static void usage()
+    {
+        System.out.println( "Usage:\n"
+            + "  java SongDatabaseCli import feed catalog\n"
+            + "  java SongDatabaseCli export catalog output "
+            + "[csv|binary|compressed|gzip]\n"
+            + "  java SongDatabaseCli merge catalog feed [output]\n"
+            + "  java SongDatabaseCli stats catalog\n"
+            + "  java SongDatabaseCli upsert catalog delta "
+            + "[overwrite|keep-existing]\n"
+            + "  java SongDatabaseCli serve catalog [port]" );
+    }
+
+    /**
+     * Replaces a catalog with the songs in a feed
+     * @param feed feed file location, in either format
+     * @param catalog catalog file location
+     * @param startTime when the command started, from System.nanoTime()
+     * @throws IOException if a file can't be read or written
+     */
+    public static void importFeed( String feed, String catalog,
+        long startTime ) throws IOException
+    {
+        try( SongReader songs = SongSorter.sort( SongReader.open( feed ),
+            folderOf( catalog )) )
+        {
+            long written = copy( songs, catalog,
+                FileFormat.detect( catalog ));
+            SongJournal.discard( catalog );
+            report( "Imported", written, songs.malformed(), catalog,
+                bytes( feed ), startTime );
+        }
+    }
+
+    /**
+     * Writes a catalog, with its journal applied, to another file
+     * @param catalog catalog file location
+     * @param out output file location
+     * @param to format of the output
+     * @param startTime when the command started, from System.nanoTime()
+     * @throws IOException if a file can't be read or written
+     */
+    public static void export( String catalog, String out, FileFormat to,
+        long startTime ) throws IOException
+    {
+        try( SongReader songs = openCatalog( catalog, folderOf( out )) )
+        {
+            long written = copy( songs, out, to );
+            report( "Exported", written, songs.malformed(), out,
+                bytes( catalog ), startTime );
+        }
+    }
+
+    /**
+     * Adds a feed's songs to a catalog
+     * @param catalog catalog file location
+     * @param feed feed file location, in either format
+     * @param out where to write the merged catalog, which may be the
+     * catalog itself
+     * @param startTime when the command started, from System.nanoTime()
+     * @throws IOException if a file can't be read or written
+     */
+    public static void merge( String catalog, String feed, String out,
+        long startTime ) throws IOException
+    {
+        Path folder = folderOf( out );
+        try( SongMerge songs = new SongMerge( openCatalog( catalog, folder ),
+            SongSorter.sort( SongReader.open( feed ), folder )) )
+        {
+            long written = copy( songs, out, FileFormat.detect( out ));
+            if( samePath( catalog, out ))
+            {
+                SongJournal.discard( catalog );
+            }
+            System.out.printf( "%,d songs added, %,d replaced%n",
+                songs.getAdded(), songs.getReplaced() );
+            report( "Merged", written, songs.malformed(), out,
+                bytes( catalog ) + bytes( feed ), startTime );
+        }
+    }
+
+    /**
+     * Prints song, artist and album counts and prices for a catalog. The
+     * artist and album counts are HyperLogLog estimates, so the command
+     * needs the same memory however many there are.
+     * @param catalog catalog file location
+     * @param startTime when the command started, from System.nanoTime()
+     * @throws IOException if the catalog can't be read
+     */
+    public static void stats( String catalog, long startTime )
+        throws IOException
+    {
+        long count = 0;
+        long total = 0; // prices in cents
+        long lowest = Long.MAX_VALUE;
+        long highest = Long.MIN_VALUE;
+        // distinct counts are estimated, in fixed memory
+        HyperLogLog artists = new HyperLogLog();
+        HyperLogLog albums = new HyperLogLog();
+        long malformed;
+        try( SongReader songs = openCatalog( catalog, folderOf( catalog )) )
+        {
+            SongDetails song;
+            while( ( song = songs.next() ) != null )
+            {
+                count++;
+                total += song.getPriceCents();
+                lowest = Math.min( lowest, song.getPriceCents() );
+                highest = Math.max( highest, song.getPriceCents() );
+                artists.add( song.getArtist() );
+                albums.add( song.getAlbum() );
+            }
+            malformed = songs.malformed();
+        }
+        System.out.printf( "%s: %,d songs, about %,d artists, about %,d "
+            + "albums%n", catalog, count, artists.estimate(),
+            albums.estimate() );
+        if( count > 0 )
+        {
+            System.out.printf( "Prices: total $%s, average $%s, "
+                + "lowest $%s, highest $%s%n", SongDetails.formatCents( total ),
+                SongDetails.formatCents( Math.round( (double) total / count )),
+                SongDetails.formatCents( lowest ),
+                SongDetails.formatCents( highest ));
+        }
+        report( "Read", count, malformed, catalog, bytes( catalog ),
+            startTime );
+    }
+
+    /**
+     * Applies a delta file to a catalog and saves it
+     * @param catalog catalog file location
+     * @param delta delta file location
+     * @param policy what to do with songs the catalog already has
+     * @throws IOException if a file can't be read or written
+     */
+    public static void upsert( String catalog, String delta,
+        ConflictPolicy policy ) throws IOException
+    {
+        SongCatalog songs = new SongCatalog( catalog );
+        if( new File( catalog ).exists() )
+        {
+            songs.load();
+        }
+        SongDelta applied = new SongDelta( delta, policy ).apply( songs,
+            Runnable::run, batch -> { } );
+        songs.saveAndClose().join();
+        System.out.println( applied );
+    }
+
+    /**
+     * Loads a catalog and answers lookups on it over HTTP. The server's
+     * threads keep the program running after this returns.
+     * @param catalog catalog file location
+     * @param port port to listen on, on the loopback address
+     * @throws IOException if the catalog can't be read or the port bound
+     */
+    public static void serve( String catalog, int port ) throws IOException
+    {
+        SongHttpService.useNoDelay();
+        SongCatalog songs = new SongCatalog( catalog );
+        System.out.println( songs.load() );
+        SongHttpService service = new SongHttpService( songs, port );
+        service.start();
+        System.out.println( "Serving songs on " + service.getAddress() );
+    }
+
+    /**
+     * Reads a catalog in item code order with its journal applied
+     * @param catalog catalog file location
+     * @param folder folder for temporary sort files
+     * @return the songs
+     * @throws IOException if the catalog or its journal can't be read
+     */
+    static SongReader openCatalog( String catalog, Path folder )
+        throws IOException
+    {
+        SongJournal.Changes changes = SongJournal.changes( catalog, null );
+        return new SongMerge( SongSorter.sort( SongReader.open( catalog ),
+            folder ), SongReader.of( changes.values() ),
+            changes.getRemoved() );
+    }
+
+    /**
+     * Writes every song to a file, replacing it only once all are written
+     * @return number of songs written
+     */
+    static long copy( SongReader songs, String out, FileFormat to )
+        throws IOException
+    {
+        SongWriter writer = SongFileWriter.open( out, to );
+        try
+        {
+            SongDetails song;
+            while( ( song = songs.next() ) != null )
+            {
+                writer.write( song );
+            }
+        }
+        catch( IOException | RuntimeException exception )
+        {
+            writer.abort();
+            throw exception;
+        }
+        writer.close();
+        return writer.count();
+    }
+
+    private static void report( String what, long songs, long malformed,
+        String fp, long bytesIn, long startTime )
+    {
+        double seconds = ( System.nanoTime() - startTime ) / 1e9;
+        System.out.printf( "%s %,d songs (%,d malformed rows) %s %s in "
+            + "%.1f s: %,.0f songs/s, %.1f MB/s%n", what, songs, malformed,
+            what.equals( "Read" ) ? "from" : "to", fp, seconds,
+            songs / seconds, bytesIn / 1e6 / seconds );
+    }
+
+    private static Path folderOf( String fp )
+    {
+        return Paths.get( fp ).toAbsolutePath().getParent();
+    }
+
+    private static boolean samePath( String a, String b )
+    {
+        return Paths.get( a ).toAbsolutePath().normalize().equals(
+            Paths.get( b ).toAbsolutePath().normalize() );
+    }
+
+    private static long bytes( String fp )
+    {
+        return new File( fp ).length();
+    }
+}
@@ -0,0 +1,345 @@
+
+/**
+ * This class applies a delta file to a SongCatalog. A delta file has the
+ * same comma separated layout as the database file. Each row adds a song
+ * or replaces the song with the same item code. A tombstone row, with
+ * nothing filled in but the item code, deletes that song. The
+ * ConflictPolicy decides what happens to songs the catalog already has.
+ *
+ * The file is streamed, and its rows are applied in batches of up to
+ * BATCH_SIZE on an Executor the caller gives. That way the GUI can read
+ * on a background thread and change the catalog on the FX thread. The
+ * next batch is read while the last one is being applied. No batch has
+ * the same item code twice, so each can be shown with one list change.
+ * Each batch changes the catalog's songs once and is journaled with
+ * one append.
+ *
+ * Once apply() returns, the counts say what the delta did and
+ * toString() reports them with the throughput.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+
+public class SongDelta
+{
+    // most rows applied at once
+    private static final int BATCH_SIZE = 5000;
+
+    private final String deltaPath;
+    private final ConflictPolicy policy;
+    // true if the delta wins over existing songs
+    private boolean overwrite;
+
+    private long rows; // songs and tombstones read
+    private long added;
+    private long updated;
+    private long deleted;
+    private long skipped; // changes to existing songs the policy kept out
+    private long missing; // tombstones for songs the catalog didn't have
+    private long malformed;
+    private long bytes;
+    private long nanos;
+
+    /**
+     * Constructor
+     * @param fp delta file location
+     * @param conflictPolicy what to do with songs the catalog already has
+     */
+    public SongDelta( String fp, ConflictPolicy conflictPolicy )
+    {
+        deltaPath = fp;
+        policy = conflictPolicy;
+    }
+
+    /**
+     * Reads the delta file and applies its rows to the catalog
+     * @param catalog catalog to change
+     * @param applyOn runs each batch on the thread that changes the
+     * catalog, Runnable::run to apply them on this one
+     * @param applied called on that thread after each batch is applied
+     * @return this, with the counts filled in
+     * @throws IOException if the delta file can't be read
+     */
+    public SongDelta apply( SongCatalog catalog, Executor applyOn,
+        Consumer<Batch> applied ) throws IOException
+    {
+        long startTime = System.nanoTime();
+        overwrite = policy.overwrites();
+        CompletableFuture<Void> last = CompletableFuture.completedFuture(
+            null );
+        try( SongFileParser parser = new SongFileParser(
+            new FileInputStream( deltaPath )) )
+        {
+            Batch batch = new Batch();
+            while( parser.nextRecord() )
+            {
+                if( parser.fieldCount() == 0 )
+                {
+                    continue; // blank line
+                }
+                SongDetails song = null;
+                String itemCode;
+                if( parser.isTombstone() )
+                {
+                    itemCode = parser.field( 1 );
+                }
+                else
+                {
+                    song = parser.song();
+                    if( song == null )
+                    {
+                        continue; // counted as malformed
+                    }
+                    itemCode = song.getItemCode();
+                }
+                rows++;
+                if( batch.size() == BATCH_SIZE || batch.has( itemCode ))
+                {
+                    last = handOver( batch, catalog, applyOn, applied, last );
+                    batch = new Batch();
+                }
+                batch.add( itemCode, song );
+            }
+            if( batch.size() > 0 )
+            {
+                last = handOver( batch, catalog, applyOn, applied, last );
+            }
+            malformed = parser.malformed();
+            bytes = parser.bytesRead();
+        }
+        finally
+        {
+            waitFor( last );
+        }
+        nanos = System.nanoTime() - startTime;
+        return this;
+    }
+
+    /**
+     * Waits for the last batch to be applied, then sends this one
+     * @return completes once this batch is applied
+     */
+    private CompletableFuture<Void> handOver( Batch batch,
+        SongCatalog catalog, Executor applyOn, Consumer<Batch> applied,
+        CompletableFuture<Void> last )
+    {
+        waitFor( last );
+        return CompletableFuture.runAsync( () ->
+        {
+            applyBatch( batch, catalog );
+            applied.accept( batch );
+        }, applyOn );
+    }
+
+    private static void waitFor( CompletableFuture<Void> batch )
+    {
+        try
+        {
+            batch.join();
+        }
+        catch( CompletionException exception )
+        {
+            // pass on what went wrong on the thread that applied it
+            if( exception.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException) exception.getCause();
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Sorts the batch's rows into puts and deletes by the policy, then
+     * applies them with one change to the catalog and one journal append
+     */
+    private void applyBatch( Batch batch, SongCatalog catalog )
+    {
+        List<String> deletes = new ArrayList<String>();
+        for( int i = 0; i < batch.size(); i++ )
+        {
+            String itemCode = batch.codes.get( i );
+            SongDetails song = batch.songs.get( i );
+            boolean exists = catalog.getSongs().containsKey( itemCode );
+            if( exists && !overwrite )
+            {
+                skipped++;
+            }
+            else if( song != null )
+            {
+                batch.put.add( song );
+            }
+            else if( exists )
+            {
+                deletes.add( itemCode );
+            }
+            else
+            {
+                missing++;
+            }
+        }
+        if( batch.put.isEmpty() && deletes.isEmpty() )
+        {
+            return;
+        }
+
+        List<SongDetails> old = catalog.applyAll( batch.put, deletes );
+        for( int i = 0; i < batch.put.size(); i++ )
+        {
+            batch.replaced.add( old.get( i ));
+            if( old.get( i ) == null )
+            {
+                added++;
+            }
+            else
+            {
+                updated++;
+            }
+        }
+        batch.removed.addAll( old.subList( batch.put.size(), old.size() ));
+        deleted += deletes.size();
+    }
+
+    /**
+     * @return number of songs added
+     */
+    public long getAdded()
+    {
+        return added;
+    }
+
+    /**
+     * @return number of songs replaced
+     */
+    public long getUpdated()
+    {
+        return updated;
+    }
+
+    /**
+     * @return number of songs deleted by tombstones
+     */
+    public long getDeleted()
+    {
+        return deleted;
+    }
+
+    /**
+     * @return number of rows for existing songs the policy left alone
+     */
+    public long getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * @return number of tombstones for songs that weren't there
+     */
+    public long getMissing()
+    {
+        return missing;
+    }
+
+    /**
+     * @return number of rows that were neither a song nor a tombstone
+     */
+    public long getMalformed()
+    {
+        return malformed;
+    }
+
+    /**
+     * Override the default toString()
+     */
+    public String toString()
+    {
+        double seconds = nanos / 1e9;
+        return String.format( "Applied %,d rows from %s in %.2f s "
+            + "(%,.0f rows/s, %.1f MB/s): %,d added, %,d updated, "
+            + "%,d deleted, %,d skipped by %s, %,d deletes of missing "
+            + "songs, %,d malformed rows", rows, deltaPath, seconds,
+            rows / seconds, bytes / 1e6 / seconds, added, updated, deleted,
+            skipped, policy.name().toLowerCase().replace( '_', '-' ),
+            missing, malformed );
+    }
+
+    /**
+     * One batch of a delta's rows, and once it is applied, what it did.
+     * No item code is in a batch twice.
+     */
+    public static class Batch
+    {
+        private final List<String> codes = new ArrayList<String>();
+        // song for each item code, null for a tombstone
+        private final List<SongDetails> songs = new ArrayList<SongDetails>();
+        private final Set<String> seen = new HashSet<String>();
+
+        private final List<SongDetails> put = new ArrayList<SongDetails>();
+        private final List<SongDetails> replaced =
+            new ArrayList<SongDetails>();
+        private final List<SongDetails> removed =
+            new ArrayList<SongDetails>();
+
+        private void add( String itemCode, SongDetails song )
+        {
+            codes.add( itemCode );
+            songs.add( song );
+            seen.add( itemCode );
+        }
+
+        private boolean has( String itemCode )
+        {
+            return seen.contains( itemCode );
+        }
+
+        private int size()
+        {
+            return codes.size();
+        }
+
+        /**
+         * @return item code of every row in the batch, whether it put or
+         * deleted a song or was skipped
+         */
+        public List<String> getItemCodes()
+        {
+            return codes;
+        }
+
+        /**
+         * @return songs the batch added or replaced
+         */
+        public List<SongDetails> getPut()
+        {
+            return put;
+        }
+
+        /**
+         * @return for each song in getPut(), the song it replaced, or
+         * null if it is new
+         */
+        public List<SongDetails> getReplaced()
+        {
+            return replaced;
+        }
+
+        /**
+         * @return songs the batch deleted
+         */
+        public List<SongDetails> getRemoved()
+        {
+            return removed;
+        }
+    }
+}
@@ -6,31 +6,61 @@
  * 
  * The item code is used as the TreeMap key. 
  * 
+ * One of these is kept for every song in the catalog, so it only holds
+ * the six fields and nothing else.
+ * 
+ * Code that only reads songs can take the SongRecord interface instead,
+ * which OffHeapSongStore's flyweights also implement.
+ * 
  * @author Candace Holcombe-Volke
  *
  */
-import java.util.Scanner;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 
-public class SongDetails 
+public class SongDetails implements SongRecord
 {
-    // holds new song details temporarily to be added to TreeMap
-    SongDetails detailsArr[] = new SongDetails[6]; 
     private String songTitle; 
     private String itemCode; 
     private String description; 
     private String artist; 
     private String album; 
-    private double price; 
-    Scanner scan = new Scanner( System.in );
+    private long priceCents; 
 
     /**
      * Override the default toString()
      */
     public String toString()
     {
-       return songTitle + "," + itemCode + "," + description + ","
-           + artist + "," + album + "," + price + ",\n"; 
+       return quote( songTitle ) + "," + quote( itemCode ) + ","
+           + quote( description ) + "," + quote( artist ) + ","
+           + quote( album ) + "," + getPriceString() + ",\n"; 
+    }
+    
+    /**
+     * Wraps a field in double quotes if it couldn't be read back as is,
+     * doubling any quotes inside it
+     * @param field text of one field
+     * @return the field as it should be written to the database file
+     */
+    static String quote( String field )
+    {
+        if( field == null )
+        {
+            return "";
+        }
+        boolean needsQuotes = !field.equals( field.trim() );
+        for( int i = 0; i < field.length() && !needsQuotes; i++ )
+        {
+            char c = field.charAt( i );
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if( !needsQuotes )
+        {
+            return field;
+        }
+        return "\"" + field.replace( "\"", "\"\"" ) + "\"";
     }
     
     //Constructor for all components of ContactDetails objects
@@ -38,7 +68,7 @@ public class SongDetails
     /**
      * Constructor for all components of ContactDetails objects
      * with 5 String arguments, used by readDBFile()
-     * Price is entered as String and parsed to Double
+     * Price is entered as String and parsed to whole cents
      * @param song song title
      * @param code item code
      * @param desc description
@@ -54,7 +84,47 @@ public class SongDetails
         description = desc;
         artist = art; 
         album = alb; 
-        price = Double.parseDouble(pr);
+        priceCents = parseCents( pr );
+    }
+    
+    /**
+     * Constructor for all components of SongDetails objects with the
+     * price in dollars, rounded to the nearest cent
+     * @param song song title
+     * @param code item code
+     * @param desc description
+     * @param art artist
+     * @param alb album
+     * @param pr price in dollars
+     * @deprecated use the constructor that takes a long of cents; an int
+     * price goes to that one, as cents
+     */
+    @Deprecated
+    public SongDetails( String song, String code, String desc, 
+        String art, String alb, double pr ) 
+    {
+        this( song, code, desc, art, alb, toCents( pr ));
+    }
+    
+    /**
+     * Constructor for all components of SongDetails objects when the
+     * price has already been parsed, used by SongFileParser
+     * @param song song title
+     * @param code item code
+     * @param desc description
+     * @param art artist
+     * @param alb album
+     * @param cents price in cents
+     */
+    public SongDetails( String song, String code, String desc, 
+        String art, String alb, long cents ) 
+    {
+        songTitle = song; 
+        itemCode = code;
+        description = desc;
+        artist = art; 
+        album = alb; 
+        priceCents = cents;
     }
     
     
@@ -66,7 +136,7 @@ public class SongDetails
         description = songElement[2];
         artist = songElement[3]; 
         album = songElement[4]; 
-        price = Double.parseDouble( songElement[5] );
+        priceCents = parseCents( songElement[5] );
     }
     
 
@@ -97,9 +167,20 @@ public class SongDetails
         album = alb;
     }
     
+    public void setPriceCents( long cents )
+    {
+        priceCents = cents; 
+    }
+    
+    /**
+     * Sets the price from dollars, rounded to the nearest cent
+     * @param pr price in dollars
+     * @deprecated use setPriceCents(), which can't lose a cent
+     */
+    @Deprecated
     public void setPrice( double pr )
     {
-        price = pr; 
+        priceCents = toCents( pr ); 
     }
     
     
@@ -150,20 +231,127 @@ public class SongDetails
 
     /**
      * 
-     * @return price as a string
+     * @return price as a string with two decimals, such as 1.50
      */
     public String getPriceString()
     {
-        return String.valueOf( price );
+        return formatCents( priceCents );
+    }
+    
+    /**
+     * 
+     * @return price in whole cents
+     */
+    public long getPriceCents()
+    {
+        return priceCents;
     }
     
     /**
      * 
-     * @return price as a double
+     * @return price as a double, in dollars
      */
     public double getPriceDouble()
     {
-        return price;
+        return priceCents / 100.0;
+    }
+    
+    /**
+     * Rounds a price in dollars to whole cents the way parseCents() rounds
+     * the same price written out, halves away from zero
+     * @param price price in dollars
+     * @return the price in cents
+     * @throws NumberFormatException if price isn't a number
+     * @throws ArithmeticException if price is too big for a long of cents
+     */
+    public static long toCents( double price )
+    {
+        return BigDecimal.valueOf( price ).movePointRight( 2 )
+            .setScale( 0, RoundingMode.HALF_UP ).longValueExact();
+    }
+    
+    /**
+     * Reads a price such as 1.5, 1.50 or -2 as whole cents, digit by
+     * digit, so no double rounding creeps in. Digits past the cents are
+     * rounded to the nearest cent, halves away from zero.
+     * @param text the price, blanks around it are ignored
+     * @return the price in cents
+     * @throws NumberFormatException if text isn't a price or is too big
+     */
+    public static long parseCents( CharSequence text )
+    {
+        int i = 0;
+        int end = text.length();
+        while( i < end && text.charAt( i ) <= ' ' )
+        {
+            i++;
+        }
+        while( end > i && text.charAt( end - 1 ) <= ' ' )
+        {
+            end--;
+        }
+        boolean negative = i < end && text.charAt( i ) == '-';
+        if( i < end && ( negative || text.charAt( i ) == '+' ))
+        {
+            i++;
+        }
+        long cents = 0;
+        int digits = 0;
+        try
+        {
+            while( i < end && isDigit( text.charAt( i )) )
+            {
+                cents = Math.addExact( Math.multiplyExact( cents, 10 ),
+                    text.charAt( i++ ) - '0' );
+                digits++;
+            }
+            cents = Math.multiplyExact( cents, 100 );
+            if( i < end && text.charAt( i ) == '.' )
+            {
+                i++;
+                int place = 10; // worth of the next digit in cents
+                while( i < end && isDigit( text.charAt( i )) )
+                {
+                    int digit = text.charAt( i++ ) - '0';
+                    if( place > 0 )
+                    {
+                        cents = Math.addExact( cents, digit * place );
+                    }
+                    else if( place == 0 && digit >= 5 )
+                    {
+                        cents = Math.addExact( cents, 1 );
+                    }
+                    place = place > 1 ? place / 10 : place - 1;
+                    digits++;
+                }
+            }
+        }
+        catch( ArithmeticException exception )
+        {
+            throw new NumberFormatException( "Price too big: " + text );
+        }
+        if( i != end || digits == 0 )
+        {
+            throw new NumberFormatException( "Not a price: " + text );
+        }
+        return negative ? -cents : cents;
+    }
+
+    private static boolean isDigit( char c )
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @param cents a price in cents
+     * @return the price with two decimals, such as 1.50
+     */
+    public static String formatCents( long cents )
+    {
+        long whole = Math.abs( cents / 100 );
+        long part = Math.abs( cents % 100 );
+        return ( cents < 0 ? "-" : "" ) + whole + ( part < 10 ? ".0" : "." )
+            + part;
     }
     
     SongDetails()
@@ -0,0 +1,103 @@
+
+/**
+ * This class dictionary encodes the artist and album columns of the song
+ * catalog. Songs passed through encode() point at the one shared copy of
+ * their artist and album, and artistId()/albumId() turn them into small
+ * integer ids for grouping and comparing.
+ *
+ * With compressed references a pointer to the shared String costs the
+ * same four bytes as an int id, so SongDetails keeps its String fields
+ * and the getters stay the same.
+ *
+ * It is turned on with -Dsongdb.dictionary=true.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.Arrays;
+
+
+public class SongDictionary
+{
+    private final StringDictionary artists = new StringDictionary();
+    private final StringDictionary albums = new StringDictionary();
+
+    /**
+     * @return a new dictionary if -Dsongdb.dictionary=true, else null
+     */
+    public static SongDictionary fromProperty()
+    {
+        return Boolean.getBoolean( "songdb.dictionary" )
+            ? new SongDictionary() : null;
+    }
+
+    /**
+     * Replaces the song's artist and album with their shared copies
+     * @param song the song to encode
+     * @return the same song
+     */
+    public SongDetails encode( SongDetails song )
+    {
+        song.setArtist( artists.canonical( song.getArtist() ));
+        song.setAlbum( albums.canonical( song.getAlbum() ));
+        return song;
+    }
+
+    /**
+     *
+     * @param song an encoded song
+     * @return id of the song's artist
+     */
+    public int artistId( SongDetails song )
+    {
+        return artists.idOf( song.getArtist() );
+    }
+
+    /**
+     *
+     * @param song an encoded song
+     * @return id of the song's album
+     */
+    public int albumId( SongDetails song )
+    {
+        return albums.idOf( song.getAlbum() );
+    }
+
+    /**
+     *
+     * @return dictionary of artist names
+     */
+    public StringDictionary getArtists()
+    {
+        return artists;
+    }
+
+    /**
+     *
+     * @return dictionary of album names
+     */
+    public StringDictionary getAlbums()
+    {
+        return albums;
+    }
+
+    /**
+     * Counts songs per artist, indexed by artist id
+     * @param songs encoded songs
+     * @return number of songs for each artist id
+     */
+    public int[] countByArtist( Iterable<SongDetails> songs )
+    {
+        int[] counts = new int[ artists.size() ];
+        for( SongDetails song : songs )
+        {
+            int id = artistId( song );
+            if( id >= counts.length )
+            {
+                counts = Arrays.copyOf( counts, artists.size() );
+            }
+            counts[ id ]++;
+        }
+        return counts;
+    }
+}
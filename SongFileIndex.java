@@ -0,0 +1,350 @@
+/**
+ * This class finds songs in a comma separated song database file without
+ * loading them. It keeps only each song's item code and where its row
+ * starts and ends in the file, and reads a song's row from the file when
+ * it is asked for, so it costs a few dozen bytes a song instead of the
+ * few hundred a SongDetails and its Strings would.
+ *
+ * The item codes are packed one after another into one byte array, with
+ * an array of where each ends, and the offsets and row lengths are kept
+ * in arrays of longs and ints beside them, so the index is a handful of
+ * objects however many songs it has and the garbage collector has almost
+ * nothing in it to trace.
+ *
+ * Rows are found by a binary search on item code, so the file has to be
+ * in item code order with no item code repeated, the way SongFileWriter
+ * writes it. For a file that isn't, or has journal entries waiting,
+ * open() writes a sorted copy with the journal folded in next to it,
+ * with the same sort and merge SongDatabaseCli uses, which holds a
+ * bounded number of songs in memory, and indexes the copy instead. The
+ * file and its journal are never changed, and the copy is deleted when
+ * the index is closed. Rows are read with positional reads, so any
+ * number of threads can read at once.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+
+public class SongFileIndex implements AutoCloseable
+{
+    private final FileChannel file;
+    private final int count;
+    // item codes in order, packed as UTF-8
+    private final byte[] codeBytes;
+    // where each item code ends in codeBytes
+    private final int[] codeEnd;
+    // where each row starts in the file, and its length
+    private final long[] offsets;
+    private final int[] lengths;
+    private final LoadStats stats;
+
+    private SongFileIndex( FileChannel channel, Builder built,
+        LoadStats numbers )
+    {
+        file = channel;
+        count = built.count;
+        codeBytes = Arrays.copyOf( built.codeBytes, built.codeLength );
+        codeEnd = Arrays.copyOf( built.codeEnd, count );
+        offsets = Arrays.copyOf( built.offsets, count );
+        lengths = Arrays.copyOf( built.lengths, count );
+        stats = numbers;
+    }
+
+    /**
+     * Indexes a comma separated song database file, or a sorted copy of
+     * it with its journal folded in if it needs either
+     * @param fp song database file location
+     * @return the index, which keeps the file open until it is closed
+     * @throws IOException if the file or its journal can't be read, or
+     * the file isn't comma separated text
+     */
+    public static SongFileIndex open( String fp ) throws IOException
+    {
+        FileFormat format = FileFormat.detect( fp );
+        if( format != FileFormat.CSV )
+        {
+            throw new IOException( fp + " is " + format
+                + ", only comma separated files can be read in place" );
+        }
+        long startTime = System.nanoTime();
+        Builder built = null;
+        if( !SongJournal.hasEntries( fp ))
+        {
+            built = Builder.scan( fp );
+        }
+        if( built != null )
+        {
+            FileChannel channel = FileChannel.open( Paths.get( fp ),
+                StandardOpenOption.READ );
+            return new SongFileIndex( channel, built, new LoadStats(
+                built.count, built.malformed, built.bytes,
+                System.nanoTime() - startTime ));
+        }
+
+        Path file = Paths.get( fp ).toAbsolutePath();
+        Path sorted = Files.createTempFile( file.getParent(),
+            file.getFileName() + ".", ".sorted" );
+        System.out.println( "Sorting " + fp + " by item code into "
+            + sorted );
+        long malformed;
+        FileChannel channel;
+        try
+        {
+            malformed = sort( fp, sorted.toString() );
+            built = Builder.scan( sorted.toString() );
+            if( built == null )
+            {
+                throw new IOException( sorted + " is still out of order" );
+            }
+            channel = FileChannel.open( sorted, StandardOpenOption.READ,
+                StandardOpenOption.DELETE_ON_CLOSE );
+        }
+        catch( IOException | RuntimeException exception )
+        {
+            Files.deleteIfExists( sorted );
+            throw exception;
+        }
+        return new SongFileIndex( channel, built, new LoadStats(
+            built.count, malformed + built.malformed, built.bytes,
+            System.nanoTime() - startTime ));
+    }
+
+    /**
+     * Writes a file's songs, with its journal folded in, to another file
+     * in item code order, leaving the file and its journal as they are
+     * @return rows of the file that couldn't be read
+     */
+    private static long sort( String fp, String out ) throws IOException
+    {
+        Path folder = Paths.get( fp ).toAbsolutePath().getParent();
+        try( SongReader songs = SongDatabaseCli.openCatalog( fp, folder ) )
+        {
+            SongDatabaseCli.copy( songs, out, FileFormat.CSV );
+            return songs.malformed();
+        }
+    }
+
+    /**
+     *
+     * @return number of songs
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     *
+     * @param index position in item code order, from 0
+     * @return item code of the song at that position
+     */
+    public String codeAt( int index )
+    {
+        if( index < 0 || index >= count )
+        {
+            throw new IndexOutOfBoundsException( "Index: " + index
+                + ", Size: " + count );
+        }
+        int start = index == 0 ? 0 : codeEnd[ index - 1 ];
+        return new String( codeBytes, start, codeEnd[ index ] - start,
+            StandardCharsets.UTF_8 );
+    }
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return position of the song in item code order, or -1 if there is
+     * none with that item code
+     */
+    public int find( String itemCode )
+    {
+        int low = 0;
+        int high = count - 1;
+        while( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int compared = codeAt( mid ).compareTo( itemCode );
+            if( compared == 0 )
+            {
+                return mid;
+            }
+            if( compared < 0 )
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the song at a position from the file
+     * @param index position in item code order, from 0
+     * @return the song
+     * @throws IOException if its row can't be read, or no longer holds
+     * the song, because the file was changed after it was indexed
+     */
+    public SongDetails read( int index ) throws IOException
+    {
+        ByteBuffer row = ByteBuffer.allocate( lengths[ index ] );
+        long at = offsets[ index ];
+        while( row.hasRemaining() )
+        {
+            int read = file.read( row, at + row.position() );
+            if( read < 0 )
+            {
+                break;
+            }
+        }
+        row.flip();
+        SongDetails song = new SongFileParser( row ).next();
+        if( song == null || !song.getItemCode().equals( codeAt( index )))
+        {
+            throw new IOException( "Row " + index + " at byte " + at
+                + " has changed since the file was indexed" );
+        }
+        return song;
+    }
+
+    /**
+     * The item codes, in order, as a list that is never copied
+     * @return the item codes; get() on it makes a String each time
+     */
+    public List<String> codes()
+    {
+        return new CodeList();
+    }
+
+    /**
+     * @return heap bytes the index's arrays take
+     */
+    public long getBytes()
+    {
+        return codeBytes.length + 4L * codeEnd.length + 8L * offsets.length
+            + 4L * lengths.length;
+    }
+
+    /**
+     * @return numbers from indexing the file, songs counted as rows
+     */
+    public LoadStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * Closes the file, deleting it if it is a sorted copy
+     */
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    private class CodeList extends AbstractList<String>
+        implements RandomAccess
+    {
+        public String get( int index )
+        {
+            return codeAt( index );
+        }
+
+        public int size()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * The arrays of an index while the file is scanned, grown as needed
+     */
+    private static class Builder
+    {
+        int count;
+        byte[] codeBytes = new byte[ 16 * 1024 ];
+        int codeLength;
+        int[] codeEnd = new int[ 1024 ];
+        long[] offsets = new long[ 1024 ];
+        int[] lengths = new int[ 1024 ];
+        long malformed;
+        long bytes;
+
+        /**
+         * Scans a file for its rows
+         * @return the arrays, or null if the file isn't in item code
+         * order or repeats an item code
+         */
+        static Builder scan( String fp ) throws IOException
+        {
+            Builder built = new Builder();
+            String last = null;
+            try( SongFileParser parser = new SongFileParser(
+                new FileInputStream( fp )) )
+            {
+                long start = parser.bytesRead();
+                while( parser.nextRecord() )
+                {
+                    long end = parser.bytesRead();
+                    if( parser.fieldCount() > 0 )
+                    {
+                        SongDetails song = parser.song();
+                        if( song != null )
+                        {
+                            String code = song.getItemCode();
+                            if( last != null && last.compareTo( code ) >= 0 )
+                            {
+                                return null;
+                            }
+                            built.add( code, start, (int) ( end - start ));
+                            last = code;
+                        }
+                    }
+                    start = end;
+                }
+                built.malformed = parser.malformed();
+                built.bytes = parser.bytesRead();
+            }
+            return built;
+        }
+
+        void add( String code, long offset, int length )
+        {
+            if( count == offsets.length )
+            {
+                int grown = count * 2;
+                codeEnd = Arrays.copyOf( codeEnd, grown );
+                offsets = Arrays.copyOf( offsets, grown );
+                lengths = Arrays.copyOf( lengths, grown );
+            }
+            byte[] encoded = code.getBytes( StandardCharsets.UTF_8 );
+            if( codeLength + encoded.length > codeBytes.length )
+            {
+                codeBytes = Arrays.copyOf( codeBytes, Math.max(
+                    codeBytes.length * 2, codeLength + encoded.length ));
+            }
+            System.arraycopy( encoded, 0, codeBytes, codeLength,
+                encoded.length );
+            codeLength += encoded.length;
+            codeEnd[ count ] = codeLength;
+            offsets[ count ] = offset;
+            lengths[ count ] = length;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,666 @@
+
+/**
+ * This class reads the comma separated song database file one record at
+ * a time. It scans a byte buffer once, finds the start and end of every
+ * field in place, and only creates a String for a field when it is asked
+ * for one, so no line Strings, regex objects or String[] arrays are made
+ * while loading.
+ *
+ * Fields may be wrapped in double quotes when they hold commas, and a
+ * doubled quote inside a quoted field stands for one quote character.
+ * Unquoted fields are trimmed the same way String.trim() would.
+ *
+ * A quote only opens a quoted field at the start of a field; anywhere
+ * else it is an ordinary character. A record is broken, and counted as
+ * malformed, if a quoted field is still open at the end of the file or
+ * after MAX_QUOTED_BYTES, or if anything but blanks follows a closing
+ * quote before the comma. Legacy files have rows like that, with a
+ * title such as "Heroes or "Weird Al" Yankovic. If a broken record's
+ * quoted field ran over a line break, the record ends at that line
+ * break instead, so one stray quote costs one row, not the rest of the
+ * file.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+
+public class SongFileParser implements SongReader
+{
+    // number of fields that make up one song record
+    public static final int FIELD_COUNT = 6;
+
+    // most fields remembered per record, extra fields are only counted
+    private static final int MAX_FIELDS = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // longest quoted field; one still open after this is a stray quote
+    static final int MAX_QUOTED_BYTES = 1024 * 1024;
+
+    private final InputStream in; // null when parsing a fixed buffer
+    private ByteBuffer buf;
+    private byte[] array; // backing array of buf, null for direct buffers
+    private int pos; // next byte to scan
+    private int limit; // end of the valid bytes in buf
+    private boolean eof;
+
+    // where each field of the current record starts and ends in buf
+    private final int[] fieldStart = new int[ MAX_FIELDS ];
+    private final int[] fieldEnd = new int[ MAX_FIELDS ];
+    private final boolean[] fieldEscaped = new boolean[ MAX_FIELDS ];
+    private int fieldCount;
+    // false when the current record is a last line with no line break
+    private boolean lineEnded;
+    // true when the current record has a stray or unclosed quote
+    private boolean broken;
+
+    // holds field bytes copied out of direct buffers or unquoted
+    private byte[] scratch = new byte[ 256 ];
+    // a price field, handed to SongDetails.parseCents without copying
+    private final FieldText fieldText = new FieldText();
+
+    private long rows;
+    private long malformed;
+    private long bytesRead;
+
+    // shares artist and album text between songs, null when not used
+    private SongDictionary dictionary;
+
+    /**
+     * Creates a parser that reads records from a stream, refilling its
+     * buffer as it goes.
+     * @param input the song database stream, closed by close()
+     */
+    public SongFileParser( InputStream input )
+    {
+        in = input;
+        buf = ByteBuffer.allocate( BUFFER_SIZE );
+        array = buf.array();
+        limit = 0;
+    }
+
+    /**
+     * Creates a parser over bytes that are already in memory. Parsing
+     * starts at the buffer's position and stops at its limit.
+     * @param region the bytes to parse
+     */
+    public SongFileParser( ByteBuffer region )
+    {
+        this( region, true );
+    }
+
+    /**
+     * Creates a parser over one region of a file that is in memory.
+     * Unless the region is the end of the file, parsing stops before a
+     * record that can't be told apart from a longer one without the
+     * bytes after the region, and bytesRead() says where the next region
+     * should start.
+     * @param region the bytes to parse
+     * @param last true if the region runs to the end of the file
+     */
+    public SongFileParser( ByteBuffer region, boolean last )
+    {
+        in = null;
+        if( region.hasArray() )
+        {
+            // index the backing array directly from its first byte
+            array = region.array();
+            buf = ByteBuffer.wrap( array );
+            pos = region.arrayOffset() + region.position();
+        }
+        else
+        {
+            buf = region;
+            pos = region.position();
+        }
+        limit = pos + region.remaining();
+        eof = last;
+    }
+
+    /**
+     * Reads every song in a stream into a map, keyed by item code, and
+     * closes the stream. A later row with the same item code replaces an
+     * earlier one.
+     * @param input the song database stream
+     * @param songs map the songs are put into
+     * @return numbers from the load
+     * @throws IOException if the stream can't be read
+     */
+    public static LoadStats load( InputStream input,
+        Map<String, SongDetails> songs ) throws IOException
+    {
+        return load( input, songs, null );
+    }
+
+    /**
+     * Reads every song in a stream into a map like load( input, songs ),
+     * encoding artist and album through a dictionary.
+     * @param input the song database stream
+     * @param songs map the songs are put into
+     * @param dict dictionary to encode with, or null for none
+     * @return numbers from the load
+     * @throws IOException if the stream can't be read
+     */
+    public static LoadStats load( InputStream input,
+        Map<String, SongDetails> songs, SongDictionary dict )
+        throws IOException
+    {
+        long startTime = System.nanoTime();
+        try( SongFileParser parser = new SongFileParser( input ) )
+        {
+            parser.setDictionary( dict );
+            SongDetails nextSong;
+            while( ( nextSong = parser.next() ) != null )
+            {
+                songs.put( nextSong.getItemCode(), nextSong );
+            }
+            return new LoadStats( parser.rows(), parser.malformed(),
+                parser.bytesRead(), System.nanoTime() - startTime );
+        }
+    }
+
+    /**
+     * Returns the next well formed song in the file, skipping blank lines
+     * and counting rows that can't be made into a song as malformed.
+     * @return the next song, or null at the end of the file
+     * @throws IOException if the stream can't be read
+     */
+    public SongDetails next() throws IOException
+    {
+        while( nextRecord() )
+        {
+            if( fieldCount == 0 )
+            {
+                continue; // blank line
+            }
+            SongDetails song = song();
+            if( song != null )
+            {
+                return song;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes the current record into a song, counting it as malformed if
+     * it can't be one
+     * @return the song, or null if the record is malformed
+     */
+    public SongDetails song()
+    {
+        if( !isSongRecord() )
+        {
+            malformed++;
+            return null;
+        }
+        try
+        {
+            SongDetails song = new SongDetails( field( 0 ), field( 1 ),
+                field( 2 ), field( 3 ), field( 4 ), cents( 5 ));
+            rows++;
+            return dictionary == null ? song : dictionary.encode( song );
+        }
+        catch( NumberFormatException exception )
+        {
+            malformed++;
+            return null;
+        }
+    }
+
+    /**
+     * Makes next() share artist and album text through a dictionary
+     * @param dict dictionary to encode with, or null for none
+     */
+    public void setDictionary( SongDictionary dict )
+    {
+        dictionary = dict;
+    }
+
+    /**
+     * Moves to the next record in the file. After it returns true the
+     * fields of that record are available from fieldCount() and field().
+     * @return false once there are no more records
+     * @throws IOException if the stream can't be read
+     */
+    public boolean nextRecord() throws IOException
+    {
+        while( true )
+        {
+            if( pos >= limit && !fill() )
+            {
+                return false;
+            }
+            int end = scanRecord( pos );
+            if( end >= 0 )
+            {
+                bytesRead += end - pos;
+                pos = end;
+                lineEnded = true;
+                return true;
+            }
+            // record runs past the end of the buffer, read more and rescan
+            if( !fill() )
+            {
+                if( !eof )
+                {
+                    return false; // the rest is in the next region
+                }
+                // the last line of the file has no line break
+                scanRecord( pos );
+                bytesRead += limit - pos;
+                pos = limit;
+                lineEnded = false;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Finds the fields of the record starting at from.
+     * @param from offset of the first byte of the record
+     * @return offset just past the record's line break, or -1 if the line
+     * break isn't in the buffer yet (the fields found so far are kept)
+     */
+    private int scanRecord( int from )
+    {
+        int i = from;
+        fieldCount = 0;
+        broken = false;
+        // the first line break inside a quoted field of this record
+        int quotedBreak = -1;
+        boolean blank = true;
+        while( true )
+        {
+            // skip leading blanks of the field
+            while( i < limit && isBlank( byteAt( i )) )
+            {
+                i++;
+            }
+            int start = i;
+            int stop;
+            boolean escaped = false;
+            if( i < limit && byteAt( i ) == '"' )
+            {
+                // quoted field, ends at a quote that isn't doubled
+                start = ++i;
+                blank = false;
+                boolean closed = false;
+                while( i < limit && i - start < MAX_QUOTED_BYTES )
+                {
+                    byte b = byteAt( i );
+                    if( b == '"' )
+                    {
+                        if( i + 1 < limit && byteAt( i + 1 ) == '"' )
+                        {
+                            escaped = true;
+                            i += 2;
+                            continue;
+                        }
+                        if( i + 1 >= limit && !eof )
+                        {
+                            return -1; // can't tell yet if it is doubled
+                        }
+                        closed = true;
+                        break;
+                    }
+                    if( b == '\n' && quotedBreak < 0 )
+                    {
+                        quotedBreak = i;
+                    }
+                    i++;
+                }
+                if( !closed && i >= limit && !eof
+                    && i - start < MAX_QUOTED_BYTES )
+                {
+                    return -1; // may close in the next read
+                }
+                if( closed )
+                {
+                    stop = i++;
+                    // only blanks may come between the quote and the comma
+                    while( i < limit && isBlank( byteAt( i )) )
+                    {
+                        i++;
+                    }
+                    closed = i >= limit || byteAt( i ) == ','
+                        || byteAt( i ) == '\n';
+                }
+                else
+                {
+                    stop = i;
+                }
+                if( !closed )
+                {
+                    broken = true;
+                    if( quotedBreak >= 0 )
+                    {
+                        addField( start, start, false );
+                        return quotedBreak + 1;
+                    }
+                    // the rest of the field is part of the broken record
+                    while( i < limit && byteAt( i ) != ','
+                        && byteAt( i ) != '\n' )
+                    {
+                        i++;
+                    }
+                    stop = i;
+                }
+            }
+            else
+            {
+                while( i < limit && byteAt( i ) != ',' && byteAt( i ) != '\n' )
+                {
+                    i++;
+                }
+                stop = i;
+                // trim trailing blanks, including the \r of \r\n
+                while( stop > start && isBlank( byteAt( stop - 1 )) )
+                {
+                    stop--;
+                }
+                if( stop > start )
+                {
+                    blank = false;
+                }
+            }
+
+            if( i >= limit )
+            {
+                addField( start, stop, escaped );
+                return -1;
+            }
+            if( byteAt( i ) == ',' )
+            {
+                addField( start, stop, escaped );
+                blank = false;
+                i++;
+                continue;
+            }
+            // line break ends the record
+            addField( start, stop, escaped );
+            if( blank )
+            {
+                fieldCount = 0;
+            }
+            return i + 1;
+        }
+    }
+
+    private void addField( int start, int stop, boolean escaped )
+    {
+        if( fieldCount < MAX_FIELDS )
+        {
+            fieldStart[ fieldCount ] = start;
+            fieldEnd[ fieldCount ] = stop;
+            fieldEscaped[ fieldCount ] = escaped;
+        }
+        fieldCount++;
+    }
+
+    /**
+     * Moves the unread part of the buffer to the front and reads more of
+     * the stream after it, growing the buffer if a single record fills it.
+     * @return false if nothing more could be read
+     * @throws IOException if the stream can't be read
+     */
+    private boolean fill() throws IOException
+    {
+        if( eof || in == null )
+        {
+            return false;
+        }
+        int remaining = limit - pos;
+        if( pos > 0 )
+        {
+            System.arraycopy( array, pos, array, 0, remaining );
+        }
+        else if( remaining == array.length )
+        {
+            array = Arrays.copyOf( array, array.length * 2 );
+            buf = ByteBuffer.wrap( array );
+        }
+        pos = 0;
+        limit = remaining;
+        int read = in.read( array, limit, array.length - limit );
+        if( read < 0 )
+        {
+            eof = true;
+            return limit > 0;
+        }
+        limit += read;
+        return true;
+    }
+
+    private byte byteAt( int i )
+    {
+        return array != null ? array[ i ] : buf.get( i );
+    }
+
+    private static boolean isBlank( byte b )
+    {
+        // same characters String.trim() removes, except the line break
+        return b >= 0 && b <= ' ' && b != '\n';
+    }
+
+    /**
+     * @return true if the current record has the six song fields and
+     * nothing but blank fields after them, and isn't broken
+     */
+    public boolean isSongRecord()
+    {
+        if( broken || fieldCount < FIELD_COUNT )
+        {
+            return false;
+        }
+        for( int i = FIELD_COUNT; i < fieldCount; i++ )
+        {
+            if( i >= MAX_FIELDS || fieldEnd[ i ] > fieldStart[ i ] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the current record is a tombstone, a song record
+     * with nothing but its item code filled in, which a delta file uses
+     * to delete the song
+     */
+    public boolean isTombstone()
+    {
+        if( !isSongRecord() || fieldEnd[ 1 ] == fieldStart[ 1 ] )
+        {
+            return false;
+        }
+        for( int i = 0; i < FIELD_COUNT; i++ )
+        {
+            if( i != 1 && fieldEnd[ i ] > fieldStart[ i ] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return number of fields in the current record, 0 for a blank line
+     */
+    public int fieldCount()
+    {
+        return fieldCount;
+    }
+
+    /**
+     *
+     * @return true if the current record has a quoted field that never
+     * closes, or text after a closing quote, so its fields can't be
+     * trusted
+     */
+    public boolean isBroken()
+    {
+        return broken;
+    }
+
+    /**
+     *
+     * @return false if the current record is the last line of the file
+     * and has no line break, which is how a write cut short looks
+     */
+    public boolean endsLine()
+    {
+        return lineEnded;
+    }
+
+    /**
+     * Makes a String out of one field of the current record.
+     * @param index field number starting at 0
+     * @return the field text, or "" if the record doesn't have that field
+     */
+    public String field( int index )
+    {
+        if( index >= fieldCount || index >= MAX_FIELDS )
+        {
+            return "";
+        }
+        int start = fieldStart[ index ];
+        int length = fieldEnd[ index ] - start;
+        if( fieldEscaped[ index ] )
+        {
+            // drop the second quote of every doubled quote
+            byte[] out = scratch( length );
+            int n = 0;
+            for( int i = start; i < start + length; i++ )
+            {
+                byte b = byteAt( i );
+                out[ n++ ] = b;
+                if( b == '"' )
+                {
+                    i++;
+                }
+            }
+            return new String( out, 0, n, StandardCharsets.UTF_8 );
+        }
+        if( array != null )
+        {
+            return new String( array, start, length, StandardCharsets.UTF_8 );
+        }
+        byte[] out = scratch( length );
+        for( int i = 0; i < length; i++ )
+        {
+            out[ i ] = buf.get( start + i );
+        }
+        return new String( out, 0, length, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Reads a price field of the current record as whole cents straight
+     * from the buffer, without making a String or a double.
+     * @param index field number starting at 0
+     * @return the price in cents
+     * @throws NumberFormatException if the field isn't a price
+     */
+    public long cents( int index )
+    {
+        if( index >= fieldCount || index >= MAX_FIELDS )
+        {
+            throw new NumberFormatException( "No price in field " + index );
+        }
+        if( fieldEscaped[ index ] )
+        {
+            return SongDetails.parseCents( field( index ));
+        }
+        fieldText.start = fieldStart[ index ];
+        fieldText.length = fieldEnd[ index ] - fieldStart[ index ];
+        return SongDetails.parseCents( fieldText );
+    }
+
+    /**
+     * One field of the buffer seen as characters, which is all a price
+     * needs since it is plain ASCII
+     */
+    private class FieldText implements CharSequence
+    {
+        int start;
+        int length;
+
+        public int length()
+        {
+            return length;
+        }
+
+        public char charAt( int index )
+        {
+            return (char) ( byteAt( start + index ) & 0xff );
+        }
+
+        public CharSequence subSequence( int from, int to )
+        {
+            return toString().subSequence( from, to );
+        }
+
+        public String toString()
+        {
+            byte[] out = new byte[ length ];
+            for( int i = 0; i < length; i++ )
+            {
+                out[ i ] = byteAt( start + i );
+            }
+            return new String( out, StandardCharsets.UTF_8 );
+        }
+    }
+
+    private byte[] scratch( int length )
+    {
+        if( scratch.length < length )
+        {
+            scratch = new byte[ Math.max( length, scratch.length * 2 ) ];
+        }
+        return scratch;
+    }
+
+    /**
+     *
+     * @return number of songs returned by next()
+     */
+    public long rows()
+    {
+        return rows;
+    }
+
+    /**
+     *
+     * @return number of non-blank rows next() skipped as malformed
+     */
+    public long malformed()
+    {
+        return malformed;
+    }
+
+    /**
+     *
+     * @return number of bytes consumed so far
+     */
+    public long bytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * Closes the underlying stream, if there is one
+     */
+    public void close() throws IOException
+    {
+        if( in != null )
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+
+/**
+ * This class writes a list of songs to a song database file, either in
+ * the comma separated format, one song per line, plain or compressed
+ * with CompressedSongFormat, or in BinarySongFormat.
+ *
+ * The songs are written to a temporary file in the same folder, which is
+ * fsync'd and then renamed over the database file in one step, so a
+ * crash or a failed write leaves either the old file or the new one and
+ * never a half written one. open() writes a file one song at a time in
+ * the same way, for catalogs too large to hold in memory.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+public class SongFileWriter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes every song to the file as comma separated text, replacing
+     * what was there
+     * @param fp song database file location
+     * @param songs songs to write, in the order they should appear
+     * @return number of bytes written
+     * @throws IOException if the file can't be written
+     */
+    public static long write( String fp, Collection<SongDetails> songs )
+        throws IOException
+    {
+        return write( fp, songs, FileFormat.CSV );
+    }
+
+    /**
+     * Writes every song to the file in the given format, replacing what
+     * was there
+     * @param fp song database file location
+     * @param songs songs to write, in the order they should appear
+     * @param format format to write
+     * @return number of bytes written
+     * @throws IOException if the file can't be written
+     */
+    public static long write( String fp, Collection<SongDetails> songs,
+        FileFormat format ) throws IOException
+    {
+        Path target = Paths.get( fp ).toAbsolutePath();
+        Path temp = tempFor( target );
+        try
+        {
+            long bytes;
+            try( FileOutputStream file = new FileOutputStream( temp.toFile() ) )
+            {
+                if( format == FileFormat.BINARY )
+                {
+                    BinarySongFormat.write( file, songs );
+                }
+                else
+                {
+                    OutputStream out = CompressedSongFormat.compress( file,
+                        format );
+                    writeText( out, songs );
+                    CompressedSongFormat.finish( out );
+                }
+                file.getFD().sync();
+                bytes = file.getChannel().size();
+            }
+            replace( temp, target );
+            return bytes;
+        }
+        finally
+        {
+            Files.deleteIfExists( temp );
+        }
+    }
+
+    /**
+     * Starts writing a song database file one song at a time. Nothing
+     * replaces the file until the writer is closed.
+     * @param fp song database file location
+     * @param format format to write
+     * @return the writer
+     * @throws IOException if the temporary file can't be created
+     */
+    public static SongWriter open( String fp, FileFormat format )
+        throws IOException
+    {
+        return new StreamingWriter( Paths.get( fp ).toAbsolutePath(),
+            format );
+    }
+
+    /**
+     * Creates the temporary file a database file is written to before it
+     * is renamed over it. It gets the database file's permissions, or the
+     * usual ones for a new file, instead of the owner only permissions
+     * Files.createTempFile() would give it.
+     */
+    private static Path tempFor( Path target ) throws IOException
+    {
+        Path temp;
+        while( true )
+        {
+            temp = target.resolveSibling( target.getFileName() + "."
+                + ThreadLocalRandom.current().nextInt( Integer.MAX_VALUE )
+                + ".tmp" );
+            try
+            {
+                Files.createFile( temp );
+                break;
+            }
+            catch( FileAlreadyExistsException exception )
+            {
+                // try another name
+            }
+        }
+        try
+        {
+            if( Files.exists( target ))
+            {
+                Files.setPosixFilePermissions( temp,
+                    Files.getPosixFilePermissions( target ));
+            }
+        }
+        catch( UnsupportedOperationException exception )
+        {
+            // not a POSIX file system
+        }
+        return temp;
+    }
+
+    /**
+     * Renames a finished temporary file over the database file and makes
+     * the rename durable
+     */
+    private static void replace( Path temp, Path target ) throws IOException
+    {
+        Files.move( temp, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING );
+        syncFolder( target.getParent() );
+    }
+
+    /**
+     * Writes songs as comma separated text
+     * @param out stream to write to, flushed but not closed
+     * @param songs songs to write
+     * @throws IOException if the stream can't be written
+     */
+    static void writeText( OutputStream out, Iterable<SongDetails> songs )
+        throws IOException
+    {
+        Writer text = new BufferedWriter( new OutputStreamWriter( out,
+            StandardCharsets.UTF_8 ), BUFFER_SIZE );
+        for( SongDetails song : songs )
+        {
+            text.write( song.toString() );
+        }
+        text.flush();
+    }
+
+    /**
+     * Makes the rename itself durable. Not every platform lets a folder
+     * be opened, in which case the rename is left to the file system.
+     */
+    private static void syncFolder( Path folder )
+    {
+        try( FileChannel channel = FileChannel.open( folder,
+            StandardOpenOption.READ ) )
+        {
+            channel.force( true );
+        }
+        catch( IOException exception )
+        {
+            // folders can't be opened on this platform
+        }
+    }
+
+    /**
+     * Writes to a temporary file next to the database file and renames it
+     * over the database file on close()
+     */
+    private static class StreamingWriter implements SongWriter
+    {
+        private final Path target;
+        private final Path temp;
+        private final FileOutputStream file;
+        private final OutputStream compressed; // null for binary files
+        private final Writer text; // null for binary files
+        private final BinarySongFormat.StreamWriter binary; // null for text
+        private long count;
+
+        StreamingWriter( Path fp, FileFormat format ) throws IOException
+        {
+            target = fp;
+            temp = tempFor( target );
+            file = new FileOutputStream( temp.toFile() );
+            if( format == FileFormat.BINARY )
+            {
+                compressed = null;
+                text = null;
+                binary = new BinarySongFormat.StreamWriter(
+                    target.getParent() );
+            }
+            else
+            {
+                compressed = CompressedSongFormat.compress( file, format );
+                text = new BufferedWriter( new OutputStreamWriter(
+                    compressed, StandardCharsets.UTF_8 ), BUFFER_SIZE );
+                binary = null;
+            }
+        }
+
+        public void write( SongDetails song ) throws IOException
+        {
+            if( binary != null )
+            {
+                binary.write( song );
+            }
+            else
+            {
+                text.write( song.toString() );
+            }
+            count++;
+        }
+
+        public long count()
+        {
+            return count;
+        }
+
+        public void close() throws IOException
+        {
+            try
+            {
+                if( binary != null )
+                {
+                    OutputStream out = new BufferedOutputStream( file,
+                        BUFFER_SIZE );
+                    binary.finish( out );
+                    out.flush();
+                }
+                else
+                {
+                    text.flush();
+                    CompressedSongFormat.finish( compressed );
+                }
+                file.getFD().sync();
+                file.close();
+                replace( temp, target );
+            }
+            finally
+            {
+                abort();
+            }
+        }
+
+        public void abort()
+        {
+            try
+            {
+                file.close();
+                if( binary != null )
+                {
+                    binary.discard();
+                }
+                Files.deleteIfExists( temp );
+            }
+            catch( IOException exception )
+            {
+                System.out.println( "Couldn't remove " + temp + ": "
+                    + exception );
+            }
+        }
+    }
+}
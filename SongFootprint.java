@@ -0,0 +1,110 @@
+/**
+ * This class checks that one SongDetails entry costs fewer heap bytes
+ * than it did before the per-song Scanner and scratch array were taken
+ * out, not counting the text it points to. OldSongDetails below is a
+ * copy of the layout as it was, each with its own Scanner on System.in
+ * and an unused SongDetails[6]. For each layout it keeps a large number
+ * of songs that all share the same Strings alive and divides the heap
+ * growth by the number of songs.
+ *
+ * It prints both estimates and exits with status 1 if SongDetails isn't
+ * the smaller.
+ *
+ * Usage: java SongFootprint [songs]
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.Scanner;
+import java.util.function.IntFunction;
+
+
+public class SongFootprint
+{
+    private static final String TITLE = "Breezeblocks";
+    private static final String CODE = "001";
+    private static final String DESCRIPTION = "cool song";
+    private static final String ARTIST = "alt-J";
+    private static final String ALBUM = "An Awesome Wave";
+
+    /**
+     * Prints the estimated bytes per entry of both layouts
+     * @param args number of songs to allocate, 5000 if not given
+     */
+    public static void main( String[] args )
+    {
+        int count = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 5000;
+        double old = bytesPerSong( count, i -> new OldSongDetails( TITLE,
+            CODE, DESCRIPTION, ARTIST, ALBUM, 1.99 ));
+        double now = bytesPerSong( count, i -> new SongDetails( TITLE, CODE,
+            DESCRIPTION, ARTIST, ALBUM, 199 ));
+        System.out.printf( "%,.1f bytes per song with a Scanner each%n",
+            old );
+        System.out.printf( "%,.1f bytes per SongDetails%n", now );
+        if( now >= old )
+        {
+            System.out.println( "SongDetails is no smaller" );
+            System.exit( 1 );
+        }
+    }
+
+    /**
+     * Measures the heap growth from allocating songs
+     * @param count number of songs to keep alive while measuring
+     * @param song makes the i'th song
+     * @return average bytes per song
+     */
+    public static double bytesPerSong( int count, IntFunction<Object> song )
+    {
+        Object[] kept = new Object[ count ];
+        long before = usedHeap();
+        for( int i = 0; i < count; i++ )
+        {
+            kept[ i ] = song.apply( i );
+        }
+        long after = usedHeap();
+        if( kept[ count - 1 ] == null )
+        {
+            throw new IllegalStateException(); // keeps kept reachable
+        }
+        return ( after - before ) / (double) count;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * SongDetails' fields as they were, for comparison
+     */
+    @SuppressWarnings( "unused" )
+    private static class OldSongDetails
+    {
+        // holds new song details temporarily to be added to TreeMap
+        OldSongDetails detailsArr[] = new OldSongDetails[6];
+        private String songTitle;
+        private String itemCode;
+        private String description;
+        private String artist;
+        private String album;
+        private double price;
+        Scanner scan = new Scanner( System.in );
+
+        OldSongDetails( String song, String code, String desc, String art,
+            String alb, double pr )
+        {
+            songTitle = song;
+            itemCode = code;
+            description = desc;
+            artist = art;
+            album = alb;
+            price = pr;
+        }
+    }
+}
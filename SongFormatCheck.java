@@ -0,0 +1,198 @@
+/**
+ * This class checks that every file format and every loader reads back
+ * exactly the songs that were written, including songs whose text has
+ * the characters that need quoting: commas, quotes, blanks at the ends
+ * and line breaks inside a field. It writes a synthetic catalog in
+ * which every third description spans several lines, saves it as comma
+ * separated, binary, block compressed and gzip files, loads each file
+ * every way the catalog can, and compares every song.
+ *
+ * The block compressed file is written with 1 KB blocks and the mapped
+ * loader maps 4 KB at a time, so records with line breaks in them fall
+ * across block, region and parallel chunk boundaries many times over.
+ *
+ * It then writes a legacy file by hand, with stray quotes that open a
+ * field and never close, quotes in the middle of fields and text after
+ * a closing quote, and checks that the parallel loader, with 4 KB
+ * chunks, and the mapped loader read the same songs, and count the
+ * same malformed rows, as the sequential one. The program exits with
+ * status 1 if any load differs.
+ *
+ * Usage: java SongFormatCheck [rows] [folder]
+ * The rows default to 60000, enough for several parallel chunks, and the
+ * files go in the system's temporary folder unless a folder is given.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+public class SongFormatCheck
+{
+    private static boolean failed;
+
+    /**
+     * Runs the check
+     * @param args number of songs and the folder for the files
+     * @throws IOException if a file can't be written or read
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        // small blocks, set before CompressedSongFormat reads it
+        if( System.getProperty( "songdb.compress.blockKB" ) == null )
+        {
+            System.setProperty( "songdb.compress.blockKB", "1" );
+        }
+        int rows = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 60000;
+        Path folder = args.length > 1 ? Paths.get( args[ 1 ] )
+            : Files.createTempDirectory( "songcheck" );
+
+        TreeMap<String, SongDetails> songs =
+            new TreeMap<String, SongDetails>();
+        SongCatalogGenerator generator = new SongCatalogGenerator( 7, 500,
+            4 );
+        for( int row = 0; row < rows; row++ )
+        {
+            SongDetails song = generator.nextSong( row );
+            if( row % 3 == 0 )
+            {
+                song.setDescription( "Side " + row % 2 + ",\n\"live\" take"
+                    + "\r\n\n  with \"\"strings\"\", and horns\n" );
+            }
+            if( row % 5 == 0 )
+            {
+                song.setSongTitle( " \"" + song.getSongTitle() + "\", pt. 2" );
+            }
+            songs.put( song.getItemCode(), song );
+        }
+
+        for( FileFormat format : FileFormat.values() )
+        {
+            String fp = folder.resolve( "check." + format.name()
+                .toLowerCase() ).toString();
+            SongFileWriter.write( fp, songs.values(), format );
+            for( LoadMode mode : LoadMode.values() )
+            {
+                TreeMap<String, SongDetails> loaded =
+                    new TreeMap<String, SongDetails>();
+                SongCatalog.loadFile( fp, format, mode, null, loaded );
+                compare( format + " " + mode, songs, loaded );
+            }
+            if( format == FileFormat.CSV )
+            {
+                TreeMap<String, SongDetails> loaded =
+                    new TreeMap<String, SongDetails>();
+                new ParallelSongLoader( 4 ).load( fp, loaded );
+                compare( "CSV 4 threads", songs, loaded );
+                loaded.clear();
+                new MappedSongLoader( 4096 ).load( fp, loaded );
+                compare( "CSV 4 KB regions", songs, loaded );
+            }
+            if( format == FileFormat.COMPRESSED )
+            {
+                TreeMap<String, SongDetails> loaded =
+                    new TreeMap<String, SongDetails>();
+                CompressedSongFormat.load( fp, loaded, null, 4 );
+                compare( "COMPRESSED 4 threads", songs, loaded );
+            }
+            Files.delete( Paths.get( fp ));
+        }
+        legacy( folder, songs );
+        if( args.length < 2 )
+        {
+            Files.delete( folder );
+        }
+        System.exit( failed ? 1 : 0 );
+    }
+
+    /**
+     * Checks the parallel and mapped loaders against the sequential one
+     * on a file with quotes SongFileWriter would never write
+     */
+    private static void legacy( Path folder, Map<String, SongDetails> songs )
+        throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        int row = 0;
+        for( SongDetails song : songs.values() )
+        {
+            String line = song.toString();
+            if( row % 7 == 0 )
+            {
+                line = "\"" + line; // opens a quote that never closes
+            }
+            else if( row % 11 == 0 )
+            {
+                line = "\"Weird Al\" " + line;
+            }
+            else if( row % 13 == 0 )
+            {
+                line = "12\" " + line; // a quote inside a field
+            }
+            text.append( line );
+            row++;
+        }
+        Path fp = folder.resolve( "check.legacy" );
+        Files.write( fp, text.toString().getBytes( "UTF-8" ));
+
+        TreeMap<String, SongDetails> expected =
+            new TreeMap<String, SongDetails>();
+        LoadStats sequential = SongFileParser.load( Files.newInputStream(
+            fp ), expected );
+        TreeMap<String, SongDetails> loaded =
+            new TreeMap<String, SongDetails>();
+        LoadStats parallel = new ParallelSongLoader( 4, 4096 ).load(
+            fp.toString(), loaded );
+        compare( "Legacy 4 KB chunks", expected, loaded );
+        malformed( "Legacy 4 KB chunks", sequential, parallel );
+        loaded.clear();
+        LoadStats mapped = new MappedSongLoader( 4096 ).load( fp.toString(),
+            loaded );
+        compare( "Legacy 4 KB regions", expected, loaded );
+        malformed( "Legacy 4 KB regions", sequential, mapped );
+        Files.delete( fp );
+    }
+
+    /**
+     * Prints whether a load counted the same rows as the sequential one
+     */
+    private static void malformed( String name, LoadStats expected,
+        LoadStats stats )
+    {
+        boolean ok = stats.getRows() == expected.getRows()
+            && stats.getMalformed() == expected.getMalformed();
+        failed |= !ok;
+        System.out.printf( "%-24s %,8d rows, %,6d malformed, %,d and %,d "
+            + "expected: %s%n", name, stats.getRows(), stats.getMalformed(),
+            expected.getRows(), expected.getMalformed(),
+            ok ? "ok" : "FAILED" );
+    }
+
+    /**
+     * Prints whether a load read back every song as it was written
+     */
+    private static void compare( String name, Map<String, SongDetails> songs,
+        Map<String, SongDetails> loaded )
+    {
+        int differ = 0;
+        for( SongDetails song : songs.values() )
+        {
+            SongDetails read = loaded.get( song.getItemCode() );
+            if( read == null || !read.toString().equals( song.toString() ))
+            {
+                differ++;
+            }
+        }
+        boolean ok = differ == 0 && loaded.size() == songs.size();
+        failed |= !ok;
+        System.out.printf( "%-24s %,8d songs read, %,6d missing or "
+            + "different: %s%n", name, loaded.size(), differ,
+            ok ? "ok" : "FAILED" );
+    }
+}
@@ -0,0 +1,85 @@
+
+/**
+ * This class converts a song database file between the comma separated
+ * format, BinarySongFormat and the compressed formats. The input format
+ * is detected from the file. The output format is the one given, or the
+ * one the output's name implies if it ends in .sdb, .sdbz or .gz, or
+ * otherwise binary for comma separated input and comma separated for
+ * anything else.
+ *
+ * Usage: java SongFormatConverter input output [csv|binary|compressed|gzip]
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.util.TreeMap;
+
+
+public class SongFormatConverter
+{
+    /**
+     * Converts one file
+     * @param args input file, output file, and optionally output format
+     * @throws IOException if a file can't be read or written
+     */
+    public static void main( String[] args ) throws IOException
+    {
+        if( args.length < 2 )
+        {
+            System.out.println( 
+                "Usage: java SongFormatConverter input output "
+                + "[csv|binary|compressed|gzip]" );
+            return;
+        }
+        FileFormat from = FileFormat.detect( args[ 0 ] );
+        FileFormat to;
+        if( args.length > 2 )
+        {
+            to = FileFormat.valueOf( args[ 2 ].toUpperCase() );
+        }
+        else if( FileFormat.detect( args[ 1 ] ) != FileFormat.CSV )
+        {
+            to = FileFormat.detect( args[ 1 ] );
+        }
+        else
+        {
+            to = from == FileFormat.CSV ? FileFormat.BINARY : FileFormat.CSV;
+        }
+        long bytes = convert( args[ 0 ], args[ 1 ], to );
+        System.out.println( "Wrote " + bytes + " bytes of " + to + " to "
+            + args[ 1 ] );
+    }
+
+    /**
+     * Reads a song database file in whatever format it is and writes it
+     * in the given format
+     * @param in input file location
+     * @param out output file location
+     * @param to format of the output
+     * @return bytes written
+     * @throws IOException if a file can't be read or written
+     */
+    public static long convert( String in, String out, FileFormat to )
+        throws IOException
+    {
+        TreeMap<String, SongDetails> songs = new TreeMap<String, SongDetails>();
+        System.out.println( load( in, songs ));
+        return SongFileWriter.write( out, songs.values(), to );
+    }
+
+    /**
+     * Loads a song database file in whatever format it is, the way
+     * -Dsongdb.loader says
+     * @param fp file location
+     * @param songs map the songs are put into, keyed by item code
+     * @return numbers from the load
+     * @throws IOException if the file can't be read
+     */
+    static LoadStats load( String fp, TreeMap<String, SongDetails> songs )
+        throws IOException
+    {
+        return SongCatalog.loadFile( fp, FileFormat.detect( fp ),
+            LoadMode.fromProperty(), null, songs );
+    }
+}
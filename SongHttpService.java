@@ -0,0 +1,472 @@
+
+/**
+ * This class serves the catalog read only over HTTP on localhost, so
+ * other programs can look songs up while the GUI has it open:
+ *
+ *   GET /songs/CODE                   one song, or 404
+ *   GET /songs?artist=NAME            an artist's songs
+ *   GET /songs?album=NAME             an album's songs
+ *   GET /songs                        every song
+ *   GET /stats                        request count and latencies
+ *
+ * Lists come in item code order a page at a time: limit=N asks for up
+ * to N songs (100 if not given, 1000 at most) and after=CODE starts the
+ * page after that item code. Every list has a "next" item code to pass
+ * as after= for the following page, null on the last one. Songs are
+ * written as JSON objects with the price as a number.
+ *
+ * Requests read the catalog's SongStore and SongIndex directly, which
+ * any thread can read while the GUI changes them. An edit replaces a
+ * song with a new SongDetails rather than changing the old one, so a
+ * song in a response is always one whole version of it, and each page
+ * is read from one pinned version of the catalog. A song edited away
+ * from an artist or album after the index was read is left out of that
+ * artist's or album's page rather than shown under the wrong name.
+ *
+ * Each request runs on a virtual thread where the JVM has them, Java 21
+ * and later, and on a fixed pool of -Dsongdb.http.threads threads (four
+ * per core by default) where it doesn't.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+public class SongHttpService
+{
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+    // connections waiting to be accepted
+    private static final int BACKLOG = 1024;
+
+    private final SongCatalog catalog;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * Constructor. Nothing is served until start().
+     * @param songs the catalog to serve
+     * @param port port to listen on, on the loopback address; 0 for any
+     * free port
+     * @throws IOException if the port can't be bound
+     */
+    public SongHttpService( SongCatalog songs, int port ) throws IOException
+    {
+        catalog = songs;
+        server = HttpServer.create( new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), port ), BACKLOG );
+        executor = newExecutor();
+        server.setExecutor( executor );
+        server.createContext( "/songs", this::handle );
+        server.createContext( "/stats", this::handle );
+    }
+
+    /**
+     * Turns Nagle's algorithm off for the JDK's HTTP server, unless
+     * -Dsun.net.httpserver.nodelay was given. Responses are small and
+     * written as headers then body, so with Nagle on each one waits out
+     * the client's delayed ACK, about 40 ms. The setting is a system
+     * property the JDK reads once, when the first server in the JVM
+     * opens, so the programs that serve songs call this from main before
+     * they start one, rather than it being set whenever this class loads.
+     */
+    public static void useNoDelay()
+    {
+        if( System.getProperty( "sun.net.httpserver.nodelay" ) == null )
+        {
+            System.setProperty( "sun.net.httpserver.nodelay", "true" );
+        }
+    }
+
+    /**
+     * Starts the service on -Dsongdb.http.port, if that is set
+     * @param songs the catalog to serve
+     * @return the service, or null if the property isn't set
+     */
+    public static SongHttpService startFromProperty( SongCatalog songs )
+    {
+        Integer port = Integer.getInteger( "songdb.http.port" );
+        if( port == null )
+        {
+            return null;
+        }
+        try
+        {
+            SongHttpService service = new SongHttpService( songs, port );
+            service.start();
+            System.out.println( "Serving songs on " + service.getAddress() );
+            return service;
+        }
+        catch( IOException exception )
+        {
+            System.out.println( "HTTP Error: " + exception );
+            return null;
+        }
+    }
+
+    /**
+     * A virtual thread per request if the JVM has them, otherwise a fixed
+     * pool. Looked up by name so this still compiles and runs on Java 17.
+     */
+    private static ExecutorService newExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        }
+        catch( ReflectiveOperationException exception )
+        {
+            int threads = Integer.getInteger( "songdb.http.threads",
+                Runtime.getRuntime().availableProcessors() * 4 );
+            return Executors.newFixedThreadPool( threads, runnable ->
+            {
+                Thread thread = new Thread( runnable, "song-http" );
+                thread.setDaemon( true );
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Starts answering requests
+     */
+    public void start()
+    {
+        server.start();
+    }
+
+    /**
+     * Stops answering requests, waiting up to a second for the ones in
+     * progress
+     */
+    public void stop()
+    {
+        server.stop( 1 );
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination( 1, TimeUnit.SECONDS );
+        }
+        catch( InterruptedException exception )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the address the service listens on, with the real port
+     */
+    public InetSocketAddress getAddress()
+    {
+        return server.getAddress();
+    }
+
+    /**
+     * @return how long requests have taken to answer
+     */
+    public LatencyHistogram getLatencies()
+    {
+        return latencies;
+    }
+
+    /**
+     * Answers one request and times it
+     */
+    private void handle( HttpExchange exchange ) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            if( !exchange.getRequestMethod().equals( "GET" ))
+            {
+                exchange.getResponseHeaders().set( "Allow", "GET" );
+                send( exchange, 405, error( "only GET is served" ));
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(
+                exchange.getRequestURI().getRawQuery() );
+            if( path.equals( "/stats" ))
+            {
+                send( exchange, 200, stats() );
+            }
+            else if( path.equals( "/songs" ) || path.equals( "/songs/" ))
+            {
+                list( exchange, query );
+            }
+            else if( path.startsWith( "/songs/" ))
+            {
+                SongDetails song = catalog.getSongs().get(
+                    path.substring( "/songs/".length() ));
+                if( song == null )
+                {
+                    send( exchange, 404, error( "no such song" ));
+                }
+                else
+                {
+                    StringBuilder json = new StringBuilder();
+                    appendSong( json, song );
+                    send( exchange, 200, json );
+                }
+            }
+            else
+            {
+                send( exchange, 404, error( "not found" ));
+            }
+        }
+        catch( IllegalArgumentException exception )
+        {
+            send( exchange, 400, error( exception.getMessage() ));
+        }
+        finally
+        {
+            exchange.close();
+            latencies.record( System.nanoTime() - start );
+        }
+    }
+
+    /**
+     * Answers a page of every song, an artist's songs or an album's
+     */
+    private void list( HttpExchange exchange, Map<String, String> query )
+        throws IOException
+    {
+        int limit = DEFAULT_LIMIT;
+        if( query.containsKey( "limit" ))
+        {
+            try
+            {
+                limit = Integer.parseInt( query.get( "limit" ));
+            }
+            catch( NumberFormatException exception )
+            {
+                limit = 0;
+            }
+            if( limit < 1 || limit > MAX_LIMIT )
+            {
+                throw new IllegalArgumentException( "limit must be 1 to "
+                    + MAX_LIMIT );
+            }
+        }
+        String after = query.get( "after" );
+        String artist = query.get( "artist" );
+        String album = query.get( "album" );
+        if( artist != null && album != null )
+        {
+            throw new IllegalArgumentException(
+                "give artist or album, not both" );
+        }
+
+        StringBuilder json = new StringBuilder( "{\"songs\":[" );
+        // the whole page comes from one version of the catalog
+        try( SongStore.Version version = catalog.getSongs().pin() )
+        {
+            Iterator<SongDetails> songs;
+            if( artist != null || album != null )
+            {
+                SortedSet<String> codes = artist != null
+                    ? catalog.getIndex().codesForArtist( artist )
+                    : catalog.getIndex().codesForAlbum( album );
+                if( after != null )
+                {
+                    codes = codes.tailSet( after + "\0" );
+                }
+                songs = resolve( version.getSongs(), codes.iterator(),
+                    artist, album );
+            }
+            else
+            {
+                songs = after == null ? version.getSongs().iterator()
+                    : version.getSongs().iteratorAfter( after );
+            }
+            page( json, songs, limit );
+        }
+        send( exchange, 200, json );
+    }
+
+    /**
+     * Writes up to limit songs and the item code to start the next page
+     * after
+     */
+    private static void page( StringBuilder json, Iterator<SongDetails> songs,
+        int limit )
+    {
+        String last = null;
+        int count = 0;
+        while( count < limit && songs.hasNext() )
+        {
+            SongDetails song = songs.next();
+            if( count > 0 )
+            {
+                json.append( ',' );
+            }
+            appendSong( json, song );
+            last = song.getItemCode();
+            count++;
+        }
+        json.append( "],\"next\":" );
+        appendString( json, songs.hasNext() ? last : null );
+        json.append( '}' );
+    }
+
+    /**
+     * Turns item codes from the index into songs in a version, skipping
+     * any the version doesn't have, or has under another artist or album
+     */
+    private static Iterator<SongDetails> resolve( PersistentSongMap version,
+        Iterator<String> codes, String artist, String album )
+    {
+        return new Iterator<SongDetails>()
+        {
+            private SongDetails next = advance();
+
+            private SongDetails advance()
+            {
+                while( codes.hasNext() )
+                {
+                    SongDetails song = version.get( codes.next() );
+                    if( song != null && ( artist == null
+                        || song.getArtist().equals( artist )) && ( album == null
+                        || song.getAlbum().equals( album )))
+                    {
+                        return song;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext()
+            {
+                return next != null;
+            }
+
+            public SongDetails next()
+            {
+                SongDetails song = next;
+                next = advance();
+                return song;
+            }
+        };
+    }
+
+    private StringBuilder stats()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append( "{\"songs\":" ).append( catalog.getSongs().size() )
+            .append( ",\"requests\":" ).append( latencies.count() )
+            .append( ",\"p50Micros\":" )
+            .append( latencies.percentileNanos( 50 ) / 1000 )
+            .append( ",\"p99Micros\":" )
+            .append( latencies.percentileNanos( 99 ) / 1000 )
+            .append( ",\"p999Micros\":" )
+            .append( latencies.percentileNanos( 99.9 ) / 1000 )
+            .append( ",\"maxMicros\":" )
+            .append( latencies.maxNanos() / 1000 ).append( '}' );
+        return json;
+    }
+
+    private static void appendSong( StringBuilder json, SongDetails song )
+    {
+        json.append( "{\"itemCode\":" );
+        appendString( json, song.getItemCode() );
+        json.append( ",\"title\":" );
+        appendString( json, song.getSongTitle() );
+        json.append( ",\"description\":" );
+        appendString( json, song.getDescription() );
+        json.append( ",\"artist\":" );
+        appendString( json, song.getArtist() );
+        json.append( ",\"album\":" );
+        appendString( json, song.getAlbum() );
+        json.append( ",\"price\":" ).append( song.getPriceString() )
+            .append( '}' );
+    }
+
+    /**
+     * Writes a JSON string, or null
+     */
+    private static void appendString( StringBuilder json, String text )
+    {
+        if( text == null )
+        {
+            json.append( "null" );
+            return;
+        }
+        json.append( '"' );
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( c == '"' || c == '\\' )
+            {
+                json.append( '\\' ).append( c );
+            }
+            else if( c < ' ' )
+            {
+                json.append( String.format( "\\u%04x", (int) c ));
+            }
+            else
+            {
+                json.append( c );
+            }
+        }
+        json.append( '"' );
+    }
+
+    private static StringBuilder error( String message )
+    {
+        StringBuilder json = new StringBuilder( "{\"error\":" );
+        appendString( json, message );
+        return json.append( '}' );
+    }
+
+    private static void send( HttpExchange exchange, int status,
+        CharSequence json ) throws IOException
+    {
+        byte[] body = json.toString().getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type",
+            "application/json; charset=utf-8" );
+        exchange.sendResponseHeaders( status, body.length );
+        try( OutputStream out = exchange.getResponseBody() )
+        {
+            out.write( body );
+        }
+    }
+
+    /**
+     * @return the query's parameters, decoded; the last one wins if a
+     * name repeats
+     */
+    private static Map<String, String> parseQuery( String rawQuery )
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        if( rawQuery == null || rawQuery.isEmpty() )
+        {
+            return params;
+        }
+        for( String pair : rawQuery.split( "&" ))
+        {
+            int equals = pair.indexOf( '=' );
+            String name = equals < 0 ? pair : pair.substring( 0, equals );
+            String value = equals < 0 ? "" : pair.substring( equals + 1 );
+            params.put( URLDecoder.decode( name, StandardCharsets.UTF_8 ),
+                URLDecoder.decode( value, StandardCharsets.UTF_8 ));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,157 @@
+
+/**
+ * This class keeps secondary indexes over the song catalog, from song
+ * title, artist and album to the item codes of the songs that have them,
+ * so songs can be found without walking the whole songs TreeMap. It has
+ * to be told about every song that is added, replaced or removed.
+ *
+ * Changes come from one thread at a time, the one that changes the
+ * catalog, but any thread can look songs up while they are made, the
+ * way SongStore is read: the indexes are concurrent maps of concurrent
+ * sets, and the sets handed out are live read only views that never
+ * throw while another thread changes them.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+
+public class SongIndex
+{
+    private final Index byTitle = new Index();
+    private final Index byArtist = new Index();
+    private final Index byAlbum = new Index();
+
+    /**
+     * Indexes every song in a freshly loaded catalog
+     * @param songs the songs to index
+     */
+    public void addAll( Iterable<SongDetails> songs )
+    {
+        for( SongDetails song : songs )
+        {
+            add( song );
+        }
+    }
+
+    /**
+     * Updates the indexes after a song was added or replaced
+     * @param old the song the new one replaced, or null if it is new
+     * @param song the song as it now is
+     */
+    public void put( SongDetails old, SongDetails song )
+    {
+        if( old != null )
+        {
+            remove( old );
+        }
+        add( song );
+    }
+
+    /**
+     * Updates the indexes after a song was removed
+     * @param song the removed song, ignored if null
+     */
+    public void remove( SongDetails song )
+    {
+        if( song != null )
+        {
+            unlink( byTitle, song.getSongTitle(), song.getItemCode() );
+            unlink( byArtist, song.getArtist(), song.getItemCode() );
+            unlink( byAlbum, song.getAlbum(), song.getItemCode() );
+        }
+    }
+
+    private void add( SongDetails song )
+    {
+        link( byTitle, song.getSongTitle(), song.getItemCode() );
+        link( byArtist, song.getArtist(), song.getItemCode() );
+        link( byAlbum, song.getAlbum(), song.getItemCode() );
+    }
+
+    private static void link( Index index, String key, String code )
+    {
+        ConcurrentSkipListSet<String> codes = index.get( key );
+        if( codes == null )
+        {
+            codes = new ConcurrentSkipListSet<String>();
+            index.put( key, codes );
+        }
+        codes.add( code );
+    }
+
+    private static void unlink( Index index, String key, String code )
+    {
+        ConcurrentSkipListSet<String> codes = index.get( key );
+        if( codes != null )
+        {
+            codes.remove( code );
+            if( codes.isEmpty() )
+            {
+                index.remove( key );
+            }
+        }
+    }
+
+    /**
+     *
+     * @param title song title
+     * @return item codes of the songs with that title, in order
+     */
+    public SortedSet<String> codesForTitle( String title )
+    {
+        return lookup( byTitle, title );
+    }
+
+    /**
+     *
+     * @param artist artist name
+     * @return item codes of the artist's songs, in order
+     */
+    public SortedSet<String> codesForArtist( String artist )
+    {
+        return lookup( byArtist, artist );
+    }
+
+    /**
+     *
+     * @param album album name
+     * @return item codes of the songs on the album, in order
+     */
+    public SortedSet<String> codesForAlbum( String album )
+    {
+        return lookup( byAlbum, album );
+    }
+
+    private static SortedSet<String> lookup( Index index, String key )
+    {
+        ConcurrentSkipListSet<String> codes = index.get( key );
+        if( codes == null )
+        {
+            return Collections.emptySortedSet();
+        }
+        return Collections.unmodifiableSortedSet( codes );
+    }
+
+    /**
+     *
+     * @return number of distinct titles, artists and albums indexed
+     */
+    public int size()
+    {
+        return byTitle.size() + byArtist.size() + byAlbum.size();
+    }
+
+    /**
+     * Item codes by title, artist or album
+     */
+    private static class Index
+        extends ConcurrentHashMap<String, ConcurrentSkipListSet<String>>
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,599 @@
+
+/**
+ * This class keeps an append-only journal of the adds, edits and deletes
+ * made since the song database file was last written, in a file next to
+ * it named after it with ".journal" added. Changes are buffered and
+ * written and fsync'd in batches on a background thread, so a crash
+ * loses at most the last batch instead of every change in the session.
+ *
+ * Each journal line is "P," followed by a song in the database file
+ * format for an add or edit, or "D," followed by an item code for a
+ * delete. replay() applies the journal on top of a freshly loaded
+ * database, and compact() folds it back into the database file through
+ * a SnapshotWriter. replay() skips any line that doesn't have exactly
+ * the fields one of those writes, and stops at a last line with no line
+ * break, which is what a write cut short by a crash leaves.
+ *
+ * Nothing is dropped when a write fails. A batch that can't be written
+ * is cut back off the journal and kept for the next sync, and a
+ * compaction whose snapshot can't be written leaves its set-aside
+ * journal in place; the next compaction appends the current journal to
+ * it, so the older changes stay first, and tries again. Failures are
+ * counted in SongMetrics and thrown by checkFailures().
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+public class SongJournal
+{
+    // how often buffered changes are written and fsync'd
+    private static final long SYNC_MILLIS =
+        Long.getLong( "songdb.journal.syncMillis", 200 );
+    // buffered changes that cause a write right away
+    private static final int BATCH_SIZE = 1000;
+    // journal entries after which compactionDue() becomes true
+    private static final int COMPACT_AFTER =
+        Integer.getInteger( "songdb.journal.compactAfter", 100000 );
+    // fields of a "P," line: the op, a song and the empty field after
+    // the song's trailing comma
+    private static final int PUT_FIELDS = SongFileParser.FIELD_COUNT + 2;
+    // fields of a "D," line: the op and an item code
+    private static final int DELETE_FIELDS = 2;
+
+    private final String dbPath;
+    private final Path journalPath;
+    private final Path compactingPath;
+    private final ScheduledExecutorService disk;
+
+    private FileChannel channel;
+    private StringBuilder pending = new StringBuilder();
+    private int pendingCount;
+    private int entries; // entries in the journal since it was last folded
+    // true while a compaction's snapshot is being written
+    private boolean compacting;
+    // the first background write that failed since checkFailures()
+    private IOException failure;
+
+    /**
+     * Opens the journal of a song database file for appending, creating
+     * it if it doesn't exist
+     * @param fp song database file location
+     * @throws IOException if the journal can't be opened
+     */
+    public SongJournal( String fp ) throws IOException
+    {
+        dbPath = fp;
+        journalPath = Paths.get( fp + ".journal" );
+        compactingPath = Paths.get( fp + ".journal.compacting" );
+        disk = Executors.newSingleThreadScheduledExecutor( runnable ->
+        {
+            Thread thread = new Thread( runnable, "song-journal" );
+            thread.setDaemon( true );
+            return thread;
+        });
+        channel = open( journalPath );
+        disk.scheduleWithFixedDelay( () -> sync(), SYNC_MILLIS,
+            SYNC_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    private static FileChannel open( Path path ) throws IOException
+    {
+        return FileChannel.open( path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+    }
+
+    /**
+     * Applies the journal of a song database file to songs that were just
+     * loaded from it. Journal lines cut short by a crash are ignored.
+     * @param fp song database file location
+     * @param songs songs loaded from the file, keyed by item code
+     * @param dict dictionary to encode songs with, or null for none
+     * @return number of journal entries applied
+     * @throws IOException if the journal can't be read
+     */
+    public static int replay( String fp, Map<String, SongDetails> songs,
+        SongDictionary dict ) throws IOException
+    {
+        // an unfinished compaction's journal holds the older changes
+        return replay( Paths.get( fp + ".journal.compacting" ), songs, dict )
+            + replay( Paths.get( fp + ".journal" ), songs, dict );
+    }
+
+    /**
+     * Reads the net effect of the journal of a song database file, for
+     * applying it to songs that are streamed from the file instead of
+     * loaded into a map
+     * @param fp song database file location
+     * @param dict dictionary to encode songs with, or null for none
+     * @return the songs the journal leaves in place and the item codes it
+     * leaves deleted
+     * @throws IOException if the journal can't be read
+     */
+    public static Changes changes( String fp, SongDictionary dict )
+        throws IOException
+    {
+        Changes changes = new Changes();
+        changes.replayed = replay( fp, changes, dict );
+        return changes;
+    }
+
+    private static int replay( Path path, Map<String, SongDetails> songs,
+        SongDictionary dict ) throws IOException
+    {
+        if( !Files.exists( path ) )
+        {
+            return 0;
+        }
+        int applied = 0;
+        try( SongFileParser parser = new SongFileParser(
+            new FileInputStream( path.toFile() )) )
+        {
+            while( parser.nextRecord() )
+            {
+                if( !parser.endsLine() )
+                {
+                    // torn line at the end of the journal
+                    break;
+                }
+                if( parser.isBroken() )
+                {
+                    continue; // a damaged line is skipped
+                }
+                String op = parser.field( 0 );
+                if( op.equals( "D" ) && parser.fieldCount() == DELETE_FIELDS )
+                {
+                    songs.remove( parser.field( 1 ));
+                    applied++;
+                }
+                else if( op.equals( "P" )
+                    && parser.fieldCount() == PUT_FIELDS )
+                {
+                    try
+                    {
+                        SongDetails song = new SongDetails( parser.field( 1 ),
+                            parser.field( 2 ), parser.field( 3 ),
+                            parser.field( 4 ), parser.field( 5 ),
+                            parser.cents( 6 ));
+                        songs.put( song.getItemCode(),
+                            dict == null ? song : dict.encode( song ));
+                        applied++;
+                    }
+                    catch( NumberFormatException exception )
+                    {
+                        // a damaged line is skipped
+                    }
+                }
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Records an added or edited song
+     * @param song the song as it now is
+     */
+    public synchronized void recordPut( SongDetails song )
+    {
+        pending.append( "P," ).append( song.toString() );
+        added();
+    }
+
+    /**
+     * Records a deleted song
+     * @param itemCode item code of the deleted song
+     */
+    public synchronized void recordDelete( String itemCode )
+    {
+        pending.append( "D," ).append( SongDetails.quote( itemCode ))
+            .append( '\n' );
+        added();
+    }
+
+    /**
+     * Records a batch of changes, such as a delta file's, with one append
+     * and at most one write
+     * @param puts the songs added or edited, as they now are
+     * @param deletes item codes of the deleted songs, none of them among
+     * the puts
+     */
+    public synchronized void recordAll( Collection<SongDetails> puts,
+        Collection<String> deletes )
+    {
+        for( SongDetails song : puts )
+        {
+            pending.append( "P," ).append( song.toString() );
+        }
+        for( String itemCode : deletes )
+        {
+            pending.append( "D," ).append( SongDetails.quote( itemCode ))
+                .append( '\n' );
+        }
+        added( puts.size() + deletes.size() );
+    }
+
+    private void added()
+    {
+        added( 1 );
+    }
+
+    private void added( int count )
+    {
+        entries += count;
+        pendingCount += count;
+        if( count > 0 && pendingCount >= BATCH_SIZE )
+        {
+            disk.execute( () -> sync() );
+        }
+    }
+
+    /**
+     * @return true once enough changes have been journaled that the
+     * journal should be folded into the database file
+     */
+    public synchronized boolean compactionDue()
+    {
+        return entries >= COMPACT_AFTER;
+    }
+
+    /**
+     * Writes and fsyncs the buffered changes. Runs on the disk thread.
+     */
+    private void sync()
+    {
+        String batch;
+        int count;
+        FileChannel target;
+        synchronized( this )
+        {
+            if( pendingCount == 0 )
+            {
+                return;
+            }
+            batch = pending.toString();
+            count = pendingCount;
+            pending = new StringBuilder();
+            pendingCount = 0;
+            target = channel;
+        }
+        try
+        {
+            write( target, batch );
+        }
+        catch( IOException exception )
+        {
+            failed( exception );
+            keep( batch, count );
+        }
+    }
+
+    /**
+     * Appends a batch and fsyncs it. If that fails, whatever part of it
+     * was written is cut off again, so a retry doesn't follow half a line.
+     */
+    private static void write( FileChannel target, String batch )
+        throws IOException
+    {
+        write( target, batch.getBytes( StandardCharsets.UTF_8 ));
+    }
+
+    private static void write( FileChannel target, byte[] batch )
+        throws IOException
+    {
+        long start = target.size();
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap( batch );
+            while( buffer.hasRemaining() )
+            {
+                target.write( buffer );
+            }
+            target.force( false );
+        }
+        catch( IOException exception )
+        {
+            try
+            {
+                target.truncate( start );
+            }
+            catch( IOException truncating )
+            {
+                exception.addSuppressed( truncating );
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Puts a batch that couldn't be written back in front of the changes
+     * made since, for the next sync
+     */
+    private synchronized void keep( String batch, int count )
+    {
+        pending.insert( 0, batch );
+        pendingCount += count;
+    }
+
+    private synchronized void failed( IOException exception )
+    {
+        System.out.println( "Journal Error: " + exception );
+        SongMetrics.get().journalFailed();
+        if( failure == null )
+        {
+            failure = exception;
+        }
+    }
+
+    /**
+     * Throws the first error the background writes hit since this was
+     * last called. The changes they were writing are kept and written
+     * again, so this only reports it.
+     * @throws IOException the error
+     */
+    public synchronized void checkFailures() throws IOException
+    {
+        IOException thrown = failure;
+        failure = null;
+        if( thrown != null )
+        {
+            throw thrown;
+        }
+    }
+
+    /**
+     * Runs a task on the disk thread, after everything queued before it,
+     * or right away once the journal is closed
+     */
+    private void onDisk( Runnable task )
+    {
+        try
+        {
+            disk.execute( task );
+        }
+        catch( RejectedExecutionException exception )
+        {
+            task.run();
+        }
+    }
+
+    /**
+     * Starts folding the journal into the database file. The current
+     * journal is set aside and a new one started right away, then the
+     * snapshot is written to the database file in the background and the
+     * old journal deleted. If the last compaction's snapshot failed, its
+     * set-aside journal is still there, and the current journal is
+     * appended to it instead. The snapshot must be taken at the same
+     * moment compact() is called, so every change is either in the
+     * snapshot or in the new journal.
+     * @param snapshot every song in the database, in item code order
+     * @param writer writes the snapshot to the database file
+     * @throws IOException if the journal can't be set aside
+     */
+    public synchronized void compact( Collection<SongDetails> snapshot,
+        SnapshotWriter writer ) throws IOException
+    {
+        if( compacting )
+        {
+            return; // the last compaction hasn't finished
+        }
+        // changes up to now go to the old journal, later ones to the new
+        String batch = pending.toString();
+        int count = pendingCount;
+        pending = new StringBuilder();
+        pendingCount = 0;
+        entries = 0;
+        if( Files.exists( compactingPath ))
+        {
+            // queued after every write to the current journal so far,
+            // and before any later one
+            FileChannel current = channel;
+            onDisk( () -> fold( current, batch, count ));
+        }
+        else
+        {
+            FileChannel old = channel;
+            Files.move( journalPath, compactingPath,
+                StandardCopyOption.ATOMIC_MOVE );
+            channel = open( journalPath );
+            onDisk( () ->
+            {
+                try
+                {
+                    write( old, batch );
+                }
+                catch( IOException exception )
+                {
+                    // the new journal keeps them instead
+                    failed( exception );
+                    keep( batch, count );
+                }
+                close( old );
+            });
+        }
+        compacting = true;
+
+        writer.submit( snapshot ).whenComplete( ( done, thrown ) -> onDisk(
+            () -> compacted( thrown )));
+    }
+
+    /**
+     * Appends the current journal, and the changes not yet written to
+     * it, to the journal a failed compaction set aside, then empties the
+     * current journal. Runs on the disk thread.
+     */
+    private void fold( FileChannel current, String batch, int count )
+    {
+        try
+        {
+            write( current, batch );
+        }
+        catch( IOException exception )
+        {
+            failed( exception );
+            keep( batch, count );
+        }
+        try
+        {
+            byte[] newer = Files.readAllBytes( journalPath );
+            try( FileChannel older = open( compactingPath ))
+            {
+                write( older, newer );
+            }
+            // a crash before this replays the changes twice, which
+            // leaves the songs the same
+            current.truncate( 0 );
+        }
+        catch( IOException exception )
+        {
+            // both journals are still replayed in order
+            failed( exception );
+        }
+    }
+
+    /**
+     * Deletes the set-aside journal once its snapshot is written, or
+     * keeps it for the next compaction. Runs on the disk thread.
+     */
+    private void compacted( Throwable thrown )
+    {
+        synchronized( this )
+        {
+            compacting = false;
+        }
+        if( thrown != null )
+        {
+            // replayed next start, or folded into by the next compaction
+            failed( thrown instanceof IOException ? (IOException) thrown
+                : new IOException( "Snapshot failed", thrown ));
+            return;
+        }
+        try
+        {
+            Files.delete( compactingPath );
+        }
+        catch( IOException exception )
+        {
+            failed( exception );
+        }
+    }
+
+    private static void close( FileChannel closed )
+    {
+        try
+        {
+            closed.close();
+        }
+        catch( IOException exception )
+        {
+            System.out.println( "Journal Error: " + exception );
+        }
+    }
+
+    /**
+     * Writes any buffered changes, waits for background work to finish
+     * and closes the journal
+     * @throws IOException if the journal can't be closed
+     */
+    public void close() throws IOException
+    {
+        disk.execute( () -> sync() );
+        disk.shutdown();
+        try
+        {
+            disk.awaitTermination( 1, TimeUnit.MINUTES );
+        }
+        catch( InterruptedException exception )
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized( this )
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Deletes the journal files of a song database file once everything
+     * in them has been written to the database file
+     * @param fp song database file location
+     * @throws IOException if a journal file can't be deleted
+     */
+    public static void discard( String fp ) throws IOException
+    {
+        Files.deleteIfExists( Paths.get( fp + ".journal.compacting" ));
+        Files.deleteIfExists( Paths.get( fp + ".journal" ));
+    }
+
+    /**
+     * @param fp song database file location
+     * @return true if the database file has journal entries waiting to be
+     * folded into it
+     */
+    public static boolean hasEntries( String fp )
+    {
+        return new File( fp + ".journal" ).length() > 0
+            || new File( fp + ".journal.compacting" ).exists();
+    }
+
+    /**
+     * The net effect of a journal: the songs it leaves in place, keyed by
+     * item code, and the item codes it leaves deleted. The journal only
+     * puts and removes, so replaying it into an empty Changes records
+     * both.
+     */
+    public static class Changes extends TreeMap<String, SongDetails>
+    {
+        private static final long serialVersionUID = 1L;
+        private final Set<String> removed = new LinkedHashSet<String>();
+        private int replayed;
+
+        public SongDetails put( String code, SongDetails song )
+        {
+            removed.remove( code );
+            return super.put( code, song );
+        }
+
+        public SongDetails remove( Object code )
+        {
+            removed.add( (String) code );
+            return super.remove( code );
+        }
+
+        /**
+         * @return item codes the journal deletes
+         */
+        public Set<String> getRemoved()
+        {
+            return removed;
+        }
+
+        /**
+         * @return number of journal entries read
+         */
+        public int getReplayed()
+        {
+            return replayed;
+        }
+    }
+}
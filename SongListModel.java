@@ -0,0 +1,238 @@
+
+/**
+ * This class is the list of song titles shown in the GUI. It doesn't
+ * hold the titles, or even the item codes: it pins one version of the
+ * catalog's SongStore and reads the song at a position straight out of
+ * that PersistentSongMap, whose nodes count the songs under them, when a
+ * row is asked for. The combo box and list view only ask for the rows
+ * they are drawing, so only those songs are ever touched, and opening
+ * the GUI costs nothing whatever the catalog size.
+ *
+ * After the catalog changes, the list is told which item codes changed.
+ * It pins the new version and compares each of those songs in the two
+ * versions, finding its position in O(log n), so an add, edit or delete
+ * costs O(log n) however many songs there are, and a batch fires a
+ * single change event.
+ *
+ * In bounded mode the list shows the item codes of a SongFileIndex
+ * instead, read from the index as rows are drawn, so not even the item
+ * codes are held as Strings.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javafx.collections.ObservableListBase;
+
+
+public class SongListModel extends ObservableListBase<String>
+{
+    private final SongStore store;
+    // the version of the songs the list shows
+    private SongStore.Version shown;
+    // in bounded mode, the item codes shown and where their songs are
+    private List<String> fixedCodes;
+    private Map<String, SongDetails> fixedSongs;
+
+    /**
+     * Constructor, showing the songs the store has now
+     * @param songStore the catalog's songs
+     */
+    public SongListModel( SongStore songStore )
+    {
+        store = songStore;
+        shown = store.pin();
+    }
+
+    /**
+     * Title of the song at a position, looked up when it is asked for
+     */
+    public String get( int index )
+    {
+        if( fixedCodes != null )
+        {
+            SongDetails song = fixedSongs.get( fixedCodes.get( index ));
+            return song == null ? null : song.getSongTitle();
+        }
+        return shown.getSongs().songAt( index ).getSongTitle();
+    }
+
+    public int size()
+    {
+        return fixedCodes != null ? fixedCodes.size()
+            : shown.getSongs().size();
+    }
+
+    /**
+     * Shows a list of item codes that won't change, such as a
+     * SongFileIndex's, with one change event. The list isn't copied, and
+     * the store's changes aren't shown once it is.
+     * @param itemCodes item codes in order
+     * @param songMap where the songs are looked up
+     */
+    public void show( List<String> itemCodes, Map<String, SongDetails> songMap )
+    {
+        beginChange();
+        removeShown();
+        fixedCodes = itemCodes;
+        fixedSongs = songMap;
+        nextAdd( 0, size() );
+        endChange();
+    }
+
+    private void removeShown()
+    {
+        if( !isEmpty() )
+        {
+            nextRemove( 0, titles( shown.getSongs(), fixedCodes,
+                fixedSongs ));
+        }
+    }
+
+    /**
+     * The titles shown, as a view that looks each one up when it is asked
+     * for, and keeps showing them after the list moves on
+     */
+    private static List<String> titles( final PersistentSongMap songs,
+        final List<String> codes, final Map<String, SongDetails> songMap )
+    {
+        return new AbstractList<String>()
+        {
+            public String get( int index )
+            {
+                if( codes != null )
+                {
+                    SongDetails song = songMap.get( codes.get( index ));
+                    return song == null ? null : song.getSongTitle();
+                }
+                return songs.songAt( index ).getSongTitle();
+            }
+
+            public int size()
+            {
+                return codes != null ? codes.size() : songs.size();
+            }
+        };
+    }
+
+    /**
+     * Shows a song just added to or replaced in the store
+     * @param song the song as it now is
+     */
+    public void put( SongDetails song )
+    {
+        update( Collections.singletonList( song.getItemCode() ));
+    }
+
+    /**
+     * Shows a batch of songs just added to or replaced in the store
+     * @param batch the songs as they now are
+     */
+    public void putAll( List<SongDetails> batch )
+    {
+        List<String> itemCodes = new ArrayList<String>( batch.size() );
+        for( SongDetails song : batch )
+        {
+            itemCodes.add( song.getItemCode() );
+        }
+        update( itemCodes );
+    }
+
+    /**
+     * Takes a song just removed from the store out of the list
+     * @param itemCode item code of the removed song
+     */
+    public void remove( String itemCode )
+    {
+        update( Collections.singletonList( itemCode ));
+    }
+
+    /**
+     * Takes a batch of songs just removed from the store out of the list
+     * @param itemCodes item codes of the removed songs
+     */
+    public void removeAll( List<String> itemCodes )
+    {
+        update( itemCodes );
+    }
+
+    /**
+     * Moves the list on to the store's current version with one change
+     * event. Every song that differs between the version shown and the
+     * current one must be among the item codes; the rest are ignored.
+     * @param itemCodes item codes of the songs added, replaced or removed
+     * since the list last changed, in any order, repeats allowed
+     */
+    public void update( Collection<String> itemCodes )
+    {
+        if( fixedCodes != null )
+        {
+            return;
+        }
+        PersistentSongMap before = shown.getSongs();
+        SongStore.Version pinned = store.pin();
+        PersistentSongMap after = pinned.getSongs();
+        List<String> sorted = new ArrayList<String>( itemCodes );
+        Collections.sort( sorted );
+
+        beginChange();
+        String last = null;
+        for( String code : sorted )
+        {
+            if( code.equals( last ))
+            {
+                continue;
+            }
+            last = code;
+            SongDetails old = before.get( code );
+            SongDetails song = after.get( code );
+            if( old == null && song == null )
+            {
+                continue;
+            }
+            // the songs before this one already are as they are after,
+            // and the songs after it as they were before
+            int at = after.indexOf( code );
+            if( at < 0 )
+            {
+                at = -at - 1;
+            }
+            if( old == null )
+            {
+                nextAdd( at, at + 1 );
+            }
+            else if( song == null )
+            {
+                nextRemove( at, old.getSongTitle() );
+            }
+            else if( old != song )
+            {
+                nextSet( at, old.getSongTitle() );
+            }
+        }
+        shown.close();
+        shown = pinned;
+        endChange();
+    }
+
+    /**
+     *
+     * @param index position in the list
+     * @return item code of the song at that position, or null if there
+     * is no such position
+     */
+    public String codeAt( int index )
+    {
+        if( index < 0 || index >= size() )
+        {
+            return null;
+        }
+        return fixedCodes != null ? fixedCodes.get( index )
+            : shown.getSongs().songAt( index ).getItemCode();
+    }
+}
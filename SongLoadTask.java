@@ -0,0 +1,205 @@
+
+/**
+ * This class loads the song database file on a background thread so the
+ * GUI can open straight away. Songs are handed to the FX thread in
+ * batches through Platform.runLater as they are read, so the ones already
+ * loaded can be browsed while the rest stream in, and the task's message
+ * and progress say how many rows are in, how fast, and how long is left.
+ *
+ * Comma separated files read with the sequential loader, and gzipped
+ * ones, are streamed a batch at a time. The parallel, mapped and binary
+ * loaders, and the block compressed one, fill a map in one go, which is
+ * then handed over in batches the same way.
+ *
+ * Once the file is in, the journal is replayed and its changes are handed
+ * over last, as songs to put and item codes to delete. The task's value
+ * is the numbers from the load.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+
+public class SongLoadTask extends Task<LoadStats>
+{
+    // most songs handed to the FX thread at once
+    private static final int BATCH_SIZE = 5000;
+    // longest a song waits on this thread before it is handed over
+    private static final long BATCH_NANOS = 100_000_000L;
+
+    private final String dbPath;
+    private final FileFormat format;
+    private final LoadMode mode;
+    private final SongDictionary dictionary;
+    private final Consumer<List<SongDetails>> putSongs;
+    private final Consumer<List<String>> removeSongs;
+
+    private long startTime;
+    private long lastHandOver;
+    private List<SongDetails> batch = new ArrayList<SongDetails>();
+    private volatile int replayed;
+
+    /**
+     * Constructor
+     * @param fp song database file location
+     * @param fileFormat format the file is in
+     * @param loadMode how comma separated files are read
+     * @param dict dictionary to encode songs with, or null for none
+     * @param put called on the FX thread with each batch of songs, in
+     * file order
+     * @param remove called on the FX thread with the item codes the
+     * journal deleted
+     */
+    public SongLoadTask( String fp, FileFormat fileFormat, LoadMode loadMode,
+        SongDictionary dict, Consumer<List<SongDetails>> put,
+        Consumer<List<String>> remove )
+    {
+        dbPath = fp;
+        format = fileFormat;
+        mode = loadMode;
+        dictionary = dict;
+        putSongs = put;
+        removeSongs = remove;
+    }
+
+    /**
+     * Reads the file and the journal, handing the songs over as it goes
+     * @return numbers from loading the file
+     * @throws IOException if the file or the journal can't be read
+     */
+    protected LoadStats call() throws IOException
+    {
+        startTime = System.nanoTime();
+        lastHandOver = startTime;
+        long fileBytes = new File( dbPath ).length();
+        LoadStats stats;
+        // what SongCatalog.loadFile() would read in one stream is handed
+        // over as it is read; the rest is loaded by loadFile()
+        if( format == FileFormat.GZIP || ( format.isText()
+            && mode == LoadMode.SEQUENTIAL ))
+        {
+            stats = stream( fileBytes );
+        }
+        else
+        {
+            stats = loadAll( fileBytes );
+        }
+        handOver();
+
+        // the journal's net changes are handed over after the file
+        updateMessage( "Replaying journal" );
+        SongJournal.Changes changes = SongJournal.changes( dbPath,
+            dictionary );
+        replayed = changes.getReplayed();
+        List<String> removed = new ArrayList<String>(
+            changes.getRemoved() );
+        Platform.runLater( () -> removeSongs.accept( removed ));
+        for( SongDetails song : changes.values() )
+        {
+            add( song );
+        }
+        handOver();
+        updateProgress( 1, 1 );
+        return stats;
+    }
+
+    private LoadStats stream( long fileBytes ) throws IOException
+    {
+        FileInputStream file = new FileInputStream( dbPath );
+        try( SongFileParser parser = new SongFileParser(
+            CompressedSongFormat.openText( file, format )) )
+        {
+            parser.setDictionary( dictionary );
+            SongDetails nextSong;
+            while( ( nextSong = parser.next() ) != null )
+            {
+                if( add( nextSong ))
+                {
+                    // progress goes by the file read, compressed or not
+                    showProgress( parser.rows(), file.getChannel()
+                        .position(), fileBytes );
+                }
+            }
+            return new LoadStats( parser.rows(), parser.malformed(),
+                parser.bytesRead(), System.nanoTime() - startTime );
+        }
+    }
+
+    private LoadStats loadAll( long fileBytes ) throws IOException
+    {
+        updateMessage( "Loading " + fileBytes / 1000000 + " MB" );
+        TreeMap<String, SongDetails> loaded =
+            new TreeMap<String, SongDetails>();
+        LoadStats stats = SongCatalog.loadFile( dbPath, format, mode,
+            dictionary, loaded );
+        long rows = 0;
+        for( SongDetails song : loaded.values() )
+        {
+            rows++;
+            if( add( song ))
+            {
+                // bytes handed over so far, in proportion to the rows
+                showProgress( rows, fileBytes * rows / loaded.size(),
+                    fileBytes );
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Adds a song to the batch, handing the batch over when it is full
+     * or has waited long enough
+     * @return true if the batch was handed over
+     */
+    private boolean add( SongDetails song )
+    {
+        batch.add( song );
+        if( batch.size() >= BATCH_SIZE
+            || System.nanoTime() - lastHandOver >= BATCH_NANOS )
+        {
+            handOver();
+            return true;
+        }
+        return false;
+    }
+
+    private void handOver()
+    {
+        lastHandOver = System.nanoTime();
+        if( !batch.isEmpty() )
+        {
+            List<SongDetails> songs = batch;
+            batch = new ArrayList<SongDetails>( BATCH_SIZE );
+            Platform.runLater( () -> putSongs.accept( songs ));
+        }
+    }
+
+    private void showProgress( long rows, long bytes, long fileBytes )
+    {
+        double seconds = ( System.nanoTime() - startTime ) / 1e9;
+        double bytesPerSecond = bytes / Math.max( seconds, 1e-9 );
+        long left = (long) ( ( fileBytes - bytes ) / bytesPerSecond );
+        updateProgress( bytes, fileBytes );
+        updateMessage( String.format(
+            "Loaded %,d songs, %.1f MB/s, about %d s left",
+            rows, bytesPerSecond / 1e6, left ));
+    }
+
+    /**
+     *
+     * @return number of journal entries replayed, once the task is done
+     */
+    public int getReplayed()
+    {
+        return replayed;
+    }
+}
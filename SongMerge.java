@@ -0,0 +1,134 @@
+
+/**
+ * This class merges two streams of songs that are both sorted by item
+ * code with no item code twice, such as a catalog and a feed that has
+ * been through SongSorter. When both have a song with the same item code,
+ * the one from the overlay wins. Item codes in the deleted set are left
+ * out of the base, which is how a journal's deletes are applied.
+ *
+ * Only the next song of each stream is held in memory.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+
+public class SongMerge implements SongReader
+{
+    private final SongReader base;
+    private final SongReader overlay;
+    private final Set<String> deleted;
+
+    private SongDetails nextBase;
+    private SongDetails nextOverlay;
+
+    private long added; // overlay songs with no base song
+    private long replaced; // overlay songs that replaced a base song
+
+    /**
+     * Constructor
+     * @param baseSongs songs to start from, sorted by item code
+     * @param overlaySongs songs that win over the base, sorted by item code
+     * @throws IOException if the first songs can't be read
+     */
+    public SongMerge( SongReader baseSongs, SongReader overlaySongs )
+        throws IOException
+    {
+        this( baseSongs, overlaySongs, Collections.<String>emptySet() );
+    }
+
+    /**
+     * Constructor
+     * @param baseSongs songs to start from, sorted by item code
+     * @param overlaySongs songs that win over the base, sorted by item code
+     * @param deletedCodes item codes to leave out of the base
+     * @throws IOException if the first songs can't be read
+     */
+    public SongMerge( SongReader baseSongs, SongReader overlaySongs,
+        Set<String> deletedCodes ) throws IOException
+    {
+        base = baseSongs;
+        overlay = overlaySongs;
+        deleted = deletedCodes;
+        nextBase = nextKept();
+        nextOverlay = overlay.next();
+    }
+
+    private SongDetails nextKept() throws IOException
+    {
+        SongDetails song;
+        do
+        {
+            song = base.next();
+        }
+        while( song != null && deleted.contains( song.getItemCode() ));
+        return song;
+    }
+
+    public SongDetails next() throws IOException
+    {
+        if( nextBase == null && nextOverlay == null )
+        {
+            return null;
+        }
+        int order = nextBase == null ? 1 : nextOverlay == null ? -1
+            : nextBase.getItemCode().compareTo( nextOverlay.getItemCode() );
+        SongDetails song;
+        if( order < 0 )
+        {
+            song = nextBase;
+            nextBase = nextKept();
+        }
+        else
+        {
+            song = nextOverlay;
+            nextOverlay = overlay.next();
+            if( order == 0 )
+            {
+                replaced++;
+                nextBase = nextKept();
+            }
+            else
+            {
+                added++;
+            }
+        }
+        return song;
+    }
+
+    public long malformed()
+    {
+        return base.malformed() + overlay.malformed();
+    }
+
+    /**
+     * @return number of overlay songs so far that weren't in the base
+     */
+    public long getAdded()
+    {
+        return added;
+    }
+
+    /**
+     * @return number of overlay songs so far that replaced a base song
+     */
+    public long getReplaced()
+    {
+        return replaced;
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            base.close();
+        }
+        finally
+        {
+            overlay.close();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/**
+ * This class keeps counters and timers for the song database: loads and
+ * the rows they parse, saves and the bytes they write, the size of the
+ * catalog and its indexes, and how long showing the selected song and
+ * the accept handler take, and in bounded mode how the song cache is
+ * doing. They are shown through JMX as songdb:type=SongMetrics, and
+ * printed as one line every -Dsongdb.metrics.logSeconds seconds if that
+ * is set.
+ *
+ * Metrics are off unless -Dsongdb.metrics=true. When they are off the
+ * timers don't read the clock and the counters return straight away,
+ * so leaving the calls in the hot paths costs a branch each.
+ *
+ * Counters are LongAdders, so threads that record at the same time don't
+ * contend with each other.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+public class SongMetrics implements SongMetricsMBean
+{
+    private static final boolean ENABLED = Boolean.getBoolean(
+        "songdb.metrics" );
+    private static final long LOG_SECONDS = Long.getLong(
+        "songdb.metrics.logSeconds", 0 );
+    private static final SongMetrics METRICS = new SongMetrics();
+
+    private final Timer load = new Timer();
+    private final LongAdder rowsParsed = new LongAdder();
+    private final LongAdder malformedRows = new LongAdder();
+    private volatile long lastLoadNanos;
+
+    private final Timer save = new Timer();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LongAdder saveFailures = new LongAdder();
+    private final LongAdder journalFailures = new LongAdder();
+
+    private final Timer selection = new Timer();
+    private final Timer accept = new Timer();
+
+    // the catalog whose sizes are reported, null until start()
+    private volatile SongCatalog catalog;
+    // the bounded mode's cache, null unless watch() is called
+    private volatile SongRecordCache cache;
+
+    private SongMetrics()
+    {
+        // one set of metrics for the whole program, from get()
+    }
+
+    /**
+     * @return the program's metrics
+     */
+    public static SongMetrics get()
+    {
+        return METRICS;
+    }
+
+    /**
+     * @return true if -Dsongdb.metrics=true turned metrics on
+     */
+    public static boolean isEnabled()
+    {
+        return ENABLED;
+    }
+
+    /**
+     * Reports the catalog's sizes, registers the MBean and starts the
+     * periodic log line. Does nothing when metrics are off.
+     * @param songs the catalog to report on
+     */
+    public void start( SongCatalog songs )
+    {
+        if( !ENABLED )
+        {
+            return;
+        }
+        catalog = songs;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this,
+                new ObjectName( "songdb:type=SongMetrics" ));
+        }
+        catch( JMException exception )
+        {
+            System.out.println( "Metrics Error: " + exception );
+        }
+        if( LOG_SECONDS > 0 )
+        {
+            ScheduledExecutorService logger =
+                Executors.newSingleThreadScheduledExecutor( runnable ->
+            {
+                Thread thread = new Thread( runnable, "song-metrics" );
+                thread.setDaemon( true );
+                return thread;
+            });
+            logger.scheduleAtFixedRate( () -> System.out.println( this ),
+                LOG_SECONDS, LOG_SECONDS, TimeUnit.SECONDS );
+        }
+    }
+
+    /**
+     * Reports a bounded mode cache's counts along with the catalog's
+     * @param songCache the cache
+     */
+    public void watch( SongRecordCache songCache )
+    {
+        cache = songCache;
+    }
+
+    /**
+     * Counts a finished load
+     * @param stats numbers from the load
+     */
+    public void recordLoad( LoadStats stats )
+    {
+        if( !ENABLED )
+        {
+            return;
+        }
+        load.record( stats.getNanos() );
+        lastLoadNanos = stats.getNanos();
+        rowsParsed.add( stats.getRows() );
+        malformedRows.add( stats.getMalformed() );
+    }
+
+    /**
+     * Counts a finished save
+     * @param nanos how long it took
+     * @param bytes size of the file written
+     */
+    public void recordSave( long nanos, long bytes )
+    {
+        if( !ENABLED )
+        {
+            return;
+        }
+        save.record( nanos );
+        savedBytes.add( bytes );
+    }
+
+    /**
+     * Counts a save that failed
+     */
+    public void saveFailed()
+    {
+        if( ENABLED )
+        {
+            saveFailures.increment();
+        }
+    }
+
+    /**
+     * Counts a journal write that failed
+     */
+    public void journalFailed()
+    {
+        if( ENABLED )
+        {
+            journalFailures.increment();
+        }
+    }
+
+    /**
+     * @return times how long showing the selected song takes
+     */
+    public Timer selectionTimer()
+    {
+        return selection;
+    }
+
+    /**
+     * @return times the accept handler
+     */
+    public Timer acceptTimer()
+    {
+        return accept;
+    }
+
+    public long getLoadCount()
+    {
+        return load.count();
+    }
+
+    public double getLastLoadMillis()
+    {
+        return lastLoadNanos / 1e6;
+    }
+
+    public long getRowsParsed()
+    {
+        return rowsParsed.sum();
+    }
+
+    public long getMalformedRows()
+    {
+        return malformedRows.sum();
+    }
+
+    public long getSaveCount()
+    {
+        return save.count();
+    }
+
+    public long getSaveFailures()
+    {
+        return saveFailures.sum();
+    }
+
+    public long getJournalFailures()
+    {
+        return journalFailures.sum();
+    }
+
+    public double getMeanSaveMillis()
+    {
+        return save.meanNanos() / 1e6;
+    }
+
+    public double getMaxSaveMillis()
+    {
+        return save.maxNanos() / 1e6;
+    }
+
+    public long getSavedBytes()
+    {
+        return savedBytes.sum();
+    }
+
+    public int getSongCount()
+    {
+        SongCatalog songs = catalog;
+        return songs == null ? 0 : songs.getSongs().size();
+    }
+
+    public long getCatalogVersion()
+    {
+        SongCatalog songs = catalog;
+        return songs == null ? 0 : songs.getSongs().current().getVersion();
+    }
+
+    public int getPinnedVersions()
+    {
+        SongCatalog songs = catalog;
+        return songs == null ? 0 : songs.getSongs().getPinnedCount();
+    }
+
+    public int getIndexSize()
+    {
+        SongCatalog songs = catalog;
+        return songs == null ? 0 : songs.getIndex().size();
+    }
+
+    public int getSearchIndexSize()
+    {
+        SongCatalog songs = catalog;
+        return songs == null ? 0 : songs.getSearchIndex().size();
+    }
+
+    public long getCacheHits()
+    {
+        SongRecordCache songs = cache;
+        return songs == null ? 0 : songs.getHits();
+    }
+
+    public long getCacheMisses()
+    {
+        SongRecordCache songs = cache;
+        return songs == null ? 0 : songs.getMisses();
+    }
+
+    public long getCacheEvictions()
+    {
+        SongRecordCache songs = cache;
+        return songs == null ? 0 : songs.getEvictions();
+    }
+
+    public long getCacheBytes()
+    {
+        SongRecordCache songs = cache;
+        return songs == null ? 0 : songs.getBytes();
+    }
+
+    public long getSelectionLookups()
+    {
+        return selection.count();
+    }
+
+    public double getMeanSelectionMicros()
+    {
+        return selection.meanNanos() / 1e3;
+    }
+
+    public double getMaxSelectionMicros()
+    {
+        return selection.maxNanos() / 1e3;
+    }
+
+    public long getAccepts()
+    {
+        return accept.count();
+    }
+
+    public double getMeanAcceptMicros()
+    {
+        return accept.meanNanos() / 1e3;
+    }
+
+    public double getMaxAcceptMicros()
+    {
+        return accept.maxNanos() / 1e3;
+    }
+
+    /**
+     * The log line: every metric on one line
+     */
+    public String toString()
+    {
+        return String.format( "Metrics: %d loads (last %.1f ms), %,d rows, "
+            + "%,d malformed; %d saves (mean %.1f ms, max %.1f ms, %,d bytes, "
+            + "%d failed, %d journal writes failed); %,d songs, version %,d (%d pinned), index %,d, "
+            + "search index %,d; cache %,d hits, %,d misses, %,d evictions, "
+            + "%,d bytes; %d selections (mean %.1f us, max %.1f us); "
+            + "%d accepts (mean %.1f us, max %.1f us)", getLoadCount(),
+            getLastLoadMillis(), getRowsParsed(), getMalformedRows(),
+            getSaveCount(), getMeanSaveMillis(), getMaxSaveMillis(),
+            getSavedBytes(), getSaveFailures(), getJournalFailures(),
+            getSongCount(),
+            getCatalogVersion(), getPinnedVersions(), getIndexSize(),
+            getSearchIndexSize(), getCacheHits(), getCacheMisses(),
+            getCacheEvictions(), getCacheBytes(), getSelectionLookups(),
+            getMeanSelectionMicros(), getMaxSelectionMicros(), getAccepts(),
+            getMeanAcceptMicros(), getMaxAcceptMicros() );
+    }
+
+    /**
+     * Counts how many times something happened and how long it took
+     */
+    public static class Timer
+    {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos =
+            new LongAccumulator( Math::max, 0 );
+
+        /**
+         * @return the time to pass to stop(), or 0 if metrics are off
+         */
+        public long start()
+        {
+            return ENABLED ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Counts one timing that began at start()
+         * @param startTime what start() returned
+         */
+        public void stop( long startTime )
+        {
+            if( ENABLED )
+            {
+                record( System.nanoTime() - startTime );
+            }
+        }
+
+        void record( long nanos )
+        {
+            count.increment();
+            totalNanos.add( nanos );
+            maxNanos.accumulate( nanos );
+        }
+
+        /**
+         * @return number of timings
+         */
+        public long count()
+        {
+            return count.sum();
+        }
+
+        /**
+         * @return average timing in nanoseconds, 0 if there are none
+         */
+        public double meanNanos()
+        {
+            long timings = count.sum();
+            return timings == 0 ? 0 : (double) totalNanos.sum() / timings;
+        }
+
+        /**
+         * @return longest timing in nanoseconds
+         */
+        public long maxNanos()
+        {
+            return maxNanos.get();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * This interface is what SongMetrics shows through JMX, for jconsole or
+ * any other JMX client. Times are in milliseconds, or microseconds for
+ * the per-click timers.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+public interface SongMetricsMBean
+{
+    /**
+     * @return number of database files loaded
+     */
+    long getLoadCount();
+
+    /**
+     * @return how long the last load took
+     */
+    double getLastLoadMillis();
+
+    /**
+     * @return rows parsed into songs by every load
+     */
+    long getRowsParsed();
+
+    /**
+     * @return rows skipped as malformed by every load
+     */
+    long getMalformedRows();
+
+    /**
+     * @return number of snapshots saved
+     */
+    long getSaveCount();
+
+    /**
+     * @return number of saves that failed
+     */
+    long getSaveFailures();
+
+    /**
+     * @return number of journal writes that failed
+     */
+    long getJournalFailures();
+
+    /**
+     * @return how long a save takes on average
+     */
+    double getMeanSaveMillis();
+
+    /**
+     * @return longest a save has taken
+     */
+    double getMaxSaveMillis();
+
+    /**
+     * @return bytes written by every save
+     */
+    long getSavedBytes();
+
+    /**
+     * @return number of songs in the catalog
+     */
+    int getSongCount();
+
+    /**
+     * @return number of changes made to the songs, as SongStore versions
+     * them
+     */
+    long getCatalogVersion();
+
+    /**
+     * @return catalog versions pinned by readers and not yet closed
+     */
+    int getPinnedVersions();
+
+    /**
+     * @return distinct titles, artists and albums in the song index
+     */
+    int getIndexSize();
+
+    /**
+     * @return distinct words in the search index
+     */
+    int getSearchIndexSize();
+
+    /**
+     * @return songs found in the bounded mode's cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return songs the bounded mode had to read from the file
+     */
+    long getCacheMisses();
+
+    /**
+     * @return songs dropped from the bounded mode's cache
+     */
+    long getCacheEvictions();
+
+    /**
+     * @return estimated heap bytes the bounded mode's cached songs take
+     */
+    long getCacheBytes();
+
+    /**
+     * @return number of songs looked up for the selected row
+     */
+    long getSelectionLookups();
+
+    /**
+     * @return how long showing the selected song takes on average
+     */
+    double getMeanSelectionMicros();
+
+    /**
+     * @return longest showing the selected song has taken
+     */
+    double getMaxSelectionMicros();
+
+    /**
+     * @return number of times accept was clicked
+     */
+    long getAccepts();
+
+    /**
+     * @return how long the accept handler takes on average
+     */
+    double getMeanAcceptMicros();
+
+    /**
+     * @return longest the accept handler has taken
+     */
+    double getMaxAcceptMicros();
+}
@@ -0,0 +1,70 @@
+
+/**
+ * This interface is a stream of songs read one at a time, so a song
+ * database file can be worked through without holding all of it in
+ * memory. SongFileParser reads comma separated files, compressed or
+ * not, and BinarySongFormat.Reader reads binary ones; open() picks
+ * between them.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+
+public interface SongReader extends Closeable
+{
+    /**
+     * @return the next song, or null once there are no more
+     * @throws IOException if the songs can't be read
+     */
+    SongDetails next() throws IOException;
+
+    /**
+     * @return number of rows skipped because they weren't songs
+     */
+    default long malformed()
+    {
+        return 0;
+    }
+
+    /**
+     * Opens a song database file in whatever format it is
+     * @param fp file location
+     * @return a reader over its songs, in file order
+     * @throws IOException if the file can't be opened
+     */
+    static SongReader open( String fp ) throws IOException
+    {
+        FileFormat format = FileFormat.detect( fp );
+        if( format == FileFormat.BINARY )
+        {
+            return new BinarySongFormat.Reader( fp, false );
+        }
+        return new SongFileParser( CompressedSongFormat.openText( fp,
+            format ));
+    }
+
+    /**
+     * Reads songs that are already in memory
+     * @param songs the songs, in the order they should be read
+     * @return a reader over them
+     */
+    static SongReader of( Iterable<SongDetails> songs )
+    {
+        Iterator<SongDetails> next = songs.iterator();
+        return new SongReader()
+        {
+            public SongDetails next()
+            {
+                return next.hasNext() ? next.next() : null;
+            }
+
+            public void close()
+            {
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * This interface is the read side of a song: the six fields every song
+ * has, as SongDetails holds them. Code that only reads songs can take a
+ * SongRecord, so it works the same on a SongDetails and on a flyweight
+ * such as OffHeapSongStore.Cursor that reads the fields from wherever
+ * the song is kept.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+public interface SongRecord
+{
+    /**
+     * @return song title
+     */
+    String getSongTitle();
+
+    /**
+     * @return item code
+     */
+    String getItemCode();
+
+    /**
+     * @return description
+     */
+    String getDescription();
+
+    /**
+     * @return artist
+     */
+    String getArtist();
+
+    /**
+     * @return album
+     */
+    String getAlbum();
+
+    /**
+     * @return price with two decimal places, as it is written to the file
+     */
+    String getPriceString();
+
+    /**
+     * @return price in cents
+     */
+    long getPriceCents();
+}
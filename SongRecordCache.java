@@ -0,0 +1,176 @@
+/**
+ * This class keeps the songs read most recently from the database file,
+ * by item code, within a budget of heap bytes. When a new song would go
+ * over the budget, the songs that were used longest ago are dropped
+ * until it fits. The budget is -Dsongdb.cache.mb, 64 MB if it isn't set.
+ *
+ * A song's size is estimated from the length of its text and what the
+ * SongDetails and its Strings cost on top of that, so the budget is kept
+ * to within the accuracy of the estimate rather than exactly.
+ *
+ * Hits, misses and evictions are counted for SongMetrics. Any thread can
+ * use the cache.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class SongRecordCache
+{
+    /**
+     * Budget from -Dsongdb.cache.mb, in bytes
+     */
+    public static final long BUDGET_BYTES = Long.getLong( "songdb.cache.mb",
+        64 ) * 1024 * 1024;
+
+    // a SongDetails, its five Strings and their arrays, and the map entry
+    // that holds it, without the text itself
+    private static final int SONG_OVERHEAD = 280;
+
+    private final long budget;
+    // least recently used first
+    private final LinkedHashMap<String, SongDetails> songs =
+        new LinkedHashMap<String, SongDetails>( 1024, 0.75f, true );
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor
+     * @param budgetBytes most heap bytes the cached songs may take
+     */
+    public SongRecordCache( long budgetBytes )
+    {
+        budget = budgetBytes;
+    }
+
+    /**
+     * Looks a song up and counts a hit or a miss
+     * @param itemCode item code of a song
+     * @return the song, or null if it isn't cached
+     */
+    public synchronized SongDetails get( String itemCode )
+    {
+        SongDetails song = songs.get( itemCode );
+        if( song == null )
+        {
+            misses.increment();
+        }
+        else
+        {
+            hits.increment();
+        }
+        return song;
+    }
+
+    /**
+     * Caches a song as the most recently used, dropping the least
+     * recently used songs until it fits. A song bigger than the whole
+     * budget isn't cached.
+     * @param song the song read from the file
+     */
+    public synchronized void put( SongDetails song )
+    {
+        long size = sizeOf( song );
+        if( size > budget )
+        {
+            return;
+        }
+        SongDetails old = songs.put( song.getItemCode(), song );
+        bytes += size - ( old == null ? 0 : sizeOf( old ));
+        Iterator<SongDetails> eldest = songs.values().iterator();
+        while( bytes > budget )
+        {
+            bytes -= sizeOf( eldest.next() );
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Drops every song, keeping the counts
+     */
+    public synchronized void clear()
+    {
+        songs.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @param song a song
+     * @return estimated heap bytes the song takes in the cache
+     */
+    public static long sizeOf( SongDetails song )
+    {
+        return SONG_OVERHEAD + song.getSongTitle().length()
+            + song.getItemCode().length() + song.getDescription().length()
+            + song.getArtist().length() + song.getAlbum().length();
+    }
+
+    /**
+     * @return number of songs cached
+     */
+    public synchronized int size()
+    {
+        return songs.size();
+    }
+
+    /**
+     * @return estimated heap bytes the cached songs take
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return most heap bytes the cached songs may take
+     */
+    public long getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * @return lookups that found their song cached
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return lookups that had to read their song from the file
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return songs dropped to keep within the budget
+     */
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Prints the counts
+     */
+    public String toString()
+    {
+        long lookups = getHits() + getMisses();
+        return String.format( "Song cache: %,d songs, %.1f of %.1f MB; "
+            + "%,d hits, %,d misses (%.1f%% hits), %,d evictions", size(),
+            getBytes() / 1048576.0, budget / 1048576.0, getHits(),
+            getMisses(), lookups == 0 ? 0 : 100.0 * getHits() / lookups,
+            getEvictions() );
+    }
+}
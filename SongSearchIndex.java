@@ -0,0 +1,308 @@
+
+/**
+ * This class is an in-memory inverted index over the words of every
+ * song's title and description, used by the search box to filter the
+ * song list as the user types.
+ *
+ * Each song gets a small document number, and each word keeps a sorted
+ * array of the numbers of the songs it appears in. A query is split into
+ * words, each word matches every indexed word it is a prefix of, and a
+ * song has to match all the query's words. Matches are gathered in a
+ * BitSet, so a query costs one pass over the posting arrays it touches.
+ *
+ * A removed song's number isn't reused straight away, since numbers
+ * follow the order songs were added in. Once more than half of them
+ * belong to removed songs, the songs left are numbered again from 0 in
+ * the same order, so the numbers and the BitSets stay as wide as the
+ * catalog however many songs come and go.
+ *
+ * Like SongIndex, it has to be told about every song that is added,
+ * replaced or removed, from one thread at a time. size() can be read
+ * from any thread.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+public class SongSearchIndex
+{
+    // removed songs below which numbers aren't worth reclaiming
+    private static final int MIN_RENUMBER = 1024;
+
+    // word -> numbers of the songs that have it
+    private final TreeMap<String, Postings> postings =
+        new TreeMap<String, Postings>();
+    // item code -> document number
+    private final HashMap<String, Integer> documents =
+        new HashMap<String, Integer>();
+    // document number -> item code, null once the song is removed
+    private ArrayList<String> codes = new ArrayList<String>();
+    // null entries in codes
+    private int removed;
+    // postings.size(), for reading from other threads
+    private volatile int wordCount;
+
+    /**
+     * Indexes every song in a freshly loaded catalog
+     * @param songs the songs to index
+     */
+    public void addAll( Iterable<SongDetails> songs )
+    {
+        for( SongDetails song : songs )
+        {
+            put( null, song );
+        }
+    }
+
+    /**
+     * Updates the index after a song was added or replaced
+     * @param old the song the new one replaced, or null if it is new
+     * @param song the song as it now is
+     */
+    public void put( SongDetails old, SongDetails song )
+    {
+        Integer doc = documents.get( song.getItemCode() );
+        if( doc == null )
+        {
+            doc = codes.size();
+            codes.add( song.getItemCode() );
+            documents.put( song.getItemCode(), doc );
+        }
+        else if( old != null )
+        {
+            unlink( old, doc );
+        }
+        for( String word : words( song ))
+        {
+            Postings list = postings.get( word );
+            if( list == null )
+            {
+                list = new Postings();
+                postings.put( word, list );
+            }
+            list.add( doc );
+        }
+        wordCount = postings.size();
+    }
+
+    /**
+     * Updates the index after a song was removed
+     * @param song the removed song, ignored if null
+     */
+    public void remove( SongDetails song )
+    {
+        if( song == null )
+        {
+            return;
+        }
+        Integer doc = documents.remove( song.getItemCode() );
+        if( doc != null )
+        {
+            unlink( song, doc );
+            codes.set( doc, null );
+            removed++;
+            if( removed > MIN_RENUMBER && removed * 2 > codes.size() )
+            {
+                renumber();
+            }
+        }
+        wordCount = postings.size();
+    }
+
+    /**
+     * Numbers the songs left from 0, in the order they have now, which
+     * keeps every postings array sorted
+     */
+    private void renumber()
+    {
+        int[] renumbered = new int[ codes.size() ];
+        ArrayList<String> kept = new ArrayList<String>( codes.size()
+            - removed );
+        for( int doc = 0; doc < codes.size(); doc++ )
+        {
+            String code = codes.get( doc );
+            if( code != null )
+            {
+                renumbered[ doc ] = kept.size();
+                documents.put( code, kept.size() );
+                kept.add( code );
+            }
+        }
+        for( Postings list : postings.values() )
+        {
+            for( int i = 0; i < list.size; i++ )
+            {
+                list.docs[ i ] = renumbered[ list.docs[ i ] ];
+            }
+        }
+        codes = kept;
+        removed = 0;
+    }
+
+    private void unlink( SongDetails song, int doc )
+    {
+        for( String word : words( song ))
+        {
+            Postings list = postings.get( word );
+            if( list != null && list.remove( doc ) && list.size == 0 )
+            {
+                postings.remove( word );
+            }
+        }
+    }
+
+    /**
+     * Finds the songs whose title or description has a word starting
+     * with each word of the query.
+     * @param query words typed in the search box
+     * @param limit most item codes to return
+     * @return item codes of matching songs, oldest songs first, or an
+     * empty list if the query has no words
+     */
+    public List<String> search( String query, int limit )
+    {
+        List<String> found = new ArrayList<String>();
+        BitSet matches = null;
+        for( String term : tokenize( query ))
+        {
+            BitSet termMatches = new BitSet( codes.size() );
+            String end = term + Character.MAX_VALUE;
+            for( Postings list : postings.subMap( term, end ).values() )
+            {
+                list.addTo( termMatches );
+            }
+            if( matches == null )
+            {
+                matches = termMatches;
+            }
+            else
+            {
+                matches.and( termMatches );
+            }
+            if( matches.isEmpty() )
+            {
+                break;
+            }
+        }
+        if( matches == null )
+        {
+            return found;
+        }
+        for( int doc = matches.nextSetBit( 0 );
+            doc >= 0 && found.size() < limit;
+            doc = matches.nextSetBit( doc + 1 ))
+        {
+            found.add( codes.get( doc ));
+        }
+        return found;
+    }
+
+    /**
+     * @return number of distinct words indexed
+     */
+    public int size()
+    {
+        return wordCount;
+    }
+
+    private static Set<String> words( SongDetails song )
+    {
+        Set<String> words = new LinkedHashSet<String>(
+            tokenize( song.getSongTitle() ));
+        words.addAll( tokenize( song.getDescription() ));
+        return words;
+    }
+
+    /**
+     * Splits text into lower case words made of letters and digits,
+     * lower cased the same way whatever the default locale is
+     * @param text text to split, may be null
+     * @return the words, in order
+     */
+    static List<String> tokenize( String text )
+    {
+        List<String> words = new ArrayList<String>();
+        if( text == null )
+        {
+            return words;
+        }
+        int start = -1;
+        for( int i = 0; i <= text.length(); i++ )
+        {
+            boolean inWord = i < text.length()
+                && Character.isLetterOrDigit( text.charAt( i ));
+            if( inWord && start < 0 )
+            {
+                start = i;
+            }
+            else if( !inWord && start >= 0 )
+            {
+                words.add( text.substring( start, i ).toLowerCase(
+                    Locale.ROOT ));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * A sorted, growable array of document numbers
+     */
+    private static class Postings
+    {
+        int[] docs = new int[ 2 ];
+        int size;
+
+        void add( int doc )
+        {
+            // new songs get the highest number, so this is usually an append
+            int at = size > 0 && docs[ size - 1 ] < doc ? size
+                : Arrays.binarySearch( docs, 0, size, doc );
+            if( at >= 0 && at < size )
+            {
+                return; // already there
+            }
+            if( at < 0 )
+            {
+                at = -at - 1;
+            }
+            if( size == docs.length )
+            {
+                docs = Arrays.copyOf( docs, size * 2 );
+            }
+            System.arraycopy( docs, at, docs, at + 1, size - at );
+            docs[ at ] = doc;
+            size++;
+        }
+
+        boolean remove( int doc )
+        {
+            int at = Arrays.binarySearch( docs, 0, size, doc );
+            if( at < 0 )
+            {
+                return false;
+            }
+            System.arraycopy( docs, at + 1, docs, at, size - at - 1 );
+            size--;
+            return true;
+        }
+
+        void addTo( BitSet bits )
+        {
+            for( int i = 0; i < size; i++ )
+            {
+                bits.set( docs[ i ] );
+            }
+        }
+    }
+}
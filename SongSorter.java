@@ -0,0 +1,251 @@
+
+/**
+ * This class sorts a stream of songs by item code without holding more
+ * than a fixed number of them in memory, keeping only the last song read
+ * for each item code, the way loading a file into a map would.
+ *
+ * Songs are read in runs of -Dsongdb.sort.run songs (250000 if not
+ * given). Each run is sorted, has its repeated item codes dropped, and is
+ * written to a temporary file in the comma separated format. The runs are
+ * then merged as they are read back, a later run's song winning over an
+ * earlier run's. Input that fits in one run never touches the disk.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+public class SongSorter
+{
+    private static final int RUN_SONGS =
+        Integer.getInteger( "songdb.sort.run", 250000 );
+
+    private static final Comparator<SongDetails> BY_CODE =
+        Comparator.comparing( SongDetails::getItemCode );
+
+    /**
+     * Sorts songs by item code, keeping the last song for each item code
+     * @param in songs to sort, closed once they are all read
+     * @param folder folder for the temporary run files
+     * @return a reader over the sorted songs, which deletes the run files
+     * when it is closed
+     * @throws IOException if the songs can't be read or a run can't be
+     * written
+     */
+    public static SongReader sort( SongReader in, Path folder )
+        throws IOException
+    {
+        return sort( in, folder, RUN_SONGS );
+    }
+
+    /**
+     * Sorts songs by item code like sort( in, folder ), with a given run
+     * size
+     * @param in songs to sort, closed once they are all read
+     * @param folder folder for the temporary run files
+     * @param runSongs most songs held in memory at once
+     * @return a reader over the sorted songs
+     * @throws IOException if the songs can't be read or a run can't be
+     * written
+     */
+    static SongReader sort( SongReader in, Path folder, int runSongs )
+        throws IOException
+    {
+        List<Path> runs = new ArrayList<Path>();
+        try( SongReader input = in )
+        {
+            List<SongDetails> run = new ArrayList<SongDetails>();
+            if( !readRun( input, runSongs, run ))
+            {
+                // it all fit in memory
+                return withMalformed( SongReader.of( run ),
+                    input.malformed() );
+            }
+            boolean more = true;
+            while( !run.isEmpty() )
+            {
+                Path file = Files.createTempFile( folder, "songs", ".run" );
+                runs.add( file );
+                try( OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream( file ), 1 << 16 ) )
+                {
+                    SongFileWriter.writeText( out, run );
+                }
+                run.clear();
+                if( more )
+                {
+                    more = readRun( input, runSongs, run );
+                }
+            }
+            return withMalformed( new RunMerger( runs ),
+                input.malformed() );
+        }
+        catch( IOException | RuntimeException exception )
+        {
+            for( Path file : runs )
+            {
+                Files.deleteIfExists( file );
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Passes the input's count of malformed rows on to the sorted songs
+     */
+    private static SongReader withMalformed( SongReader sorted,
+        long malformed )
+    {
+        return new SongReader()
+        {
+            public SongDetails next() throws IOException
+            {
+                return sorted.next();
+            }
+
+            public long malformed()
+            {
+                return malformed;
+            }
+
+            public void close() throws IOException
+            {
+                sorted.close();
+            }
+        };
+    }
+
+    /**
+     * Reads up to runSongs songs into run, sorted by item code with only
+     * the last song for each item code kept
+     * @return true if it stopped at runSongs, so there may be more
+     */
+    private static boolean readRun( SongReader in, int runSongs,
+        List<SongDetails> run ) throws IOException
+    {
+        int read = 0;
+        SongDetails song = null;
+        while( read < runSongs && ( song = in.next() ) != null )
+        {
+            run.add( song );
+            read++;
+        }
+        // the sort is stable, so the last of equal item codes stays last
+        run.sort( BY_CODE );
+        int kept = 0;
+        for( int i = 0; i < run.size(); i++ )
+        {
+            if( i + 1 == run.size() || !run.get( i ).getItemCode().equals(
+                run.get( i + 1 ).getItemCode() ))
+            {
+                run.set( kept++, run.get( i ));
+            }
+        }
+        run.subList( kept, run.size() ).clear();
+        return read == runSongs;
+    }
+
+    /**
+     * Merges sorted run files, the song from the latest run winning when
+     * more than one has the same item code
+     */
+    private static class RunMerger implements SongReader
+    {
+        private final List<Path> files;
+        private final List<SongFileParser> runs =
+            new ArrayList<SongFileParser>();
+        // the next song of each run that has one left, with its run number
+        private final PriorityQueue<Head> heads = new PriorityQueue<Head>();
+
+        RunMerger( List<Path> runFiles ) throws IOException
+        {
+            files = runFiles;
+            try
+            {
+                for( int i = 0; i < files.size(); i++ )
+                {
+                    runs.add( new SongFileParser( new FileInputStream(
+                        files.get( i ).toFile() )) );
+                    advance( i );
+                }
+            }
+            catch( IOException exception )
+            {
+                close();
+                throw exception;
+            }
+        }
+
+        private void advance( int run ) throws IOException
+        {
+            SongDetails song = runs.get( run ).next();
+            if( song != null )
+            {
+                heads.add( new Head( song, run ));
+            }
+        }
+
+        public SongDetails next() throws IOException
+        {
+            Head first = heads.poll();
+            if( first == null )
+            {
+                return null;
+            }
+            SongDetails song = first.song;
+            int run = first.run;
+            advance( first.run );
+            while( !heads.isEmpty() && heads.peek().song.getItemCode()
+                .equals( song.getItemCode() ))
+            {
+                Head same = heads.poll();
+                if( same.run > run )
+                {
+                    song = same.song;
+                    run = same.run;
+                }
+                advance( same.run );
+            }
+            return song;
+        }
+
+        public void close() throws IOException
+        {
+            for( SongFileParser parser : runs )
+            {
+                parser.close();
+            }
+            for( Path file : files )
+            {
+                Files.deleteIfExists( file );
+            }
+        }
+    }
+
+    private static class Head implements Comparable<Head>
+    {
+        final SongDetails song;
+        final int run;
+
+        Head( SongDetails nextSong, int runNumber )
+        {
+            song = nextSong;
+            run = runNumber;
+        }
+
+        public int compareTo( Head other )
+        {
+            return song.getItemCode().compareTo( other.song.getItemCode() );
+        }
+    }
+}
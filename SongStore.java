@@ -0,0 +1,329 @@
+/**
+ * This class holds the song catalog, keyed and ordered by item code, so
+ * that any thread can read it while another changes it. The songs live
+ * in a PersistentSongMap: every change makes a new version of the map in
+ * O(log n), sharing all but the changed path with the one before, and
+ * publishes it in one volatile write. Gets and walks read whichever
+ * version is current when they start, so they never block and never see
+ * a half made change, and a walk sees the catalog as it was at one
+ * moment however long it takes.
+ *
+ * That makes snapshot() O(1): it hands back the current version as a
+ * list, with nothing copied and nothing locked, for writers like
+ * writeOut() and for exports and analytics passes. putAll() counts as
+ * one change, so a snapshot sees all of a batch or none of it. Changes
+ * take a lock so they are applied one after another.
+ *
+ * A reader that wants to hold a version for a while, and have it show
+ * in the metrics while it does, pins it with pin() and unpins it with
+ * close(). A version nothing refers to any more is reclaimed by the
+ * garbage collector, with the nodes no later version shares.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class SongStore
+{
+    private volatile PersistentSongMap songs = PersistentSongMap.EMPTY;
+    private final Lock changing = new ReentrantLock();
+    // versions pinned and not yet closed
+    private final AtomicInteger pinned = new AtomicInteger();
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return the song, or null if there is none with that item code
+     */
+    public SongDetails get( String itemCode )
+    {
+        return songs.get( itemCode );
+    }
+
+    /**
+     *
+     * @param itemCode item code of a song
+     * @return true if there is a song with that item code
+     */
+    public boolean containsKey( String itemCode )
+    {
+        return songs.containsKey( itemCode );
+    }
+
+    /**
+     *
+     * @return number of songs
+     */
+    public int size()
+    {
+        return songs.size();
+    }
+
+    /**
+     * Adds a song, or replaces the song with the same item code
+     * @param song the song as it now is
+     * @return the song it replaced, or null if it is new
+     */
+    public SongDetails put( SongDetails song )
+    {
+        changing.lock();
+        try
+        {
+            PersistentSongMap.Edit edit = songs.edit();
+            SongDetails old = edit.put( song );
+            songs = edit.commit();
+            return old;
+        }
+        finally
+        {
+            changing.unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces a batch of songs as one change
+     * @param batch songs in order, a later one replacing an earlier one
+     * with the same item code
+     * @return for each song in the batch, the song it replaced, or null
+     * if it was new
+     */
+    public List<SongDetails> putAll( List<SongDetails> batch )
+    {
+        List<SongDetails> replaced = new ArrayList<SongDetails>(
+            batch.size() );
+        changing.lock();
+        try
+        {
+            PersistentSongMap.Edit edit = songs.edit();
+            for( SongDetails song : batch )
+            {
+                replaced.add( edit.put( song ));
+            }
+            songs = edit.commit();
+        }
+        finally
+        {
+            changing.unlock();
+        }
+        return replaced;
+    }
+
+    /**
+     * Adds or replaces a batch of songs and removes another as one change
+     * @param puts songs to add or replace, each item code once
+     * @param deletes item codes of the songs to remove, none of them among
+     * the puts
+     * @return for each put, the song it replaced or null if it was new,
+     * then for each delete, the removed song or null if there was none
+     */
+    public List<SongDetails> applyAll( List<SongDetails> puts,
+        List<String> deletes )
+    {
+        List<SongDetails> old = new ArrayList<SongDetails>(
+            puts.size() + deletes.size() );
+        changing.lock();
+        try
+        {
+            PersistentSongMap.Edit edit = songs.edit();
+            for( SongDetails song : puts )
+            {
+                old.add( edit.put( song ));
+            }
+            for( String itemCode : deletes )
+            {
+                old.add( edit.remove( itemCode ));
+            }
+            songs = edit.commit();
+        }
+        finally
+        {
+            changing.unlock();
+        }
+        return old;
+    }
+
+    /**
+     * Removes a song
+     * @param itemCode item code of the song to remove
+     * @return the removed song, or null if there was none
+     */
+    public SongDetails remove( String itemCode )
+    {
+        changing.lock();
+        try
+        {
+            SongDetails old = songs.get( itemCode );
+            if( old != null )
+            {
+                songs = songs.remove( itemCode );
+            }
+            return old;
+        }
+        finally
+        {
+            changing.unlock();
+        }
+    }
+
+    /**
+     * The songs as they are at this moment, which later changes won't
+     * touch. Nothing is copied.
+     * @return every song, in item code order
+     */
+    public List<SongDetails> snapshot()
+    {
+        return songs.values();
+    }
+
+    /**
+     * @return the current version of the songs
+     */
+    public PersistentSongMap current()
+    {
+        return songs;
+    }
+
+    /**
+     * Pins the current version for a reader to hold until it closes it
+     * @return the pinned version
+     */
+    public Version pin()
+    {
+        pinned.incrementAndGet();
+        return new Version( songs );
+    }
+
+    /**
+     * @return number of versions pinned and not yet closed
+     */
+    public int getPinnedCount()
+    {
+        return pinned.get();
+    }
+
+    /**
+     * A read only view of the songs, keyed by item code, that always reads
+     * the current version: each get, and each walk from its start, sees
+     * the songs as they are at that moment.
+     * @return the view
+     */
+    public Map<String, SongDetails> view()
+    {
+        return new AbstractMap<String, SongDetails>()
+        {
+            public SongDetails get( Object itemCode )
+            {
+                return itemCode instanceof String
+                    ? songs.get( (String) itemCode ) : null;
+            }
+
+            public boolean containsKey( Object itemCode )
+            {
+                return get( itemCode ) != null;
+            }
+
+            public int size()
+            {
+                return songs.size();
+            }
+
+            public Set<Map.Entry<String, SongDetails>> entrySet()
+            {
+                return new AbstractSet<Map.Entry<String, SongDetails>>()
+                {
+                    public Iterator<Map.Entry<String, SongDetails>> iterator()
+                    {
+                        Iterator<SongDetails> walk = songs.iterator();
+                        return new Iterator<Map.Entry<String, SongDetails>>()
+                        {
+                            public boolean hasNext()
+                            {
+                                return walk.hasNext();
+                            }
+
+                            public Map.Entry<String, SongDetails> next()
+                            {
+                                SongDetails song = walk.next();
+                                return new SimpleImmutableEntry<String,
+                                    SongDetails>( song.getItemCode(), song );
+                            }
+                        };
+                    }
+
+                    public int size()
+                    {
+                        return songs.size();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Every song, in item code order, without taking a copy
+     * @return the songs, as the current version has them
+     */
+    public Collection<SongDetails> values()
+    {
+        return songs.values();
+    }
+
+    /**
+     * One version of the songs, held by a reader until it closes it
+     */
+    public class Version implements AutoCloseable
+    {
+        private PersistentSongMap held;
+
+        private Version( PersistentSongMap version )
+        {
+            held = version;
+        }
+
+        /**
+         * @return the songs in this version
+         * @throws IllegalStateException if it has been closed
+         */
+        public synchronized PersistentSongMap getSongs()
+        {
+            if( held == null )
+            {
+                throw new IllegalStateException( "version closed" );
+            }
+            return held;
+        }
+
+        /**
+         * @return the version number, as PersistentSongMap counts them
+         */
+        public long getNumber()
+        {
+            return getSongs().getVersion();
+        }
+
+        /**
+         * Unpins the version. Once nothing else refers to it, it can be
+         * reclaimed. Closing it again does nothing.
+         */
+        public synchronized void close()
+        {
+            if( held != null )
+            {
+                held = null;
+                pinned.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+
+/**
+ * This class runs reader, writer and snapshot threads against a SongStore
+ * at the same time and prints the throughput of each, next to the same
+ * run against a TreeMap behind one lock, the way the catalog would have
+ * to be shared without SongStore.
+ *
+ * SongStore's snapshots are O(1), so the snapshot thread spends its
+ * time checking them rather than taking them; the locked map has to
+ * copy every song for each one, holding off readers and writers while
+ * it does.
+ *
+ * Writers put songs in pairs, as one putAll(), with both songs of a pair
+ * given the same description. The snapshot thread checks every snapshot
+ * it takes for a pair whose descriptions differ, which would mean it saw
+ * half of a change, and counts them as torn.
+ *
+ * Usage: java SongStoreStress [seconds] [readers] [writers] [songs]
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class SongStoreStress
+{
+    /**
+     * Runs the stress test on both stores
+     * @param args run length in seconds, reader and writer thread counts
+     * and the number of songs, 5, 4, 2 and 100000 if not given
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main( String[] args ) throws InterruptedException
+    {
+        int seconds = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 5;
+        int readers = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 4;
+        int writers = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 2;
+        int songs = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 100000;
+
+        System.out.printf( "%d readers, %d writers, 1 snapshot thread, "
+            + "%,d songs, %d s each, %d cores%n", readers, writers, songs,
+            seconds, Runtime.getRuntime().availableProcessors() );
+        System.out.printf( "%-12s %14s %14s %12s %8s%n", "store",
+            "reads/s", "writes/s", "snapshots/s", "torn" );
+        run( "SongStore", new StoreCatalog(), seconds, readers, writers,
+            songs );
+        run( "locked map", new LockedCatalog(), seconds, readers, writers,
+            songs );
+    }
+
+    private static void run( String name, Catalog catalog, int seconds,
+        int readers, int writers, int songs ) throws InterruptedException
+    {
+        int pairs = songs / 2;
+        String[] codes = new String[ pairs * 2 ];
+        for( int i = 0; i < codes.length; i++ )
+        {
+            codes[ i ] = String.format( "%09d", i );
+        }
+        for( int pair = 0; pair < pairs; pair++ )
+        {
+            catalog.putAll( pairOf( codes, pair, "0" ));
+        }
+
+        AtomicBoolean running = new AtomicBoolean( true );
+        LongAdder reads = new LongAdder();
+        LongAdder writes = new LongAdder();
+        LongAdder snapshots = new LongAdder();
+        LongAdder torn = new LongAdder();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for( int i = 0; i < readers; i++ )
+        {
+            threads.add( new Thread( () ->
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while( running.get() )
+                {
+                    catalog.get( codes[ random.nextInt( codes.length ) ] );
+                    reads.increment();
+                }
+            }));
+        }
+        for( int i = 0; i < writers; i++ )
+        {
+            String writer = "w" + i + "-";
+            threads.add( new Thread( () ->
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long version = 0;
+                while( running.get() )
+                {
+                    catalog.putAll( pairOf( codes, random.nextInt( pairs ),
+                        writer + version++ ));
+                    writes.add( 2 );
+                }
+            }));
+        }
+        threads.add( new Thread( () ->
+        {
+            while( running.get() )
+            {
+                Iterator<SongDetails> snapshot = catalog.snapshot()
+                    .iterator();
+                while( snapshot.hasNext() )
+                {
+                    SongDetails first = snapshot.next();
+                    if( snapshot.hasNext() && !first.getDescription().equals(
+                        snapshot.next().getDescription() ))
+                    {
+                        torn.increment();
+                    }
+                }
+                snapshots.increment();
+            }
+        }));
+
+        for( Thread thread : threads )
+        {
+            thread.start();
+        }
+        Thread.sleep( seconds * 1000L );
+        running.set( false );
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+        System.out.printf( "%-12s %,14d %,14d %12.1f %8d%n", name,
+            reads.sum() / seconds, writes.sum() / seconds,
+            snapshots.sum() / (double) seconds, torn.sum() );
+    }
+
+    private static List<SongDetails> pairOf( String[] codes, int pair,
+        String version )
+    {
+        return Arrays.asList(
+            new SongDetails( "Song", codes[ pair * 2 ], version, "Artist",
+                "Album", 129 ),
+            new SongDetails( "Song", codes[ pair * 2 + 1 ], version,
+                "Artist", "Album", 129 ));
+    }
+
+    /**
+     * The calls the stress test makes, so both stores run the same test
+     */
+    private interface Catalog
+    {
+        SongDetails get( String itemCode );
+        void putAll( List<SongDetails> batch );
+        List<SongDetails> snapshot();
+    }
+
+    private static class StoreCatalog implements Catalog
+    {
+        private final SongStore store = new SongStore();
+
+        public SongDetails get( String itemCode )
+        {
+            return store.get( itemCode );
+        }
+
+        public void putAll( List<SongDetails> batch )
+        {
+            store.putAll( batch );
+        }
+
+        public List<SongDetails> snapshot()
+        {
+            return store.snapshot();
+        }
+    }
+
+    private static class LockedCatalog implements Catalog
+    {
+        private final TreeMap<String, SongDetails> songs =
+            new TreeMap<String, SongDetails>();
+
+        public synchronized SongDetails get( String itemCode )
+        {
+            return songs.get( itemCode );
+        }
+
+        public synchronized void putAll( List<SongDetails> batch )
+        {
+            for( SongDetails song : batch )
+            {
+                songs.put( song.getItemCode(), song );
+            }
+        }
+
+        public synchronized List<SongDetails> snapshot()
+        {
+            return new ArrayList<SongDetails>( songs.values() );
+        }
+    }
+}
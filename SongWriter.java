@@ -0,0 +1,41 @@
+
+/**
+ * This interface writes songs to a song database file one at a time, so
+ * a file of any size can be written without holding it in memory. The
+ * file is only replaced once close() is called, in one step the way
+ * SongFileWriter.write() replaces it, and abort() leaves it untouched.
+ * SongFileWriter.open() makes one.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.Closeable;
+import java.io.IOException;
+
+
+public interface SongWriter extends Closeable
+{
+    /**
+     * Writes the next song
+     * @param song the song, in the order it should appear
+     * @throws IOException if the song can't be written
+     */
+    void write( SongDetails song ) throws IOException;
+
+    /**
+     * @return number of songs written so far
+     */
+    long count();
+
+    /**
+     * Finishes the file and puts it in place of the old one
+     * @throws IOException if the file can't be finished, in which case
+     * the old one is left as it was
+     */
+    void close() throws IOException;
+
+    /**
+     * Throws away what was written and leaves the old file as it was
+     */
+    void abort();
+}
@@ -0,0 +1,96 @@
+
+/**
+ * This class stores each distinct String once and gives it a small
+ * integer id, starting at 0 and counting up in the order the values are
+ * first seen. It is used to keep one copy of every artist and album name
+ * no matter how many songs share it.
+ *
+ * It is safe to use from several loader threads at once.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class StringDictionary
+{
+    private final ConcurrentHashMap<String, Integer> ids =
+        new ConcurrentHashMap<String, Integer>();
+    private volatile String[] values = new String[ 64 ];
+    private volatile int size;
+
+    /**
+     * Returns the id of a value, adding the value if it is new
+     * @param value text to look up
+     * @return the value's id
+     */
+    public int idOf( String value )
+    {
+        Integer id = ids.get( value );
+        if( id != null )
+        {
+            return id;
+        }
+        return add( value );
+    }
+
+    private synchronized int add( String value )
+    {
+        Integer id = ids.get( value );
+        if( id != null )
+        {
+            return id; // another thread added it first
+        }
+        String[] current = values;
+        if( size == current.length )
+        {
+            current = Arrays.copyOf( current, current.length * 2 );
+        }
+        current[ size ] = value;
+        values = current;
+        ids.put( value, size );
+        return size++;
+    }
+
+    /**
+     * Returns the id of a value without adding it
+     * @param value text to look up
+     * @return the value's id, or -1 if it isn't in the dictionary
+     */
+    public int lookup( String value )
+    {
+        Integer id = ids.get( value );
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the stored copy of a value, adding it if it is new
+     * @param value text to look up
+     * @return the one shared copy of the value
+     */
+    public String canonical( String value )
+    {
+        return value == null ? null : get( idOf( value ));
+    }
+
+    /**
+     *
+     * @param id an id returned by idOf()
+     * @return the value with that id
+     */
+    public String get( int id )
+    {
+        return values[ id ];
+    }
+
+    /**
+     *
+     * @return number of distinct values
+     */
+    public int size()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,108 @@
+package bench;
+
+/**
+ * This class is the JMH benchmark of the song database. Each trial loads
+ * a synthetic catalog of the size given by the rows parameter, then JMH
+ * warms up and measures each benchmark in a forked JVM. The work itself
+ * is in SongBenchmarks, through the SongWorkload interface.
+ *
+ * Run it with SongBenchmarks, or with the jar the build makes:
+ *
+ *   java -jar target/benchmarks.jar -p rows=10000 -rf json
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@Fork( 1 )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+public class CatalogBenchmark
+{
+    @Param( { "10000", "1000000", "10000000" } )
+    public int rows;
+
+    // catalogs are generated here the first time and kept for later runs
+    @Param( { "target/benchmarks" } )
+    public String folder;
+
+    private SongWorkload workload;
+    // which lookup or change comes next
+    private int next;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        workload = (SongWorkload) Class.forName( "SongBenchmarks" )
+            .getDeclaredConstructor().newInstance();
+        workload.setUp( folder, rows );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        workload.tearDown();
+    }
+
+    /**
+     * Loads the file, as readDBFile does
+     */
+    @Benchmark
+    @OutputTimeUnit( TimeUnit.MILLISECONDS )
+    public Object parse() throws IOException
+    {
+        return workload.parse();
+    }
+
+    /**
+     * Writes every song, as writeOut does
+     */
+    @Benchmark
+    @OutputTimeUnit( TimeUnit.MILLISECONDS )
+    public long persist() throws IOException
+    {
+        return workload.persist();
+    }
+
+    @Benchmark
+    @OutputTimeUnit( TimeUnit.NANOSECONDS )
+    public Object lookupByCode()
+    {
+        return workload.lookupByCode( next++ );
+    }
+
+    @Benchmark
+    @OutputTimeUnit( TimeUnit.NANOSECONDS )
+    public Object lookupByTitle()
+    {
+        return workload.lookupByTitle( next++ );
+    }
+
+    /**
+     * An add or a delete, as the accept and delete buttons do
+     */
+    @Benchmark
+    @OutputTimeUnit( TimeUnit.NANOSECONDS )
+    public int listRefresh()
+    {
+        return workload.listRefresh( next++ );
+    }
+}
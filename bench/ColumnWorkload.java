@@ -0,0 +1,45 @@
+package bench;
+
+/**
+ * This interface is the work ColumnarBenchmark times: the same queries
+ * over the songs held as a TreeMap of SongDetails and as SongColumns.
+ * ColumnarQueries implements it in the default package, for the same
+ * reason SongBenchmarks implements SongWorkload.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+public interface ColumnWorkload
+{
+    /**
+     * Generates the songs and builds the TreeMap and both kinds of
+     * columns
+     * @param rows number of songs
+     */
+    void setUp( int rows );
+
+    /**
+     * @return one artist's songs under a price, counted by walking the
+     * TreeMap
+     */
+    long treeMapCount();
+
+    /**
+     * @param parallel true to scan the columns as a parallel stream
+     * @return one artist's songs under a price, counted from the columns
+     */
+    long columnsCount( boolean parallel );
+
+    /**
+     * @return the price of every song, in cents, added up by walking the
+     * TreeMap
+     */
+    long treeMapTotal();
+
+    /**
+     * @param parallel true to scan the columns as a parallel stream
+     * @return the price of every song, in cents, added up from the
+     * columns
+     */
+    long columnsTotal( boolean parallel );
+}
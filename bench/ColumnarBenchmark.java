@@ -0,0 +1,89 @@
+package bench;
+
+/**
+ * This class is the JMH comparison of scanning the catalog the way the
+ * GUI holds it, a TreeMap of SongDetails walked entry by entry, with
+ * scanning a SongColumns snapshot of the same songs, sequentially and as
+ * a parallel stream. There are two queries: one artist's songs under
+ * $1.50, and the total price of every song. The work is in
+ * ColumnarQueries, through the ColumnWorkload interface.
+ *
+ * SongBenchmarks runs it along with CatalogBenchmark, or run it alone:
+ *
+ *   java -jar target/benchmarks.jar ColumnarBenchmark -p rows=1000000
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+public class ColumnarBenchmark
+{
+    @Param( { "10000", "1000000", "10000000" } )
+    public int rows;
+
+    private ColumnWorkload workload;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        workload = (ColumnWorkload) Class.forName( "ColumnarQueries" )
+            .getDeclaredConstructor().newInstance();
+        workload.setUp( rows );
+    }
+
+    @Benchmark
+    public long countTreeMap()
+    {
+        return workload.treeMapCount();
+    }
+
+    @Benchmark
+    public long countColumns()
+    {
+        return workload.columnsCount( false );
+    }
+
+    @Benchmark
+    public long countColumnsParallel()
+    {
+        return workload.columnsCount( true );
+    }
+
+    @Benchmark
+    public long totalTreeMap()
+    {
+        return workload.treeMapTotal();
+    }
+
+    @Benchmark
+    public long totalColumns()
+    {
+        return workload.columnsTotal( false );
+    }
+
+    @Benchmark
+    public long totalColumnsParallel()
+    {
+        return workload.columnsTotal( true );
+    }
+}
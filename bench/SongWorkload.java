@@ -0,0 +1,67 @@
+package bench;
+
+/**
+ * This interface is the work CatalogBenchmark times. JMH won't run
+ * benchmarks in the default package, where the song database's classes
+ * are, and a class in a package can't name those classes, so
+ * SongBenchmarks implements this in the default package and
+ * CatalogBenchmark creates it by name.
+ *
+ * @author Candace Holcombe-Volke
+ *
+ */
+import java.io.IOException;
+
+
+public interface SongWorkload
+{
+    /**
+     * Generates the catalog if it isn't there yet and loads it into a
+     * SongStore, a SongIndex and a SongListModel
+     * @param folder folder for the catalog and the saved copy
+     * @param rows number of songs
+     * @throws IOException if a file can't be read or written
+     */
+    void setUp( String folder, int rows ) throws IOException;
+
+    /**
+     * Loads the catalog file with SongFileParser
+     * @return the songs read
+     * @throws IOException if the file can't be read
+     */
+    Object parse() throws IOException;
+
+    /**
+     * Writes every song with SongFileWriter
+     * @return bytes written
+     * @throws IOException if the file can't be written
+     */
+    long persist() throws IOException;
+
+    /**
+     * Looks up the song of one of a fixed set of random item codes
+     * @param n which of them, any number
+     * @return the song
+     */
+    Object lookupByCode( int n );
+
+    /**
+     * Looks up the item codes of one of a fixed set of random titles
+     * @param n which of them, any number
+     * @return the item codes
+     */
+    Object lookupByTitle( int n );
+
+    /**
+     * Adds a song when n is even and deletes the one just added when it
+     * is odd, through SongStore and SongListModel
+     * @param n number of the change
+     * @return songs in the list
+     */
+    int listRefresh( int n );
+
+    /**
+     * Deletes the saved copy
+     */
+    void tearDown();
+}